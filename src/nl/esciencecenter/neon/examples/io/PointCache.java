@@ -0,0 +1,297 @@
+package nl.esciencecenter.neon.examples.io;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A binary, columnar copy of the points parsed from a text file, stored in a
+ * sidecar file next to it. Parsing a large text export takes far longer than
+ * mapping the same numbers from disk, so readers write a cache after their
+ * first parse, and load it instead of the text on later runs.
+ * 
+ * The sidecar starts with a little-endian header holding the size and
+ * modification time of the source file, a key for the settings it was parsed
+ * with, the number of points and the bounds and total of every column. The
+ * columns follow as packed float arrays. A cache is only used when the source
+ * file and the key still match.
+ * 
+ * @author Maarten van Meersbergen <m.van.meersbergen@esciencecenter.nl>
+ */
+public class PointCache {
+    private final static Logger logger         = LoggerFactory.getLogger(PointCache.class);
+
+    /** The extension appended to the name of the source file. */
+    public static final String  FILE_EXTENSION = ".npc";
+
+    private static final int    MAGIC          = 0x4E504331;
+    private static final int    VERSION        = 1;
+    private static final int    HEADER_SIZE    = 40;
+    private static final int    COLUMN_SIZE    = 16;
+    private static final int    WRITE_BLOCK    = 1024 * 1024;
+
+    private final int           numPoints;
+    private final float[]       mins;
+    private final float[]       maxs;
+    private final double[]      totals;
+    private final FloatBuffer[] columns;
+
+    private PointCache(int numPoints, float[] mins, float[] maxs, double[] totals, FloatBuffer[] columns) {
+        this.numPoints = numPoints;
+        this.mins = mins;
+        this.maxs = maxs;
+        this.totals = totals;
+        this.columns = columns;
+    }
+
+    /**
+     * Helper method to find the sidecar file of a source file.
+     * 
+     * @param source
+     *            The source file.
+     * @return The sidecar file, which need not exist.
+     */
+    public static File getCacheFile(File source) {
+        return new File(source.getPath() + FILE_EXTENSION);
+    }
+
+    /**
+     * Loads the cache of a source file, if it is still valid.
+     * 
+     * @param source
+     *            The source file.
+     * @param key
+     *            A key for the settings the points were parsed with, see
+     *            {@link #write(File, long, int, float[][])}.
+     * @return The cache, or null if there is no cache, if it could not be
+     *         read, or if it was written for another version of the source
+     *         file or another key.
+     */
+    public static PointCache load(File source, long key) {
+        File cacheFile = getCacheFile(source);
+        if (!cacheFile.isFile() || !source.isFile()) {
+            return null;
+        }
+
+        try (FileChannel fc = FileChannel.open(cacheFile.toPath(), StandardOpenOption.READ)) {
+            ByteBuffer header = read(fc, 0, HEADER_SIZE);
+            if (header.getInt() != MAGIC || header.getInt() != VERSION) {
+                logger.debug("Ignoring cache " + cacheFile + " of another format");
+                return null;
+            }
+            long sourceSize = header.getLong();
+            long sourceModified = header.getLong();
+            long sourceKey = header.getLong();
+            if (sourceSize != source.length() || sourceModified != lastModified(source) || sourceKey != key) {
+                logger.debug("Ignoring stale cache " + cacheFile);
+                return null;
+            }
+
+            int numPoints = header.getInt();
+            int numColumns = header.getInt();
+            long dataStart = HEADER_SIZE + (long) numColumns * COLUMN_SIZE;
+            if (numPoints < 0 || numColumns < 0 || fc.size() != dataStart + 4L * numPoints * numColumns) {
+                logger.debug("Ignoring truncated cache " + cacheFile);
+                return null;
+            }
+
+            ByteBuffer bounds = read(fc, HEADER_SIZE, numColumns * COLUMN_SIZE);
+            float[] mins = new float[numColumns];
+            float[] maxs = new float[numColumns];
+            double[] totals = new double[numColumns];
+            FloatBuffer[] columns = new FloatBuffer[numColumns];
+            for (int c = 0; c < numColumns; c++) {
+                mins[c] = bounds.getFloat();
+                maxs[c] = bounds.getFloat();
+                totals[c] = bounds.getDouble();
+
+                // Mapped per column, so a cache can exceed the 2GB a single
+                // mapping is limited to.
+                columns[c] = fc.map(MapMode.READ_ONLY, dataStart + 4L * numPoints * c, 4L * numPoints)
+                        .order(ByteOrder.LITTLE_ENDIAN).asFloatBuffer();
+            }
+
+            return new PointCache(numPoints, mins, maxs, totals, columns);
+        } catch (IOException e) {
+            logger.warn("Ignoring unreadable cache " + cacheFile + ": " + e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Writes the cache of a source file, replacing any earlier one.
+     * 
+     * @param source
+     *            The source file the points were parsed from.
+     * @param key
+     *            A key for the settings the points were parsed with, such as
+     *            offsets, scales and skipped points. A cache is only loaded for
+     *            the same key.
+     * @param numPoints
+     *            The number of points.
+     * @param columns
+     *            The columns, each holding at least numPoints values.
+     * @return The cache as written.
+     * @throws IOException
+     *             if the cache could not be written.
+     */
+    public static PointCache write(File source, long key, int numPoints, float[][] columns) throws IOException {
+        File cacheFile = getCacheFile(source);
+        File tmpFile = new File(cacheFile.getPath() + ".tmp");
+
+        PointCache points = wrap(numPoints, columns);
+        int numColumns = columns.length;
+
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE + numColumns * COLUMN_SIZE);
+        header.order(ByteOrder.LITTLE_ENDIAN);
+        header.putInt(MAGIC);
+        header.putInt(VERSION);
+        header.putLong(source.length());
+        header.putLong(lastModified(source));
+        header.putLong(key);
+        header.putInt(numPoints);
+        header.putInt(numColumns);
+        for (int c = 0; c < numColumns; c++) {
+            header.putFloat(points.mins[c]);
+            header.putFloat(points.maxs[c]);
+            header.putDouble(points.totals[c]);
+        }
+        header.flip();
+
+        try (FileChannel fc = FileChannel.open(tmpFile.toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            writeFully(fc, header);
+
+            ByteBuffer block = ByteBuffer.allocateDirect(WRITE_BLOCK);
+            block.order(ByteOrder.LITTLE_ENDIAN);
+            FloatBuffer floats = block.asFloatBuffer();
+            for (int c = 0; c < numColumns; c++) {
+                for (int i = 0; i < numPoints; i += floats.capacity()) {
+                    int length = Math.min(floats.capacity(), numPoints - i);
+                    floats.clear();
+                    floats.put(columns[c], i, length);
+
+                    block.clear();
+                    block.limit(length * 4);
+                    writeFully(fc, block);
+                }
+            }
+        }
+
+        // Only replace the cache once it has been written completely, so an
+        // interrupted write never leaves a truncated cache behind.
+        Files.move(tmpFile.toPath(), cacheFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        logger.debug("Wrote cache " + cacheFile + " of " + numPoints + " points");
+
+        PointCache result = load(source, key);
+        if (result == null) {
+            throw new IOException("Could not read back cache " + cacheFile);
+        }
+        return result;
+    }
+
+    /**
+     * Wraps columns in memory, for when a cache cannot be written.
+     * 
+     * @param numPoints
+     *            The number of points.
+     * @param columns
+     *            The columns, each holding at least numPoints values.
+     * @return A cache backed by the given arrays.
+     */
+    public static PointCache wrap(int numPoints, float[][] columns) {
+        int numColumns = columns.length;
+        float[] mins = new float[numColumns];
+        float[] maxs = new float[numColumns];
+        double[] totals = new double[numColumns];
+        FloatBuffer[] buffers = new FloatBuffer[numColumns];
+        for (int c = 0; c < numColumns; c++) {
+            float min = Float.MAX_VALUE, max = -Float.MAX_VALUE;
+            double total = 0;
+            for (int i = 0; i < numPoints; i++) {
+                float value = columns[c][i];
+                min = Math.min(min, value);
+                max = Math.max(max, value);
+                total += value;
+            }
+            mins[c] = min;
+            maxs[c] = max;
+            totals[c] = total;
+            buffers[c] = FloatBuffer.wrap(columns[c], 0, numPoints);
+        }
+        return new PointCache(numPoints, mins, maxs, totals, buffers);
+    }
+
+    private static long lastModified(File file) throws IOException {
+        return Files.getLastModifiedTime(file.toPath()).toMillis();
+    }
+
+    private static ByteBuffer read(FileChannel fc, long position, int size) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(size);
+        buffer.order(ByteOrder.LITTLE_ENDIAN);
+        while (buffer.hasRemaining()) {
+            if (fc.read(buffer, position + buffer.position()) < 0) {
+                throw new IOException("Unexpected end of file at " + (position + buffer.position()));
+            }
+        }
+        buffer.flip();
+        return buffer;
+    }
+
+    private static void writeFully(FileChannel fc, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            fc.write(buffer);
+        }
+    }
+
+    public int getNumPoints() {
+        return numPoints;
+    }
+
+    public int getNumColumns() {
+        return columns.length;
+    }
+
+    /**
+     * Getter for a column of the cache.
+     * 
+     * @param column
+     *            The index of the column.
+     * @return A new view on the values of the column.
+     */
+    public FloatBuffer getColumn(int column) {
+        return columns[column].duplicate();
+    }
+
+    public float getMin(int column) {
+        return mins[column];
+    }
+
+    public float getMax(int column) {
+        return maxs[column];
+    }
+
+    /**
+     * Getter for the average value of a column.
+     * 
+     * @param column
+     *            The index of the column.
+     * @return the average, or 0 if there are no points.
+     */
+    public float getAverage(int column) {
+        if (numPoints == 0) {
+            return 0f;
+        }
+        return (float) (totals[column] / numPoints);
+    }
+}
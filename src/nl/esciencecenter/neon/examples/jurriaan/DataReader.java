@@ -5,9 +5,12 @@ import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.FileReader;
 import java.io.IOException;
+import java.nio.FloatBuffer;
 import java.util.ArrayList;
 import java.util.List;
 
+import nl.esciencecenter.neon.examples.io.PointCache;
+
 public class DataReader {
     public class MapPoint {
         private final float x, y, z;
@@ -47,6 +50,17 @@ public class DataReader {
 
         mapPoints = new ArrayList<MapPoint>();
 
+        PointCache cache = PointCache.load(dataFile, 0);
+        if (cache != null) {
+            FloatBuffer xCoords = cache.getColumn(0);
+            FloatBuffer yCoords = cache.getColumn(1);
+            FloatBuffer zCoords = cache.getColumn(2);
+            for (int i = 0; i < cache.getNumPoints(); i++) {
+                mapPoints.add(new MapPoint(xCoords.get(i), yCoords.get(i), zCoords.get(i)));
+            }
+            return;
+        }
+
         BufferedReader br = null;
         try {
             br = new BufferedReader(new FileReader(dataFile));
@@ -67,6 +81,8 @@ public class DataReader {
                     // ignore this entry
                 }
             }
+
+            writeCache();
         } catch (IOException e) {
             e.printStackTrace();
         } finally {
@@ -79,6 +95,25 @@ public class DataReader {
         }
     }
 
+    /**
+     * Stores the points read from the text file in a binary cache next to
+     * it, so the next run does not have to parse the text again.
+     */
+    private void writeCache() {
+        float[][] columns = new float[3][mapPoints.size()];
+        for (int i = 0; i < mapPoints.size(); i++) {
+            columns[0][i] = mapPoints.get(i).getX();
+            columns[1][i] = mapPoints.get(i).getY();
+            columns[2][i] = mapPoints.get(i).getZ();
+        }
+
+        try {
+            PointCache.write(dataFile, 0, mapPoints.size(), columns);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
     public MapPoint getMapPoint() {
         if (index == mapPoints.size()) {
             return null;
@@ -48,7 +48,7 @@ import nl.esciencecenter.neon.shaders.ShaderProgram;
  */
 public class GraphsGLEventListener extends NeonGLEventListener {
     // Two example shader program definitions.
-    private ShaderProgram axesShaderProgram, textShaderProgram, lineShaderProgram;
+    private ShaderProgram axesShaderProgram, textShaderProgram, lineShaderProgram, scatterShaderProgram;
 
     // Model definitions, the quad is necessary for Full-screen rendering. The
     // axes are the model we wish to render (example)
@@ -164,6 +164,9 @@ public class GraphsGLEventListener extends NeonGLEventListener {
             // Do the same for the line shader
             lineShaderProgram = getLoader().createProgram(gl, "line", new File("shaders/vs_lineShader.vp"),
                     new File("shaders/fs_lineShader.fp"));
+            // The scatter plot shader normalizes the points to their bounds
+            scatterShaderProgram = getLoader().createProgram(gl, "scatter", new File("shaders/vs_scatterPlot.vp"),
+                    new File("shaders/fs_multiColorTextShader.fp"));
 
             // Same for the postprocessing shader.
             // postprocessShader = getLoader().createProgram(gl, "postProcess",
@@ -305,7 +308,7 @@ public class GraphsGLEventListener extends NeonGLEventListener {
         try {
             renderAxes(gl, new Float4Matrix(mv), axesShaderProgram);
 
-            renderScatterplot(gl, mv, textShaderProgram);
+            renderScatterplot(gl, mv, scatterShaderProgram);
 
             renderBezierGraph(gl, mv, lineShaderProgram);
 
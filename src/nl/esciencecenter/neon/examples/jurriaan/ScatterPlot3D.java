@@ -1,172 +1,237 @@
 package nl.esciencecenter.neon.examples.jurriaan;
 
 import java.nio.FloatBuffer;
-import java.util.ArrayList;
-import java.util.List;
+import java.util.Arrays;
 
+import javax.media.opengl.GL;
 import javax.media.opengl.GL3;
 
 import nl.esciencecenter.neon.datastructures.GLSLAttribute;
-import nl.esciencecenter.neon.datastructures.VertexBufferObject;
 import nl.esciencecenter.neon.exceptions.UninitializedException;
 import nl.esciencecenter.neon.math.Color4;
-import nl.esciencecenter.neon.math.Point4;
 import nl.esciencecenter.neon.math.Float4Vector;
-import nl.esciencecenter.neon.math.FloatVectorMath;
+import nl.esciencecenter.neon.math.Point4;
 import nl.esciencecenter.neon.models.Model;
 import nl.esciencecenter.neon.shaders.ShaderProgram;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+/**
+ * A 3D scatter plot that points can be appended to while it is being drawn.
+ * 
+ * The points are stored as they were added, in growing primitive arrays, and
+ * are only normalized to the unit cube in the vertex shader, with the
+ * BoundsMin and BoundsScale uniforms (see shaders/vs_scatterPlot.vp). A point
+ * that extends the bounds therefore only changes those uniforms, instead of
+ * every point in the plot. On the GPU, the points live in buffers that double
+ * in size when they are full, and every draw only uploads the points added
+ * since the last one with glBufferSubData, so appending n points takes O(n)
+ * time in total.
+ * 
+ * @author Maarten van Meersbergen <m.van.meersbergen@esciencecenter.nl>
+ */
 public class ScatterPlot3D extends Model {
     private final static Logger LOGGER = LoggerFactory.getLogger(ScatterPlot3D.class);
 
-    private final List<Float4Vector> points;
-    private final List<Float4Vector> colors;
+    private static final int INITIAL_CAPACITY = 1024;
+    private static final int POSITION_SIZE = 3;
+    private static final int COLOR_SIZE = 4;
 
-    private final List<Float4Vector> drawableVertices;
+    private float[] positions;
+    private float[] colors;
+    private int numPoints;
 
-    private FloatBuffer vertexColors;
+    /** The GPU buffers for the positions and colors, if initialized. */
+    private final int[] buffers = new int[2];
+    /** The number of points the GPU buffers can hold. */
+    private int gpuCapacity;
+    /** The number of points that have been uploaded to the GPU buffers. */
+    private int numUploaded;
 
     private boolean initialized = false;
 
     private float minX, maxX, minY, maxY, minZ, maxZ;
 
-    private String[][] bla;
-
     public ScatterPlot3D() {
         super(VertexFormat.POINTS);
 
-        points = new ArrayList<Float4Vector>();
-        colors = new ArrayList<Float4Vector>();
-        drawableVertices = new ArrayList<Float4Vector>();
-
-        this.setVertices(FloatBuffer.allocate(0));
-        vertexColors = FloatBuffer.allocate(0);
+        positions = new float[INITIAL_CAPACITY * POSITION_SIZE];
+        colors = new float[INITIAL_CAPACITY * COLOR_SIZE];
 
         this.setNumVertices(0);
 
         this.minX = Float.MAX_VALUE;
         this.minY = Float.MAX_VALUE;
         this.minZ = Float.MAX_VALUE;
-        this.maxX = Float.MIN_VALUE;
-        this.maxY = Float.MIN_VALUE;
-        this.maxZ = Float.MIN_VALUE;
+        this.maxX = -Float.MAX_VALUE;
+        this.maxY = -Float.MAX_VALUE;
+        this.maxZ = -Float.MAX_VALUE;
     }
 
-    public void add(Point4 point, Color4 color) {
-        if (point.getX() < minX) {
-            minX = point.getX();
-        }
-        if (point.getX() > maxX) {
-            maxX = point.getX();
-        }
-        if (point.getY() < minX) {
-            minY = point.getY();
-        }
-        if (point.getY() > maxX) {
-            maxY = point.getY();
-        }
-        if (point.getZ() < minZ) {
-            minZ = point.getZ();
-        }
-        if (point.getZ() > maxZ) {
-            maxZ = point.getZ();
+    /**
+     * Appends a point to the plot. It is drawn from the next call to
+     * {@link #draw(GL3, ShaderProgram)} on, no need to call
+     * {@link #init(GL3)} again.
+     * 
+     * @param point
+     *            The position of the point.
+     * @param color
+     *            The color of the point.
+     */
+    public synchronized void add(Point4 point, Color4 color) {
+        if (numPoints * POSITION_SIZE == positions.length) {
+            positions = Arrays.copyOf(positions, positions.length * 2);
+            colors = Arrays.copyOf(colors, colors.length * 2);
         }
 
-        points.add(point);
-        colors.add(color);
-
-        recalculatePoints();
+        float x = point.getX();
+        float y = point.getY();
+        float z = point.getZ();
+
+        int p = numPoints * POSITION_SIZE;
+        positions[p] = x;
+        positions[p + 1] = y;
+        positions[p + 2] = z;
+
+        int c = numPoints * COLOR_SIZE;
+        colors[c] = color.getX();
+        colors[c + 1] = color.getY();
+        colors[c + 2] = color.getZ();
+        colors[c + 3] = color.getW();
+
+        numPoints++;
+
+        minX = Math.min(minX, x);
+        maxX = Math.max(maxX, x);
+        minY = Math.min(minY, y);
+        maxY = Math.max(maxY, y);
+        minZ = Math.min(minZ, z);
+        maxZ = Math.max(maxZ, z);
     }
 
+    /**
+     * Appends a point to the plot. Kept for existing callers, this is the
+     * same as {@link #add(Point4, Color4)}.
+     * 
+     * @param point
+     *            The position of the point.
+     * @param color
+     *            The color of the point.
+     */
     public void simpleAdd(Point4 point, Color4 color) {
-        points.add(point);
-        colors.add(color);
+        add(point, color);
     }
 
+    /**
+     * Kept for existing callers. Points are normalized in the shader, so
+     * there is nothing left to do after adding them.
+     */
     public void finalizeSimpleAdd() {
-        for (Float4Vector point : points) {
-            if (point.getX() < minX) {
-                minX = point.getX();
-            }
-            if (point.getX() > maxX) {
-                maxX = point.getX();
-            }
-            if (point.getY() < minY) {
-                minY = point.getY();
-            }
-            if (point.getY() > maxY) {
-                maxY = point.getY();
-            }
-            if (point.getZ() < minZ) {
-                minZ = point.getZ();
-            }
-            if (point.getZ() > maxZ) {
-                maxZ = point.getZ();
-            }
-        }
-
-        recalculatePoints();
-
+        // Nothing to recalculate.
     }
 
-    private synchronized void recalculatePoints() {
-        float diffX = maxX - minX;
-        float diffY = maxY - minY;
-        float diffZ = maxZ - minZ;
-
-        drawableVertices.clear();
-
-        int numPoints = points.size();
+    @Override
+    public synchronized void init(GL3 gl) {
+        delete(gl);
 
-        for (int i = 0; i < numPoints; i++) {
-            Float4Vector current = points.get(i);
-            float newX = ((current.getX() - minX) / diffX);
-            float newY = ((current.getY() - minY) / diffY);
-            float newZ = ((current.getZ() - minZ) / diffZ);
+        gl.glGenBuffers(2, buffers, 0);
+        gpuCapacity = 0;
+        numUploaded = 0;
 
-            drawableVertices.add(new Float4Vector(newX, newY, newZ, 1f));
-        }
+        initialized = true;
     }
 
-    @Override
-    public void init(GL3 gl) {
-        delete(gl);
+    /**
+     * Uploads the points that were added since the last upload, after
+     * doubling the GPU buffers if they are full.
+     */
+    private void upload(GL3 gl) {
+        if (numPoints > gpuCapacity) {
+            gpuCapacity = Math.max(numPoints, Math.max(INITIAL_CAPACITY, gpuCapacity * 2));
+
+            // Reallocating drops the old contents, so everything is uploaded
+            // again. With the doubling, that still adds up to linear time.
+            gl.glBindBuffer(GL.GL_ARRAY_BUFFER, buffers[0]);
+            gl.glBufferData(GL.GL_ARRAY_BUFFER, (long) gpuCapacity * POSITION_SIZE * GLSLAttribute.SIZE_FLOAT, null,
+                    GL.GL_DYNAMIC_DRAW);
+            gl.glBindBuffer(GL.GL_ARRAY_BUFFER, buffers[1]);
+            gl.glBufferData(GL.GL_ARRAY_BUFFER, (long) gpuCapacity * COLOR_SIZE * GLSLAttribute.SIZE_FLOAT, null,
+                    GL.GL_DYNAMIC_DRAW);
+            numUploaded = 0;
+        }
 
-        this.setVertices(FloatVectorMath.vec4ListToBuffer(drawableVertices));
-        this.vertexColors = FloatVectorMath.vec4ListToBuffer(colors);
+        if (numUploaded < numPoints) {
+            int count = numPoints - numUploaded;
 
-        GLSLAttribute vAttrib = new GLSLAttribute(this.getVertices(), "MCvertex", GLSLAttribute.SIZE_FLOAT, 4);
-        GLSLAttribute cAttrib = new GLSLAttribute(this.vertexColors, "MCvertexColor", GLSLAttribute.SIZE_FLOAT, 4);
+            uploadRange(gl, buffers[0], positions, POSITION_SIZE, count);
+            uploadRange(gl, buffers[1], colors, COLOR_SIZE, count);
 
-        setVbo(new VertexBufferObject(gl, vAttrib, cAttrib));
+            numUploaded = numPoints;
+        }
+    }
 
-        this.setNumVertices(points.size());
+    private void uploadRange(GL3 gl, int buffer, float[] values, int vectorSize, int count) {
+        FloatBuffer range = FloatBuffer.wrap(values, numUploaded * vectorSize, count * vectorSize).slice();
 
-        initialized = true;
+        gl.glBindBuffer(GL.GL_ARRAY_BUFFER, buffer);
+        gl.glBufferSubData(GL.GL_ARRAY_BUFFER, (long) numUploaded * vectorSize * GLSLAttribute.SIZE_FLOAT,
+                (long) count * vectorSize * GLSLAttribute.SIZE_FLOAT, range);
     }
 
     @Override
-    public void draw(GL3 gl, ShaderProgram program) throws UninitializedException {
+    public synchronized void draw(GL3 gl, ShaderProgram program) throws UninitializedException {
         if (initialized) {
+            upload(gl);
+
+            // The shader maps the bounding box onto the unit cube.
+            program.setUniformVector("BoundsMin", new Float4Vector(minX, minY, minZ, 0f));
+            program.setUniformVector("BoundsScale",
+                    new Float4Vector(inverse(maxX - minX), inverse(maxY - minY), inverse(maxZ - minZ), 1f));
+
             try {
                 program.use(gl);
             } catch (UninitializedException e) {
                 LOGGER.error(e.getMessage());
             }
 
-            getVbo().bind(gl);
+            int vertexLocation = gl.glGetAttribLocation(program.getPointer(), "MCvertex");
+            int colorLocation = gl.glGetAttribLocation(program.getPointer(), "MCvertexColor");
 
-            program.linkAttribs(gl, getVbo().getAttribs());
+            gl.glBindBuffer(GL.GL_ARRAY_BUFFER, buffers[0]);
+            gl.glVertexAttribPointer(vertexLocation, POSITION_SIZE, GL.GL_FLOAT, false, 0, 0);
+            gl.glEnableVertexAttribArray(vertexLocation);
 
-            gl.glDrawArrays(GL3.GL_POINTS, 0, getNumVertices());
+            gl.glBindBuffer(GL.GL_ARRAY_BUFFER, buffers[1]);
+            gl.glVertexAttribPointer(colorLocation, COLOR_SIZE, GL.GL_FLOAT, false, 0, 0);
+            gl.glEnableVertexAttribArray(colorLocation);
+
+            this.setNumVertices(numUploaded);
+            gl.glDrawArrays(GL3.GL_POINTS, 0, numUploaded);
         } else {
             throw new UninitializedException();
         }
     }
 
+    private static float inverse(float diff) {
+        if (diff > 0f) {
+            return 1f / diff;
+        }
+        return 0f;
+    }
+
+    @Override
+    public synchronized void delete(GL3 gl) {
+        if (initialized) {
+            gl.glDeleteBuffers(2, buffers, 0);
+            initialized = false;
+        }
+    }
+
+    public synchronized int getNumPoints() {
+        return numPoints;
+    }
+
     public float getMinX() {
         return minX;
     }
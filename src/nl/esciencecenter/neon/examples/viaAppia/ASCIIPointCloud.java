@@ -0,0 +1,502 @@
+package nl.esciencecenter.neon.examples.viaAppia;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * The points of an ASCII point export, such as the .las.txt files read by
+ * {@link DataReader}. Every line holds the X, Y and Z coordinates of a point
+ * followed by its red, green and blue values, separated by whitespace. Further
+ * columns are ignored, and so are lines that do not start with six numbers,
+ * such as headers.
+ * 
+ * The file is memory-mapped and split into chunks that end at a newline,
+ * which are parsed in parallel by a hand-written scanner that allocates
+ * nothing per line. A first pass counts the lines of every chunk, so every
+ * chunk knows where its points go and writes them straight into the shared
+ * primitive arrays. The bounds and the height total are kept per chunk and
+ * merged afterwards.
+ * 
+ * Lines are selected with the same skip pattern as the LAS point decoders:
+ * line i is parsed if (i % (skip + 1)) == skip.
+ * 
+ * @author Maarten van Meersbergen <m.van.meersbergen@esciencecenter.nl>
+ */
+public class ASCIIPointCloud {
+    /** Chunks are never made smaller than this, in bytes. */
+    private static final long     MIN_CHUNK_SIZE    = 4L * 1024L * 1024L;
+    /** Chunks are never made larger than this, to stay mappable. */
+    private static final long     MAX_CHUNK_SIZE    = 512L * 1024L * 1024L;
+    /** Number of chunks made per worker thread, to balance the load. */
+    private static final int      CHUNKS_PER_THREAD = 4;
+
+    /** All powers of ten that are exactly representable as a double. */
+    private static final double[] POWERS_OF_TEN     = new double[23];
+    static {
+        POWERS_OF_TEN[0] = 1.0;
+        for (int i = 1; i < POWERS_OF_TEN.length; i++) {
+            POWERS_OF_TEN[i] = POWERS_OF_TEN[i - 1] * 10.0;
+        }
+    }
+
+    private final float[] positions;
+    private final int[]   colors;
+    private final int     numPoints;
+
+    private final float   minX, maxX, minY, maxY, minZ, maxZ;
+    private final double  totalZ;
+
+    /** A newline aligned part of the file, and its part of the results. */
+    private static class Chunk {
+        private final long start;
+        private final long end;
+
+        private long       firstLine;
+        private long       numLines;
+        private int        numPoints;
+
+        private float      minX = Float.MAX_VALUE, minY = Float.MAX_VALUE, minZ = Float.MAX_VALUE;
+        private float      maxX = -Float.MAX_VALUE, maxY = -Float.MAX_VALUE, maxZ = -Float.MAX_VALUE;
+        private double     totalZ;
+
+        public Chunk(long start, long end) {
+            this.start = start;
+            this.end = end;
+        }
+    }
+
+    /** The state of the scanner while it parses the numbers of one line. */
+    private static class Scanner {
+        private final ByteBuffer buffer;
+        private final int        limit;
+        private int              position;
+        private boolean          valid;
+
+        public Scanner(ByteBuffer buffer) {
+            this.buffer = buffer;
+            this.limit = buffer.limit();
+        }
+
+        private void skipBlanks() {
+            while (position < limit) {
+                byte c = buffer.get(position);
+                if (c != ' ' && c != '\t' && c != '\r') {
+                    return;
+                }
+                position++;
+            }
+        }
+
+        private void skipLine() {
+            while (position < limit && buffer.get(position) != '\n') {
+                position++;
+            }
+            position++;
+        }
+
+        public int nextInt() {
+            skipBlanks();
+
+            boolean negative = false;
+            if (position < limit && (buffer.get(position) == '-' || buffer.get(position) == '+')) {
+                negative = buffer.get(position) == '-';
+                position++;
+            }
+
+            int start = position;
+            int result = 0;
+            while (position < limit) {
+                int digit = buffer.get(position) - '0';
+                if (digit < 0 || digit > 9) {
+                    break;
+                }
+                result = (result * 10) + digit;
+                position++;
+            }
+            if (position == start || !atSeparator()) {
+                valid = false;
+            }
+            return negative ? -result : result;
+        }
+
+        public double nextDouble() {
+            skipBlanks();
+
+            boolean negative = false;
+            if (position < limit && (buffer.get(position) == '-' || buffer.get(position) == '+')) {
+                negative = buffer.get(position) == '-';
+                position++;
+            }
+
+            // Collect up to 18 significant digits in a long, which always
+            // fits, and keep track of the decimal exponent.
+            long mantissa = 0;
+            int digits = 0;
+            int exponent = 0;
+            boolean seenDigit = false;
+            boolean seenPoint = false;
+            while (position < limit) {
+                byte c = buffer.get(position);
+                if (c >= '0' && c <= '9') {
+                    seenDigit = true;
+                    if (digits < 18) {
+                        if (mantissa != 0 || c != '0') {
+                            digits++;
+                        }
+                        mantissa = (mantissa * 10) + (c - '0');
+                        if (seenPoint) {
+                            exponent--;
+                        }
+                    } else if (!seenPoint) {
+                        exponent++;
+                    }
+                } else if (c == '.' && !seenPoint) {
+                    seenPoint = true;
+                } else {
+                    break;
+                }
+                position++;
+            }
+
+            if (position < limit && (buffer.get(position) == 'e' || buffer.get(position) == 'E')) {
+                position++;
+                exponent += nextInt();
+                // nextInt already checked for the separator.
+            } else if (!atSeparator()) {
+                valid = false;
+            }
+            if (!seenDigit) {
+                valid = false;
+            }
+
+            double result;
+            if (exponent == 0) {
+                result = mantissa;
+            } else if (exponent > 0 && exponent < POWERS_OF_TEN.length) {
+                result = mantissa * POWERS_OF_TEN[exponent];
+            } else if (exponent < 0 && -exponent < POWERS_OF_TEN.length) {
+                result = mantissa / POWERS_OF_TEN[-exponent];
+            } else {
+                result = mantissa * Math.pow(10, exponent);
+            }
+            return negative ? -result : result;
+        }
+
+        private boolean atSeparator() {
+            if (position >= limit) {
+                return true;
+            }
+            byte c = buffer.get(position);
+            return c == ' ' || c == '\t' || c == '\r' || c == '\n';
+        }
+    }
+
+    private ASCIIPointCloud(float[] positions, int[] colors, int numPoints, List<Chunk> chunks) {
+        this.positions = positions;
+        this.colors = colors;
+        this.numPoints = numPoints;
+
+        float minX = Float.MAX_VALUE, minY = Float.MAX_VALUE, minZ = Float.MAX_VALUE;
+        float maxX = -Float.MAX_VALUE, maxY = -Float.MAX_VALUE, maxZ = -Float.MAX_VALUE;
+        double totalZ = 0;
+        for (Chunk chunk : chunks) {
+            minX = Math.min(minX, chunk.minX);
+            minY = Math.min(minY, chunk.minY);
+            minZ = Math.min(minZ, chunk.minZ);
+            maxX = Math.max(maxX, chunk.maxX);
+            maxY = Math.max(maxY, chunk.maxY);
+            maxZ = Math.max(maxZ, chunk.maxZ);
+            totalZ += chunk.totalZ;
+        }
+
+        this.minX = minX;
+        this.minY = minY;
+        this.minZ = minZ;
+        this.maxX = maxX;
+        this.maxY = maxY;
+        this.maxZ = maxZ;
+        this.totalZ = totalZ;
+    }
+
+    /**
+     * Parses an ASCII point export, using the number of threads set by
+     * {@link ViaAppiaSettings#getDecodeParallelism()}. Coordinates are stored
+     * as (float) (value - offset) * scale.
+     * 
+     * @param dataFile
+     *            The file to parse.
+     * @param skip
+     *            The number of lines to skip between parsed lines.
+     * @param offsetX
+     *            The offset subtracted from the X coordinates.
+     * @param offsetY
+     *            The offset subtracted from the Y coordinates.
+     * @param offsetZ
+     *            The offset subtracted from the Z coordinates.
+     * @param scale
+     *            The scale applied to all coordinates.
+     * @return The parsed points.
+     * @throws IOException
+     *             if the file could not be read.
+     */
+    public static ASCIIPointCloud parse(File dataFile, final int skip, final double offsetX, final double offsetY,
+            final double offsetZ, final float scale) throws IOException {
+        int parallelism = Math.max(1, ViaAppiaSettings.getInstance().getDecodeParallelism());
+
+        try (final FileChannel fc = FileChannel.open(dataFile.toPath(), StandardOpenOption.READ)) {
+            final List<Chunk> chunks = split(fc, parallelism);
+            ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, Math.min(parallelism, chunks.size())));
+
+            try {
+                // Count the lines of every chunk first, to find where the
+                // points of every chunk go.
+                List<Future<Long>> counts = new ArrayList<Future<Long>>();
+                for (final Chunk chunk : chunks) {
+                    counts.add(executor.submit(new Callable<Long>() {
+                        @Override
+                        public Long call() throws IOException {
+                            return countLines(fc, chunk);
+                        }
+                    }));
+                }
+
+                long numLines = 0;
+                for (int i = 0; i < chunks.size(); i++) {
+                    chunks.get(i).firstLine = numLines;
+                    chunks.get(i).numLines = get(counts.get(i));
+                    numLines += chunks.get(i).numLines;
+                }
+
+                long selected = numLines / (skip + 1L);
+                if (selected > Integer.MAX_VALUE / 3) {
+                    throw new IOException(selected + " points do not fit in a single array, skip more lines");
+                }
+                final float[] positions = new float[(int) selected * 3];
+                final int[] colors = new int[(int) selected * 3];
+
+                List<Future<Integer>> parsed = new ArrayList<Future<Integer>>();
+                for (final Chunk chunk : chunks) {
+                    parsed.add(executor.submit(new Callable<Integer>() {
+                        @Override
+                        public Integer call() throws IOException {
+                            return parseChunk(fc, chunk, skip, offsetX, offsetY, offsetZ, scale, positions, colors);
+                        }
+                    }));
+                }
+
+                // Lines that were not points leave a gap at the end of the
+                // slice of their chunk, close those.
+                int numPoints = 0;
+                for (int i = 0; i < chunks.size(); i++) {
+                    Chunk chunk = chunks.get(i);
+                    get(parsed.get(i));
+
+                    int slice = (int) (chunk.firstLine / (skip + 1L));
+                    if (slice != numPoints) {
+                        System.arraycopy(positions, slice * 3, positions, numPoints * 3, chunk.numPoints * 3);
+                        System.arraycopy(colors, slice * 3, colors, numPoints * 3, chunk.numPoints * 3);
+                    }
+                    numPoints += chunk.numPoints;
+                }
+
+                return new ASCIIPointCloud(positions, colors, numPoints, chunks);
+            } finally {
+                executor.shutdownNow();
+            }
+        }
+    }
+
+    private static <T> T get(Future<T> future) throws IOException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while parsing", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException(e.getCause());
+        }
+    }
+
+    private static List<Chunk> split(FileChannel fc, int parallelism) throws IOException {
+        long size = fc.size();
+        long chunkSize = Math.min(MAX_CHUNK_SIZE, Math.max(MIN_CHUNK_SIZE, size / (parallelism * CHUNKS_PER_THREAD)));
+
+        List<Chunk> result = new ArrayList<Chunk>();
+        ByteBuffer probe = ByteBuffer.allocate(4096);
+
+        long start = 0;
+        while (start < size) {
+            long end = Math.min(size, start + chunkSize);
+
+            // Move the end just past the next newline.
+            while (end < size) {
+                probe.clear();
+                int read = fc.read(probe, end);
+                if (read <= 0) {
+                    end = size;
+                    break;
+                }
+
+                int newline = -1;
+                for (int i = 0; i < read && newline < 0; i++) {
+                    if (probe.get(i) == '\n') {
+                        newline = i;
+                    }
+                }
+                if (newline >= 0) {
+                    end += newline + 1;
+                    break;
+                }
+                end += read;
+            }
+            if (end - start > Integer.MAX_VALUE) {
+                throw new IOException("Line at " + start + " is too long to map");
+            }
+
+            result.add(new Chunk(start, end));
+            start = end;
+        }
+        return result;
+    }
+
+    private static long countLines(FileChannel fc, Chunk chunk) throws IOException {
+        MappedByteBuffer buffer = fc.map(MapMode.READ_ONLY, chunk.start, chunk.end - chunk.start);
+        int limit = buffer.limit();
+
+        long result = 0;
+        for (int i = 0; i < limit; i++) {
+            if (buffer.get(i) == '\n') {
+                result++;
+            }
+        }
+        // The last line of the file need not end with a newline.
+        if (limit > 0 && buffer.get(limit - 1) != '\n') {
+            result++;
+        }
+        return result;
+    }
+
+    private static int parseChunk(FileChannel fc, Chunk chunk, int skip, double offsetX, double offsetY,
+            double offsetZ, float scale, float[] positions, int[] colors) throws IOException {
+        MappedByteBuffer buffer = fc.map(MapMode.READ_ONLY, chunk.start, chunk.end - chunk.start);
+        Scanner scanner = new Scanner(buffer);
+
+        long stride = skip + 1L;
+        int index = (int) (chunk.firstLine / stride) * 3;
+        long line = chunk.firstLine;
+
+        int numPoints = 0;
+        while (scanner.position < scanner.limit) {
+            if (line % stride == skip) {
+                scanner.valid = true;
+
+                float x = (float) (scanner.nextDouble() - offsetX) * scale;
+                float y = (float) (scanner.nextDouble() - offsetY) * scale;
+                float z = (float) (scanner.nextDouble() - offsetZ) * scale;
+                int r = scanner.nextInt();
+                int g = scanner.nextInt();
+                int b = scanner.nextInt();
+
+                if (scanner.valid) {
+                    positions[index] = x;
+                    positions[index + 1] = y;
+                    positions[index + 2] = z;
+                    colors[index] = r;
+                    colors[index + 1] = g;
+                    colors[index + 2] = b;
+                    index += 3;
+                    numPoints++;
+
+                    chunk.minX = Math.min(chunk.minX, x);
+                    chunk.minY = Math.min(chunk.minY, y);
+                    chunk.minZ = Math.min(chunk.minZ, z);
+                    chunk.maxX = Math.max(chunk.maxX, x);
+                    chunk.maxY = Math.max(chunk.maxY, y);
+                    chunk.maxZ = Math.max(chunk.maxZ, z);
+                    chunk.totalZ += z;
+                }
+            }
+
+            scanner.skipLine();
+            line++;
+        }
+
+        chunk.numPoints = numPoints;
+        return numPoints;
+    }
+
+    /**
+     * Getter for the positions, 3 floats per point.
+     * 
+     * @return the positions, of which the first 3 * {@link #getNumPoints()}
+     *         are valid.
+     */
+    public float[] getPositions() {
+        return positions;
+    }
+
+    /**
+     * Getter for the colors as read from the file, 3 values per point.
+     * 
+     * @return the colors, of which the first 3 * {@link #getNumPoints()} are
+     *         valid.
+     */
+    public int[] getColors() {
+        return colors;
+    }
+
+    public int getNumPoints() {
+        return numPoints;
+    }
+
+    public float getMinX() {
+        return minX;
+    }
+
+    public float getMaxX() {
+        return maxX;
+    }
+
+    public float getMinY() {
+        return minY;
+    }
+
+    public float getMaxY() {
+        return maxY;
+    }
+
+    public float getMinZ() {
+        return minZ;
+    }
+
+    public float getMaxZ() {
+        return maxZ;
+    }
+
+    /**
+     * Getter for the average Z coordinate of all points.
+     * 
+     * @return the average, or 0 if there are no points.
+     */
+    public float getAverageZ() {
+        if (numPoints == 0) {
+            return 0f;
+        }
+        return (float) (totalZ / numPoints);
+    }
+}
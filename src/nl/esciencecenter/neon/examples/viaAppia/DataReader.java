@@ -1,15 +1,39 @@
 package nl.esciencecenter.neon.examples.viaAppia;
 
-import java.io.BufferedReader;
 import java.io.File;
-import java.io.FileNotFoundException;
-import java.io.FileReader;
 import java.io.IOException;
 import java.nio.FloatBuffer;
 import java.util.ArrayList;
-
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import nl.esciencecenter.neon.examples.io.PointCache;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Reads the Via Appia text exports on a pool of reader threads, and hands the
+ * vertex and color buffers of every file to a consumer through a bounded
+ * queue. Readers block when the queue is full, so files are never read much
+ * faster than they are consumed. After the last file, {@link #END_OF_FILES}
+ * is put on the queue. A consumer that stops taking from the queue must call
+ * {@link #cancel()}, so the readers stop waiting for room on it.
+ * 
+ * @author Maarten van Meersbergen <m.van.meersbergen@esciencecenter.nl>
+ */
 public class DataReader implements Runnable {
-    private boolean addedFile = false;
+    private final static Logger logger = LoggerFactory.getLogger(DataReader.class);
+
+    /** Put on the queue after the buffers of the last file. */
+    public static final FloatBuffer[] END_OF_FILES = new FloatBuffer[0];
 
     private final float OFFSET_X = 296880f;
     private final float OFFSET_Y = 4632360f;
@@ -17,112 +41,108 @@ public class DataReader implements Runnable {
     private final float SCALE = 0.01f;
 
     private final int SKIP_POINTS = 0;
-
-    private FloatBuffer vertices;
-    private FloatBuffer colors;
-
-    private final int[] recordCount = new int[] { 1694588, 1645500, 280125, 2599222, 79093, 2546102, 67946, 2805104,
-            4310, 181, 70655, 15961079, 708917, 4524, 11611378, 2331688, 17197445, 837308, 5922495, 4924749, 15315,
-            88037, 26158, 5726, 3230734, 7942156, 1254, 603, 1089780, 12717516, 18070, 24279, 12856038, 353173, 7,
-            9610, 10157273, 2390450, 158, 5304485, 4335435, 17, 5426, 2853649, 6945270, 14, 886, 49, 5355, 700295,
-            10905817, 24055, 3820, 924652, 39313, 40736, 8612269, 419450, 525, 2362096, 8246679, 10023482, 12281443,
-            2647667, 9049, 8, 679218, 4526626, 99020, 4275357, 24666250, 2109018, 64537, 5591918, 28411, 4690653,
-            8251380, 31371, 5753, 3321, 48617, 4324444, 638369, 9111464, 134384, 30, 577, 7753, 24731, 9558585, 720084,
-            310, 65, 7135333, 77578281, 47988, 7, 1574, 8225524, 10655
-
-    };
-
-    public DataReader() throws FileNotFoundException {
+    private final int NUM_READERS = 2;
+    /** How long to wait for room on the queue before checking for cancellation. */
+    private final long OFFER_TIMEOUT_MS = 100;
+
+    /** Identifies the settings above in the point cache of a file. */
+    private final long CACHE_KEY = Arrays.hashCode(new float[] { OFFSET_X, OFFSET_Y, OFFSET_Z, SCALE, SKIP_POINTS });
+
+    private final BlockingQueue<FloatBuffer[]> queue;
+    private volatile boolean cancelled = false;
+
+    /**
+     * Constructor.
+     * 
+     * @param queue
+     *            The queue to put the {vertices, colors} buffers of every file
+     *            on, followed by {@link #END_OF_FILES}.
+     */
+    public DataReader(BlockingQueue<FloatBuffer[]> queue) {
+        this.queue = queue;
     }
 
-    private void readFile(File dataFile, int sequenceNumber) {
-        int numRecords = // recordCount[sequenceNumber] * 4;
-        (int) Math.floor((recordCount[sequenceNumber] / (SKIP_POINTS + 1))) * 4;
+    /**
+     * Stops handing buffers to the queue, for when the consumer no longer takes
+     * from it. Files that are still being read are dropped, and
+     * {@link #END_OF_FILES} is not put on the queue.
+     */
+    public void cancel() {
+        cancelled = true;
+    }
 
-        FloatBuffer tmpVertices = FloatBuffer.allocate(numRecords);
-        FloatBuffer tmpColors = FloatBuffer.allocate(numRecords);
+    /**
+     * Puts buffers on the queue, waiting while it is full, but only until this
+     * reader is cancelled.
+     * 
+     * @param buffers
+     *            The buffers to put on the queue.
+     * @return true if the buffers were put on the queue, false if this reader
+     *         was cancelled first.
+     * @throws InterruptedException
+     *             if interrupted while waiting.
+     */
+    private boolean handOver(FloatBuffer[] buffers) throws InterruptedException {
+        while (!cancelled) {
+            if (queue.offer(buffers, OFFER_TIMEOUT_MS, TimeUnit.MILLISECONDS)) {
+                return true;
+            }
+        }
+        return false;
+    }
 
-        BufferedReader br = null;
+    /**
+     * Parses a text file and writes the points to its cache, as columns of X,
+     * Y, Z, red, green and blue values.
+     * 
+     * @param dataFile
+     *            The file to parse.
+     * @return The cache, which is only held in memory if it could not be
+     *         written, or null if the file could not be parsed.
+     */
+    private PointCache parseFile(File dataFile) {
         try {
-            br = new BufferedReader(new FileReader(dataFile));
-
-            String sCurrentLine;
-            int count = SKIP_POINTS;
-
-            float highLat = Float.MIN_VALUE;
-            float highLon = Float.MIN_VALUE;
-            float highHgt = Float.MIN_VALUE;
-
-            float lowLat = Float.MAX_VALUE;
-            float lowLon = Float.MAX_VALUE;
-            float lowHgt = Float.MAX_VALUE;
-
-            ArrayList<Float> lats = new ArrayList<Float>();
-            ArrayList<Float> lons = new ArrayList<Float>();
-            ArrayList<Float> hgts = new ArrayList<Float>();
-
-            float hgtTotal = 0f;
-
-            while ((sCurrentLine = br.readLine()) != null) {
-                if (count == 0) {
-                    String[] splitLine = sCurrentLine.trim().split("\\s+");
-
-                    try {
-                        float lat = (float) (Double.parseDouble(splitLine[0]) - OFFSET_X) * SCALE;
-                        float lon = (float) (Double.parseDouble(splitLine[1]) - OFFSET_Y) * SCALE;
-                        float hgt = (float) (Double.parseDouble(splitLine[2]) - OFFSET_Z) * SCALE;
-                        float r = Integer.parseInt(splitLine[3]) / 255f;
-                        float g = Integer.parseInt(splitLine[4]) / 255f;
-                        float b = Integer.parseInt(splitLine[5]) / 255f;
-
-                        lats.add(lat);
-                        lons.add(lon);
-                        hgts.add(hgt);
-
-                        tmpColors.put(r);
-                        tmpColors.put(g);
-                        tmpColors.put(b);
-                        tmpColors.put(1f);
-
-                        if (lat > highLat) {
-                            highLat = lat;
-                        }
-
-                        if (lat < lowLat) {
-                            lowLat = lat;
-                        }
-
-                        if (lon > highLon) {
-                            highLon = lon;
-                        }
-
-                        if (lon < lowLon) {
-                            lowLon = lon;
-                        }
+            ASCIIPointCloud points = ASCIIPointCloud.parse(dataFile, SKIP_POINTS, OFFSET_X, OFFSET_Y, OFFSET_Z, SCALE);
+
+            int numPoints = points.getNumPoints();
+            float[][] columns = new float[6][numPoints];
+            float[] positions = points.getPositions();
+            int[] rgb = points.getColors();
+            for (int i = 0; i < numPoints; i++) {
+                for (int c = 0; c < 3; c++) {
+                    columns[c][i] = positions[(i * 3) + c];
+                    columns[c + 3][i] = rgb[(i * 3) + c];
+                }
+            }
 
-                        if (hgt > highHgt) {
-                            highHgt = hgt;
-                        }
+            try {
+                return PointCache.write(dataFile, CACHE_KEY, numPoints, columns);
+            } catch (IOException e) {
+                e.printStackTrace();
+                return PointCache.wrap(numPoints, columns);
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+            return null;
+        }
+    }
 
-                        if (hgt < lowHgt) {
-                            lowHgt = hgt;
-                        }
+    private FloatBuffer[] readFile(File dataFile) {
+        FloatBuffer tmpVertices = FloatBuffer.allocate(0);
+        FloatBuffer tmpColors = FloatBuffer.allocate(0);
 
-                        hgtTotal += hgt;
+        PointCache points = PointCache.load(dataFile, CACHE_KEY);
+        if (points == null) {
+            points = parseFile(dataFile);
+        }
 
-                    } catch (NumberFormatException e) {
-                        // System.out.println(splitLine[10]);
-                        // ignore this entry
-                    }
-                    count = SKIP_POINTS;
-                } else {
-                    count--;
-                }
-            }
+        if (points != null) {
+            float lowLat = points.getMin(0);
+            float lowLon = points.getMin(1);
 
-            float latDiff = highLat - lowLat;
-            float lonDiff = highLon - lowLon;
-            float hgtDiff = highHgt - lowHgt;
+            float latDiff = points.getMax(0) - lowLat;
+            float lonDiff = points.getMax(1) - lowLon;
+            float hgtDiff = points.getMax(2) - points.getMin(2);
 
             float maxDiff = latDiff;
             if (lonDiff > maxDiff) {
@@ -132,83 +152,100 @@ public class DataReader implements Runnable {
                 maxDiff = hgtDiff;
             }
 
-            float hgtAverage = hgtTotal / hgts.size();
+            float hgtAverage = points.getAverage(2);
 
-            System.out.println("Hight MIN: " + lowHgt);
-            System.out.println("Hight MAX: " + highHgt);
+            System.out.println("Hight MIN: " + points.getMin(2));
+            System.out.println("Hight MAX: " + points.getMax(2));
             System.out.println("Hight AVG: " + hgtAverage);
 
-            for (int i = 0; i < lats.size(); i++) {
-                float lat = ((lats.get(i) - lowLat) / maxDiff) - 0.5f;
-                float lon = ((lons.get(i) - lowLon) / maxDiff) - 0.5f;
-                float hgt = hgts.get(i) - hgtAverage;
-
-                tmpVertices.put(lat);
-                tmpVertices.put(lon);
-                tmpVertices.put(hgt);
+            // The parser counted the lines before parsing them, so the
+            // buffers can be sized to exactly the points that were read.
+            tmpVertices = FloatBuffer.allocate(points.getNumPoints() * 4);
+            tmpColors = FloatBuffer.allocate(points.getNumPoints() * 4);
+
+            FloatBuffer lats = points.getColumn(0);
+            FloatBuffer lons = points.getColumn(1);
+            FloatBuffer hgts = points.getColumn(2);
+            FloatBuffer reds = points.getColumn(3);
+            FloatBuffer greens = points.getColumn(4);
+            FloatBuffer blues = points.getColumn(5);
+            for (int i = 0; i < points.getNumPoints(); i++) {
+                tmpVertices.put(((lats.get(i) - lowLat) / maxDiff) - 0.5f);
+                tmpVertices.put(((lons.get(i) - lowLon) / maxDiff) - 0.5f);
+                tmpVertices.put(hgts.get(i) - hgtAverage);
                 tmpVertices.put(1f);
-            }
-        } catch (IOException e) {
-            e.printStackTrace();
-        } finally {
-            try {
-                if (br != null)
-                    br.close();
-            } catch (IOException ex) {
-                ex.printStackTrace();
+
+                tmpColors.put(reds.get(i) / 255f);
+                tmpColors.put(greens.get(i) / 255f);
+                tmpColors.put(blues.get(i) / 255f);
+                tmpColors.put(1f);
             }
         }
 
         tmpVertices.rewind();
         tmpColors.rewind();
 
-        while (!addPoints(tmpVertices, tmpColors)) {
-            // keep trying
-        }
-
-    }
-
-    private synchronized boolean addPoints(FloatBuffer tmpVertices, FloatBuffer tmpColors) {
-        if (!addedFile) {
-            vertices = tmpVertices;
-            colors = tmpColors;
-
-            addedFile = true;
-
-            return true;
-        } else {
-            return false;
-        }
-    }
-
-    public synchronized FloatBuffer[] getBuffers() {
-        if (addedFile) {
-            System.out.println("got " + vertices.capacity() / 4 + " records to add");
-            addedFile = false;
-
-            return new FloatBuffer[] { vertices, colors };
-        } else {
-            return null;
-        }
+        return new FloatBuffer[] { tmpVertices, tmpColors };
     }
 
     @Override
     public void run() {
-        int tally = 0;
-        File dataFile;
+        List<File> dataFiles = new ArrayList<File>();
         for (int sequenceNumber = 12; sequenceNumber < 13; sequenceNumber++) {
-            dataFile = new File("/media/maarten/diskhdd1/Via Appia/Via Appia rit2/Rome-000"
+            File dataFile = new File("/media/maarten/diskhdd1/Via Appia/Via Appia rit2/Rome-000"
                     + String.format("%03d", sequenceNumber) + ".las.txt");
-            if (dataFile != null && dataFile.exists()) {
-                System.out.println("Scanning:" + dataFile.getAbsolutePath());
-                readFile(dataFile, sequenceNumber - 1);
+            if (dataFile.exists()) {
+                dataFiles.add(dataFile);
+            }
+        }
+
+        ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, Math.min(NUM_READERS, dataFiles.size())));
+        try {
+            List<Future<Integer>> results = new ArrayList<Future<Integer>>();
+            for (final File dataFile : dataFiles) {
+                results.add(executor.submit(new Callable<Integer>() {
+                    @Override
+                    public Integer call() throws InterruptedException {
+                        System.out.println("Scanning:" + dataFile.getAbsolutePath());
+                        FloatBuffer[] buffers = readFile(dataFile);
+
+                        // Waits while the consumer is behind.
+                        if (!handOver(buffers)) {
+                            return 0;
+                        }
+                        return buffers[0].capacity() / 4;
+                    }
+                }));
+            }
 
-                int newCount = vertices.capacity() / 4;
-                tally += newCount;
+            int tally = 0;
+            for (Future<Integer> result : results) {
+                try {
+                    int newCount = result.get();
+                    tally += newCount;
 
-                System.out
-                        .println("Scan result OK, read " + newCount + "points, up to a total of " + tally + " points");
+                    System.out.println("Scan result OK, read " + newCount + " points, up to a total of " + tally
+                            + " points");
+                } catch (ExecutionException e) {
+                    logger.error("Could not read a data file: " + e.getCause());
+                }
             }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            executor.shutdownNow();
+        }
+
+        // The consumer waits for this marker even when the reading was
+        // interrupted, so put it on the queue before restoring the interrupt.
+        boolean interrupted = Thread.interrupted();
+        try {
+            handOver(END_OF_FILES);
+        } catch (InterruptedException e) {
+            interrupted = true;
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
         }
     }
 }
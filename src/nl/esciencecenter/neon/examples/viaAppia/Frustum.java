@@ -3,183 +3,178 @@ package nl.esciencecenter.neon.examples.viaAppia;
 import nl.esciencecenter.neon.math.Float3Vector;
 import nl.esciencecenter.neon.math.FloatVectorMath;
 
+/**
+ * The view frustum of a perspective camera, stored as six planes with normals
+ * that point into the frustum. Used to classify axis aligned boxes, such as
+ * the nodes of an {@link OctreeNode}, as inside, outside or intersecting the
+ * visible volume.
+ * 
+ * @author Maarten van Meersbergen <m.van.meersbergen@esciencecenter.nl>
+ */
 public class Frustum {
     private static final double DEGREESTORADIANS = Math.PI / 180.0;
-    private static int          INSIDE           = 2345623, OUTSIDE = 254743, INTERSECT = 92352;
-    Float3Vector                pointTop;
-    Float3Vector                pointBottom;
-    Float3Vector                pointLeft;
-    Float3Vector                pointRight;
-
-    Float3Vector                normalTop;
-    Float3Vector                normalBottom;
-    Float3Vector                normalLeft;
-    Float3Vector                normalRight;
 
+    public static final int     INSIDE           = 0, OUTSIDE = 1, INTERSECT = 2;
+
+    private static final int    NEAR             = 0, FAR = 1, TOP = 2, BOTTOM = 3, LEFT = 4, RIGHT = 5;
+
+    /** Plane equations (a, b, c, d) with a*x + b*y + c*z + d >= 0 inside. */
+    private final float[]       planes           = new float[6 * 4];
+
+    /**
+     * Constructor for an empty frustum, which has all planes set to zero and
+     * thus contains everything until {@link #update} is called.
+     */
+    public Frustum() {
+    }
+
+    /**
+     * Constructor for a frustum.
+     * 
+     * @param fovy
+     *            The vertical field of view, in degrees.
+     * @param aspect
+     *            The aspect ratio (width / height) of the viewport.
+     * @param zNear
+     *            The distance to the near clipping plane.
+     * @param zFar
+     *            The distance to the far clipping plane.
+     * @param cameraPosition
+     *            The position of the camera.
+     * @param cameraDirection
+     *            The direction the camera is looking at, need not be
+     *            normalized.
+     * @param up
+     *            The up direction of the camera, need not be perpendicular to
+     *            the camera direction.
+     */
     public Frustum(float fovy, float aspect, float zNear, float zFar, Float3Vector cameraPosition,
-            Float3Vector cameraDirection, Float3Vector up, Float3Vector right) {
+            Float3Vector cameraDirection, Float3Vector up) {
+        update(fovy, aspect, zNear, zFar, cameraPosition, cameraDirection, up);
+    }
+
+    /**
+     * Recalculates the planes of this frustum for a new camera, so a single
+     * instance can be reused for every frame.
+     * 
+     * @param fovy
+     *            The vertical field of view, in degrees.
+     * @param aspect
+     *            The aspect ratio (width / height) of the viewport.
+     * @param zNear
+     *            The distance to the near clipping plane.
+     * @param zFar
+     *            The distance to the far clipping plane.
+     * @param cameraPosition
+     *            The position of the camera.
+     * @param cameraDirection
+     *            The direction the camera is looking at, need not be
+     *            normalized.
+     * @param up
+     *            The up direction of the camera, need not be perpendicular to
+     *            the camera direction.
+     */
+    public void update(float fovy, float aspect, float zNear, float zFar, Float3Vector cameraPosition,
+            Float3Vector cameraDirection, Float3Vector up) {
+        // Half the height and width of the near plane.
         float hNear = (float) (Math.tan(fovy * DEGREESTORADIANS / 2) * zNear);
         float wNear = hNear * aspect;
 
-        float hFar = (float) (Math.tan(fovy * DEGREESTORADIANS / 2) * zFar);
-        float wFar = hFar * aspect;
-
-        Float3Vector nearPlaneNormal = FloatVectorMath.normalize(cameraDirection);
-        Float3Vector farPlaneNormal = FloatVectorMath.normalize(cameraDirection.neg());
-
-        Float3Vector nearPlanePoint = cameraPosition.add(cameraDirection.mul(zNear));
-        Float3Vector farPlanePoint = cameraPosition.add(cameraDirection.mul(zFar));
-
-        pointTop = pointTop(farPlanePoint, up, hFar);
-        pointBottom = pointBottom(farPlanePoint, up, hFar);
-        pointLeft = pointLeft(farPlanePoint, right, wFar);
-        pointRight = pointRight(farPlanePoint, right, wFar);
-
-        normalTop = normalTop(cameraPosition, nearPlanePoint, up, hNear, right);
-        normalBottom = normalBottom(cameraPosition, nearPlanePoint, up, hNear, right);
-        normalLeft = normalLeft(cameraPosition, nearPlanePoint, up, right, wNear);
-        normalRight = normalRight(cameraPosition, nearPlanePoint, up, right, wNear);
-
-        // System.out.println("---");
-        // System.out.println("pn:" + nearPlanePoint);
-        // System.out.println("nn:" + nearPlaneNormal);
-        // System.out.println("pf:" + farPlanePoint);
-        // System.out.println("nf:" + farPlaneNormal);
-        // System.out.println();
-        // System.out.println("pt:" + pointTop);
-        // System.out.println("nt:" + normalTop);
-        // System.out.println("pb:" + pointBottom);
-        // System.out.println("nb:" + normalBottom);
-        // System.out.println("pl:" + pointLeft);
-        // System.out.println("nl:" + normalLeft);
-        // System.out.println("pr:" + pointRight);
-        // System.out.println("nr:" + normalRight);
-    }
-
-    // int boxInFrustum(BoundingBox box) {
-    // int result = INSIDE, out, in;
-    //
-    // // for each plane do ...
-    // for (int i = 0; i < 6; i++) {
-    // // reset counters for corners in and out
-    // out = 0;
-    // in = 0;
-    // // for each corner of the box do ...
-    // // get out of the cycle as soon as a box as corners
-    // // both inside and out of the frustum
-    // for (int k = 0; k < 8 && (in == 0 || out == 0); k++) {
-    // // is the corner outside or inside
-    // if (pl[i].distance(b.getVertex(k)) < 0)
-    // out++;
-    // else
-    // in++;
-    // }
-    // // if all corners are out
-    // if (in == 0) {
-    // return (OUTSIDE);
-    // }
-    // // if some corners are out and others are in
-    // else if (out > 0) {
-    // result = INTERSECT;
-    // }
-    // }
-    // return (result);
-    // }
-
-    private Float3Vector farTopLeft(Float3Vector cameraPosition, Float3Vector cameraDirection, float zFar,
-            Float3Vector up, float hFar, Float3Vector right, float wFar) {
-        Float3Vector fc = cameraPosition.add(cameraDirection.mul(zFar));
-        return (fc.add(up.mul(hFar / 2f))).sub(right.mul(wFar / 2f));
-    }
-
-    private Float3Vector farTopRight(Float3Vector cameraPosition, Float3Vector cameraDirection, float zFar,
-            Float3Vector up, float hFar, Float3Vector right, float wFar) {
-        Float3Vector fc = cameraPosition.add(cameraDirection.mul(zFar));
-        return (fc.add(up.mul(hFar / 2f))).add(right.mul(wFar / 2f));
-    }
-
-    private Float3Vector farBottomLeft(Float3Vector cameraPosition, Float3Vector cameraDirection, float zFar,
-            Float3Vector up, float hFar, Float3Vector right, float wFar) {
-        Float3Vector fc = cameraPosition.add(cameraDirection.mul(zFar));
-        return (fc.sub(up.mul(hFar / 2f))).sub(right.mul(wFar / 2f));
-    }
-
-    private Float3Vector farBottomRight(Float3Vector cameraPosition, Float3Vector cameraDirection, float zFar,
-            Float3Vector up, float hFar, Float3Vector right, float wFar) {
-        Float3Vector fc = cameraPosition.add(cameraDirection.mul(zFar));
-        return (fc.sub(up.mul(hFar / 2f))).add(right.mul(wFar / 2f));
-    }
-
-    private Float3Vector nearTopLeft(Float3Vector cameraPosition, Float3Vector cameraDirection, float zNear,
-            Float3Vector up, float hNear, Float3Vector right, float wNear) {
-        Float3Vector fc = cameraPosition.add(cameraDirection.mul(zNear));
-        return (fc.add(up.mul(hNear / 2f))).sub(right.mul(wNear / 2f));
-    }
-
-    private Float3Vector nearTopRight(Float3Vector cameraPosition, Float3Vector cameraDirection, float zNear,
-            Float3Vector up, float hNear, Float3Vector right, float wNear) {
-        Float3Vector fc = cameraPosition.add(cameraDirection.mul(zNear));
-        return (fc.add(up.mul(hNear / 2f))).add(right.mul(wNear / 2f));
-    }
-
-    private Float3Vector nearBottomLeft(Float3Vector cameraPosition, Float3Vector cameraDirection, float zNear,
-            Float3Vector up, float hNear, Float3Vector right, float wNear) {
-        Float3Vector fc = cameraPosition.add(cameraDirection.mul(zNear));
-        return (fc.sub(up.mul(hNear / 2f))).sub(right.mul(wNear / 2f));
-    }
-
-    private Float3Vector nearBottomRight(Float3Vector cameraPosition, Float3Vector cameraDirection, float zNear,
-            Float3Vector up, float hNear, Float3Vector right, float wNear) {
-        Float3Vector fc = cameraPosition.add(cameraDirection.mul(zNear));
-        return (fc.sub(up.mul(hNear / 2f))).add(right.mul(wNear / 2f));
-    }
-
-    private Float3Vector normalTop(Float3Vector cameraPosition, Float3Vector nearPlanePoint, Float3Vector up,
-            float hNear, Float3Vector right) {
-        Float3Vector a = (nearPlanePoint.add(up.mul(hNear / 2f))).sub(cameraPosition);
-        return FloatVectorMath.cross(FloatVectorMath.normalize(a), right);
+        Float3Vector direction = FloatVectorMath.normalize(cameraDirection);
+        Float3Vector right = FloatVectorMath.normalize(FloatVectorMath.cross(direction, up));
+        Float3Vector trueUp = FloatVectorMath.cross(right, direction);
+
+        Float3Vector nearPlanePoint = cameraPosition.add(direction.mul(zNear));
+        Float3Vector farPlanePoint = cameraPosition.add(direction.mul(zFar));
+
+        setPlane(NEAR, direction, nearPlanePoint);
+        setPlane(FAR, direction.neg(), farPlanePoint);
+
+        // The side planes all go through the camera position, and through an
+        // edge of the near plane.
+        Float3Vector toTop = nearPlanePoint.add(trueUp.mul(hNear)).sub(cameraPosition);
+        Float3Vector toBottom = nearPlanePoint.sub(trueUp.mul(hNear)).sub(cameraPosition);
+        Float3Vector toLeft = nearPlanePoint.sub(right.mul(wNear)).sub(cameraPosition);
+        Float3Vector toRight = nearPlanePoint.add(right.mul(wNear)).sub(cameraPosition);
+
+        setPlane(TOP, FloatVectorMath.normalize(FloatVectorMath.cross(toTop, right)), cameraPosition);
+        setPlane(BOTTOM, FloatVectorMath.normalize(FloatVectorMath.cross(right, toBottom)), cameraPosition);
+        setPlane(LEFT, FloatVectorMath.normalize(FloatVectorMath.cross(toLeft, trueUp)), cameraPosition);
+        setPlane(RIGHT, FloatVectorMath.normalize(FloatVectorMath.cross(trueUp, toRight)), cameraPosition);
+    }
+
+    private void setPlane(int plane, Float3Vector normal, Float3Vector point) {
+        planes[(plane * 4) + 0] = normal.getX();
+        planes[(plane * 4) + 1] = normal.getY();
+        planes[(plane * 4) + 2] = normal.getZ();
+        planes[(plane * 4) + 3] = -FloatVectorMath.dot(normal, point);
+    }
+
+    /**
+     * Classifies an axis aligned box against this frustum. For every plane,
+     * only the corner of the box furthest along the plane normal (and the one
+     * furthest against it) is tested.
+     * 
+     * @param minX
+     *            The minimum X coordinate of the box.
+     * @param minY
+     *            The minimum Y coordinate of the box.
+     * @param minZ
+     *            The minimum Z coordinate of the box.
+     * @param maxX
+     *            The maximum X coordinate of the box.
+     * @param maxY
+     *            The maximum Y coordinate of the box.
+     * @param maxZ
+     *            The maximum Z coordinate of the box.
+     * @return {@link #INSIDE} if the box is completely inside this frustum,
+     *         {@link #OUTSIDE} if it is completely outside of it, and
+     *         {@link #INTERSECT} otherwise.
+     */
+    public int boxInFrustum(float minX, float minY, float minZ, float maxX, float maxY, float maxZ) {
+        int result = INSIDE;
+
+        for (int i = 0; i < planes.length; i += 4) {
+            float a = planes[i];
+            float b = planes[i + 1];
+            float c = planes[i + 2];
+            float d = planes[i + 3];
+
+            // The corner most in the direction of the plane normal
+            float px = a >= 0f ? maxX : minX;
+            float py = b >= 0f ? maxY : minY;
+            float pz = c >= 0f ? maxZ : minZ;
+
+            if ((a * px) + (b * py) + (c * pz) + d < 0f) {
+                return OUTSIDE;
+            }
+
+            // The corner most in the opposite direction
+            float nx = a >= 0f ? minX : maxX;
+            float ny = b >= 0f ? minY : maxY;
+            float nz = c >= 0f ? minZ : maxZ;
+
+            if ((a * nx) + (b * ny) + (c * nz) + d < 0f) {
+                result = INTERSECT;
+            }
+        }
+
+        return result;
+    }
+
+    /**
+     * Classifies an axis aligned cube against this frustum.
+     * 
+     * @param center
+     *            The center of the cube.
+     * @param ribSize
+     *            The length of the ribs of the cube.
+     * @return {@link #INSIDE}, {@link #OUTSIDE} or {@link #INTERSECT}, see
+     *         {@link #boxInFrustum(float, float, float, float, float, float)}
+     */
+    public int cubeInFrustum(Float3Vector center, float ribSize) {
+        float halfRib = ribSize * 0.5f;
+        return boxInFrustum(center.getX() - halfRib, center.getY() - halfRib, center.getZ() - halfRib,
+                center.getX() + halfRib, center.getY() + halfRib, center.getZ() + halfRib);
     }
-
-    private Float3Vector normalBottom(Float3Vector cameraPosition, Float3Vector nearPlanePoint, Float3Vector up,
-            float hNear, Float3Vector right) {
-        Float3Vector a = (nearPlanePoint.sub(up.mul(hNear / 2f))).sub(cameraPosition);
-        return FloatVectorMath.cross(right, FloatVectorMath.normalize(a));
-    }
-
-    private Float3Vector normalLeft(Float3Vector cameraPosition, Float3Vector nearPlanePoint, Float3Vector up,
-            Float3Vector right, float wNear) {
-        Float3Vector a = (nearPlanePoint.sub(right.mul(wNear / 2f))).sub(cameraPosition);
-        return FloatVectorMath.cross(FloatVectorMath.normalize(a), up);
-    }
-
-    private Float3Vector normalRight(Float3Vector cameraPosition, Float3Vector nearPlanePoint, Float3Vector up,
-            Float3Vector right, float wNear) {
-        Float3Vector a = (nearPlanePoint.add(right.mul(wNear / 2f))).sub(cameraPosition);
-        return FloatVectorMath.cross(up, FloatVectorMath.normalize(a));
-    }
-
-    private Float3Vector normalNear(Float3Vector cameraDirection) {
-        return FloatVectorMath.normalize(cameraDirection);
-    }
-
-    private Float3Vector normalFar(Float3Vector cameraDirection) {
-        return FloatVectorMath.normalize(cameraDirection.neg());
-    }
-
-    private Float3Vector pointTop(Float3Vector nearPlanePoint, Float3Vector up, float hNear) {
-        return nearPlanePoint.add(up.mul(hNear / 2f));
-    }
-
-    private Float3Vector pointBottom(Float3Vector nearPlanePoint, Float3Vector up, float hNear) {
-        return nearPlanePoint.sub(up.mul(hNear / 2f));
-    }
-
-    private Float3Vector pointLeft(Float3Vector nearPlanePoint, Float3Vector right, float wNear) {
-        return nearPlanePoint.sub(right.mul(wNear / 2f));
-    }
-
-    private Float3Vector pointRight(Float3Vector nearPlanePoint, Float3Vector right, float wNear) {
-        return nearPlanePoint.add(right.mul(wNear / 2f));
-    }
-
 }
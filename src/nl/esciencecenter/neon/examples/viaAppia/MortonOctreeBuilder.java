@@ -0,0 +1,353 @@
+package nl.esciencecenter.neon.examples.viaAppia;
+
+import java.nio.FloatBuffer;
+import java.util.concurrent.RecursiveAction;
+
+import nl.esciencecenter.neon.math.Float3Vector;
+import nl.esciencecenter.neon.util.Settings;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/* Copyright 2013 Netherlands eScience Center
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License")
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/**
+ * Bulk builder for an {@link OctreeNode} tree. Instead of pushing points down
+ * the tree one at a time (and redistributing them whenever a node overflows),
+ * all points are collected first. Every point then gets a 63-bit Morton key
+ * (21 bits per axis, interleaved as xyz) relative to the root cube, the keys
+ * are sorted with a parallel LSD radix sort, and the tree is built in a single
+ * pass over the sorted keys, where every node covers a contiguous range of
+ * keys that share the node's prefix.
+ * 
+ * The resulting tree follows the same rules as the incremental build: points
+ * on or outside the root's boundaries are dropped, a node becomes a leaf if it
+ * holds no more than {@link OctreeNode#maxElements} + 1 points (the incremental
+ * build only subdivides when a point is added to a node that is already over
+ * its limit), and nodes are never subdivided beyond
+ * {@link Settings#getMaxOctreeDepth()}. Empty octants get no child node.
+ * 
+ * @author Maarten van Meersbergen <m.van.meersbergen@esciencecenter.nl>
+ */
+public class MortonOctreeBuilder {
+    private final static Logger    logger            = LoggerFactory.getLogger(MortonOctreeBuilder.class);
+
+    /** The number of bits in the key for every axis. */
+    public static final int        BITS_PER_AXIS     = 21;
+    private static final long      AXIS_MASK         = (1L << BITS_PER_AXIS) - 1L;
+
+    private static final int       RADIX_BITS        = 11;
+    private static final int       RADIX             = 1 << RADIX_BITS;
+    private static final int       MIN_BLOCK_SIZE    = 64 * 1024;
+    private static final int       BLOCKS_PER_THREAD = 4;
+
+    private static final int       PHASE_KEYS        = 0;
+    private static final int       PHASE_HISTOGRAM   = 1;
+    private static final int       PHASE_SCATTER     = 2;
+
+    private final Float3Vector     corner;
+    private final float            ribSize;
+    private final double           keyScale;
+
+    private final OctreePointStore points;
+    private int                    pointsDropped     = 0;
+
+    /** Sorting state, only valid during {@link #build()}. */
+    private long[]                 keys, tmpKeys;
+    private int[]                  order, tmpOrder;
+    private int[][]                counts;
+    private int                    numBlocks, blockSize, shift;
+
+    /**
+     * Constructor for a builder with the same domain as an {@link OctreeNode}
+     * root with the given corner and rib size.
+     * 
+     * @param corner
+     *            The corner location for the lower X, Y, Z values of the root
+     *            cube.
+     * @param ribSize
+     *            The rib size of the root cube.
+     * @param capacity
+     *            The expected number of points, to avoid resizing.
+     */
+    public MortonOctreeBuilder(Float3Vector corner, float ribSize, int capacity) {
+        this.corner = corner;
+        this.ribSize = ribSize;
+        this.keyScale = (1L << BITS_PER_AXIS) / (double) ribSize;
+        this.points = new OctreePointStore(capacity);
+    }
+
+    /**
+     * Add a single point to the builder. Points outside of the root's domain
+     * are dropped, like {@link OctreeNode#addPoint} does.
+     * 
+     * @param x
+     *            The X coordinate of the point.
+     * @param y
+     *            The Y coordinate of the point.
+     * @param z
+     *            The Z coordinate of the point.
+     * @param r
+     *            The red component of the point's color.
+     * @param g
+     *            The green component of the point's color.
+     * @param b
+     *            The blue component of the point's color.
+     */
+    public void addPoint(float x, float y, float z, float r, float g, float b) {
+        if (x > corner.getX() && y > corner.getY() && z > corner.getZ() && x < corner.getX() + ribSize
+                && y < corner.getY() + ribSize && z < corner.getZ() + ribSize) {
+            points.add(x, y, z, r, g, b);
+        } else {
+            pointsDropped++;
+        }
+    }
+
+    /**
+     * Add a block of decoded points to the builder, as produced by
+     * {@link nl.esciencecenter.neon.examples.viaAppia.las.LASFile#decodePoints}.
+     * 
+     * @param vertices
+     *            The XYZ coordinates of the points.
+     * @param vertexColors
+     *            The RGB colors of the points, or null to make all points
+     *            white.
+     * @param numPoints
+     *            The number of points in the buffers.
+     */
+    public void addPoints(FloatBuffer vertices, FloatBuffer vertexColors, int numPoints) {
+        for (int i = 0; i < numPoints * 3; i += 3) {
+            if (vertexColors != null) {
+                addPoint(vertices.get(i), vertices.get(i + 1), vertices.get(i + 2), vertexColors.get(i),
+                        vertexColors.get(i + 1), vertexColors.get(i + 2));
+            } else {
+                addPoint(vertices.get(i), vertices.get(i + 1), vertices.get(i + 2), 1f, 1f, 1f);
+            }
+        }
+    }
+
+    /**
+     * Sorts all points added so far and builds the tree from them.
+     * 
+     * @return The root of the new tree, ready for
+     *         {@link OctreeNode#finalizeAdding}.
+     */
+    public OctreeNode build() {
+        if (pointsDropped > 0) {
+            logger.warn(pointsDropped + " points were not within governed domain of the octree and were dropped.");
+        }
+
+        int n = points.size();
+        int parallelism = Math.max(1, ViaAppiaSettings.getInstance().getDecodeParallelism());
+
+        numBlocks = (int) Math.max(1, Math.min(parallelism * BLOCKS_PER_THREAD, n / MIN_BLOCK_SIZE));
+        blockSize = (n + numBlocks - 1) / Math.max(1, numBlocks);
+
+        keys = new long[n];
+        tmpKeys = new long[n];
+        order = new int[n];
+        tmpOrder = new int[n];
+        counts = new int[numBlocks][RADIX];
+
+        SharedForkJoinPool.submit(parallelism, new BlockTask(PHASE_KEYS, 0, numBlocks)).join();
+
+        for (shift = 0; shift < BITS_PER_AXIS * 3; shift += RADIX_BITS) {
+            SharedForkJoinPool.submit(parallelism, new BlockTask(PHASE_HISTOGRAM, 0, numBlocks)).join();
+
+            // Turn the per-block histograms into per-block write offsets,
+            // keeping the blocks in order so the sort stays stable. A pass in
+            // which all keys share the same digit can be skipped.
+            boolean allSame = false;
+            int offset = 0;
+            for (int digit = 0; digit < RADIX; digit++) {
+                int digitTotal = 0;
+                for (int block = 0; block < numBlocks; block++) {
+                    int count = counts[block][digit];
+                    counts[block][digit] = offset;
+                    offset += count;
+                    digitTotal += count;
+                }
+                if (digitTotal == n) {
+                    allSame = true;
+                }
+            }
+
+            if (!allSame) {
+                SharedForkJoinPool.submit(parallelism, new BlockTask(PHASE_SCATTER, 0, numBlocks)).join();
+
+                long[] swapKeys = keys;
+                keys = tmpKeys;
+                tmpKeys = swapKeys;
+
+                int[] swapOrder = order;
+                order = tmpOrder;
+                tmpOrder = swapOrder;
+            }
+        }
+        tmpKeys = null;
+        tmpOrder = null;
+        counts = null;
+
+        OctreeNode root = buildNode(corner, ribSize, 0, 0, n);
+
+        keys = null;
+        order = null;
+
+        return root;
+    }
+
+    private OctreeNode buildNode(Float3Vector nodeCorner, float nodeRibSize, int depth, int from, int to) {
+        OctreeNode node = new OctreeNode(depth, nodeCorner, nodeRibSize);
+        int count = to - from;
+
+        boolean maxDepthReached = depth >= Settings.getInstance().getMaxOctreeDepth() || depth >= BITS_PER_AXIS;
+        boolean full = depth < OctreeNode.minDivision || count > OctreeNode.maxElements + 1;
+
+        if (full && maxDepthReached) {
+            logger.warn("Octree max division reached.");
+        }
+
+        if (!full || maxDepthReached) {
+            OctreePointStore leafPoints = new OctreePointStore(count);
+            for (int i = from; i < to; i++) {
+                int index = order[i];
+                leafPoints.add(points.getX(index), points.getY(index), points.getZ(index), points.getR(index),
+                        points.getG(index), points.getB(index));
+            }
+            node.setPoints(leafPoints);
+        } else {
+            float childRibSize = nodeRibSize / 2f;
+            Float3Vector center = node.getCenter();
+            int octantShift = 3 * (BITS_PER_AXIS - 1 - depth);
+
+            OctreeNode[] children = new OctreeNode[8];
+            int start = from;
+            for (int octant = 0; octant < 8 && start < to; octant++) {
+                // The keys in this range share the prefix of this node, so the
+                // next 3 bits are sorted as well and we can bisect on them.
+                int low = start;
+                int high = to;
+                while (low < high) {
+                    int middle = (low + high) >>> 1;
+                    if (((keys[middle] >>> octantShift) & 7L) <= octant) {
+                        low = middle + 1;
+                    } else {
+                        high = middle;
+                    }
+                }
+
+                if (low > start) {
+                    Float3Vector childCorner = center.add(new Float3Vector((octant & 4) != 0 ? 0f : -childRibSize,
+                            (octant & 2) != 0 ? 0f : -childRibSize, (octant & 1) != 0 ? 0f : -childRibSize));
+                    children[octant] = buildNode(childCorner, childRibSize, depth + 1, start, low);
+                }
+                start = low;
+            }
+            node.setChildren(children);
+        }
+
+        return node;
+    }
+
+    private void processBlock(int phase, int block) {
+        int from = block * blockSize;
+        int to = Math.min(keys.length, from + blockSize);
+
+        if (phase == PHASE_KEYS) {
+            for (int i = from; i < to; i++) {
+                keys[i] = mortonKey(points.getX(i), points.getY(i), points.getZ(i));
+                order[i] = i;
+            }
+        } else if (phase == PHASE_HISTOGRAM) {
+            int[] blockCounts = counts[block];
+            for (int digit = 0; digit < RADIX; digit++) {
+                blockCounts[digit] = 0;
+            }
+            for (int i = from; i < to; i++) {
+                blockCounts[(int) ((keys[i] >>> shift) & (RADIX - 1))]++;
+            }
+        } else if (phase == PHASE_SCATTER) {
+            int[] blockOffsets = counts[block];
+            for (int i = from; i < to; i++) {
+                int destination = blockOffsets[(int) ((keys[i] >>> shift) & (RADIX - 1))]++;
+                tmpKeys[destination] = keys[i];
+                tmpOrder[destination] = order[i];
+            }
+        }
+    }
+
+    private class BlockTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final int         phase;
+        private final int         fromBlock, toBlock;
+
+        public BlockTask(int phase, int fromBlock, int toBlock) {
+            this.phase = phase;
+            this.fromBlock = fromBlock;
+            this.toBlock = toBlock;
+        }
+
+        @Override
+        protected void compute() {
+            if (toBlock - fromBlock == 1) {
+                processBlock(phase, fromBlock);
+            } else {
+                int middle = (fromBlock + toBlock) >>> 1;
+                invokeAll(new BlockTask(phase, fromBlock, middle), new BlockTask(phase, middle, toBlock));
+            }
+        }
+    }
+
+    /**
+     * Computes the Morton key of a location inside the root cube.
+     * 
+     * @return The 63-bit key, with the bits of x, y and z interleaved from the
+     *         most significant bit down.
+     */
+    private long mortonKey(float x, float y, float z) {
+        return (spreadBits(quantize(x - corner.getX())) << 2) | (spreadBits(quantize(y - corner.getY())) << 1)
+                | spreadBits(quantize(z - corner.getZ()));
+    }
+
+    private long quantize(float offset) {
+        long result = (long) (offset * keyScale);
+        if (result < 0L) {
+            return 0L;
+        } else if (result > AXIS_MASK) {
+            return AXIS_MASK;
+        }
+        return result;
+    }
+
+    /**
+     * Spreads the lower 21 bits of the given value so there are two zero bits
+     * between every bit.
+     */
+    private static long spreadBits(long value) {
+        long result = value & AXIS_MASK;
+        result = (result | (result << 32)) & 0x1f00000000ffffL;
+        result = (result | (result << 16)) & 0x1f0000ff0000ffL;
+        result = (result | (result << 8)) & 0x100f00f00f00f00fL;
+        result = (result | (result << 4)) & 0x10c30c30c30c30c3L;
+        result = (result | (result << 2)) & 0x1249249249249249L;
+        return result;
+    }
+
+    public int getNumPoints() {
+        return points.size();
+    }
+}
@@ -0,0 +1,318 @@
+package nl.esciencecenter.neon.examples.viaAppia;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.FloatBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import javax.media.opengl.GL3;
+
+import nl.esciencecenter.neon.examples.viaAppia.las.BoundingBox;
+import nl.esciencecenter.neon.examples.viaAppia.las.LASDataset;
+import nl.esciencecenter.neon.examples.viaAppia.las.LASFile;
+import nl.esciencecenter.neon.examples.viaAppia.las.LASMappedReader;
+import nl.esciencecenter.neon.examples.viaAppia.las.LASPublicHeader;
+import nl.esciencecenter.neon.math.Float3Vector;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/* Copyright 2013 Netherlands eScience Center
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License")
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/**
+ * Loads point cloud files in the background. Reading the headers, decoding
+ * the points and building the octree all happen on worker threads; the GL
+ * thread only calls {@link #update(GL3, List, long)} once per frame, which
+ * hands over the roots of finished octrees and uploads the vertex buffers of
+ * prepared nodes until the frame's upload budget is spent. Every LAS file is
+ * built into an octree of its own, which is handed over as soon as that file
+ * is done. The viewer thus stays responsive, and shows the data progressively
+ * while it is loading.
+ * 
+ * @author Maarten van Meersbergen <m.van.meersbergen@esciencecenter.nl>
+ */
+public class OctreeLoader {
+    private final static Logger    logger   = LoggerFactory.getLogger(OctreeLoader.class);
+
+    private final ViaAppiaSettings settings = ViaAppiaSettings.getInstance();
+
+    private final ExecutorService  executor;
+    /** The most recent load, only accessed from the GL thread. */
+    private LoadJob                current;
+
+    /**
+     * A single call to {@link OctreeLoader#load(File[])}. Everything it
+     * produces is handed to the GL thread through its queues, and simply
+     * dropped once a newer load replaces it.
+     */
+    private class LoadJob implements Runnable {
+        private final File[]             files;
+        private final Queue<OctreeNode>  roots         = new ConcurrentLinkedQueue<OctreeNode>();
+        private final Queue<OctreeNode>  uploads       = new ConcurrentLinkedQueue<OctreeNode>();
+        private final List<PackedOctree> packedOctrees = new ArrayList<PackedOctree>();
+
+        private volatile boolean         cancelled     = false;
+        private volatile boolean         colorless     = false;
+
+        public LoadJob(File[] files) {
+            this.files = files;
+        }
+
+        @Override
+        public void run() {
+            try {
+                load();
+            } catch (RuntimeException e) {
+                logger.error("Loading failed: " + e.getMessage());
+                e.printStackTrace();
+            }
+        }
+
+        private void load() {
+            List<File> dataFiles = new ArrayList<File>();
+
+            for (File dataFile : files) {
+                if (cancelled) {
+                    return;
+                }
+
+                if (dataFile != null && dataFile.exists()) {
+                    // Packed octrees only have their index read here, their
+                    // points are loaded from the mapped data files as their
+                    // nodes are drawn.
+                    if (dataFile.getName().endsWith(PackedOctree.INDEX_EXTENSION)) {
+                        try {
+                            PackedOctree packedOctree = PackedOctree.open(dataFile, OctreeLoader.this);
+                            if (addPackedOctree(packedOctree)) {
+                                roots.add(packedOctree.getRoot());
+                                System.out.println("Nodes in packed octree: " + packedOctree.getNumNodes());
+                            }
+                        } catch (IOException e) {
+                            logger.error("Skipping packed octree " + dataFile + ": " + e.getMessage());
+                        }
+                        continue;
+                    }
+
+                    dataFiles.add(dataFile);
+                }
+            }
+
+            if (dataFiles.isEmpty() || cancelled) {
+                System.out.println("init complete");
+                return;
+            }
+
+            LASDataset dataset = LASDataset.open(dataFiles.toArray(new File[dataFiles.size()]));
+            if (dataset.isEmpty()) {
+                System.out.println("init complete");
+                return;
+            }
+            System.out.println(dataset);
+
+            colorless = !dataset.isColorDataIncluded();
+
+            BoundingBox overallBoundingBox = dataset.getBoundingBox();
+            long totalRecords = dataset.getTotalRecords();
+
+            double frac = ((double) totalRecords / settings.getMaxLoadedPoints()) - 1.0;
+            int skip;
+
+            if (frac < 0.0) {
+                skip = 0;
+            } else {
+                skip = (int) Math.ceil(frac);
+            }
+
+            System.out.println("Number of records: " + totalRecords);
+            System.out.println("Skipping         : " + skip);
+
+            // Every file gets its own octree, built in bulk from its
+            // Morton-sorted points, and handed over as soon as it is done, so
+            // the first files are shown while the others are still loading.
+            // All trees share the root cube of the overall bounding box.
+            for (LASFile lasFile : dataset.getLASFiles()) {
+                if (cancelled) {
+                    return;
+                }
+
+                LASPublicHeader header = lasFile.getPublicHeader();
+
+                MortonOctreeBuilder builder;
+                try {
+                    int numPoints = LASMappedReader.numSelectedPoints(header.getPointRecordCount(), skip);
+
+                    FloatBuffer vertices = FloatBuffer.allocate(numPoints * 3);
+                    FloatBuffer vertexColors = null;
+                    if (LASDataset.hasColor(header.getPointDataFormatID())) {
+                        vertexColors = FloatBuffer.allocate(numPoints * 3);
+                    }
+
+                    numPoints = lasFile.decodePoints(overallBoundingBox, skip, vertices, vertexColors);
+
+                    builder = new MortonOctreeBuilder(new Float3Vector(-1f, -1f, -1f), 2f, numPoints);
+                    builder.addPoints(vertices, vertexColors, numPoints);
+                } catch (IOException e) {
+                    logger.error("Skipping " + lasFile.getDataFile() + ": " + e.getMessage());
+                    continue;
+                }
+
+                if (cancelled) {
+                    return;
+                }
+
+                // Hand over the root right away, its nodes become visible one
+                // by one as their buffers are uploaded.
+                OctreeNode root = builder.build();
+                roots.add(root);
+                root.prepareBuffers(uploads);
+                System.out.println("Leaves in octree: " + root.getNumLeaves());
+            }
+
+            System.out.println("init complete");
+        }
+
+        private synchronized boolean addPackedOctree(PackedOctree packedOctree) {
+            if (cancelled) {
+                closeQuietly(packedOctree);
+                return false;
+            }
+            packedOctrees.add(packedOctree);
+            return true;
+        }
+
+        public synchronized void cancel() {
+            cancelled = true;
+            for (PackedOctree packedOctree : packedOctrees) {
+                closeQuietly(packedOctree);
+            }
+            packedOctrees.clear();
+        }
+    }
+
+    /**
+     * Constructor for a loader with
+     * {@link ViaAppiaSettings#getDecodeParallelism()} worker threads. The
+     * workers are daemon threads, so they do not keep the application alive.
+     */
+    public OctreeLoader() {
+        executor = Executors.newFixedThreadPool(Math.max(1, settings.getDecodeParallelism()), new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "OctreeLoader");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * Starts loading a new set of files in the background, abandoning any
+     * load that is still in progress. Must be called from the GL thread.
+     * 
+     * @param files
+     *            The LAS files and packed octree index files to load.
+     */
+    public void load(File[] files) {
+        if (current != null) {
+            current.cancel();
+        }
+
+        current = new LoadJob(files);
+        executor.execute(current);
+    }
+
+    /**
+     * Queues a packed octree node to have its points read by a worker thread.
+     * They are uploaded by a later call to {@link #update(GL3, List, long)}.
+     * Must be called from the GL thread.
+     * 
+     * @param node
+     *            The node to load.
+     */
+    public void prepare(final PackedOctreeNode node) {
+        if (current == null) {
+            return;
+        }
+
+        final Queue<OctreeNode> uploads = current.uploads;
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                node.prepareBuffers(uploads);
+            }
+        });
+    }
+
+    /**
+     * Hands the results of the current load over to the GL thread. New octree
+     * roots are added to the given list, and prepared nodes are uploaded until
+     * the time budget is spent. At least one node is uploaded per call, so
+     * loading always progresses.
+     * 
+     * @param gl
+     *            the current GL instance.
+     * @param roots
+     *            The list of octrees being drawn, which new roots are added
+     *            to.
+     * @param budgetNanos
+     *            The time that may be spent on uploading, in nanoseconds.
+     */
+    public void update(GL3 gl, List<OctreeNode> roots, long budgetNanos) {
+        if (current == null) {
+            return;
+        }
+
+        OctreeNode root = current.roots.poll();
+        while (root != null) {
+            roots.add(root);
+            root = current.roots.poll();
+        }
+
+        long start = System.nanoTime();
+        OctreeNode node = current.uploads.poll();
+        while (node != null) {
+            node.upload(gl);
+
+            if (System.nanoTime() - start >= budgetNanos) {
+                break;
+            }
+            node = current.uploads.poll();
+        }
+    }
+
+    /**
+     * Getter for whether the files of the current load lack color data.
+     * 
+     * @return true if at least one of the LAS files has no colors.
+     */
+    public boolean isColorless() {
+        return current != null && current.colorless;
+    }
+
+    private static void closeQuietly(PackedOctree packedOctree) {
+        try {
+            packedOctree.close();
+        } catch (IOException e) {
+            logger.error(e.getMessage());
+        }
+    }
+}
@@ -1,19 +1,19 @@
 package nl.esciencecenter.neon.examples.viaAppia;
 
-import java.nio.FloatBuffer;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Queue;
 
 import javax.media.opengl.GL3;
 
-import nl.esciencecenter.neon.datastructures.GLSLAttribute;
-import nl.esciencecenter.neon.datastructures.VertexBufferObject;
 import nl.esciencecenter.neon.exceptions.UninitializedException;
 import nl.esciencecenter.neon.input.InputHandler;
 import nl.esciencecenter.neon.math.Float3Vector;
 import nl.esciencecenter.neon.math.Float4Matrix;
 import nl.esciencecenter.neon.math.Float4Vector;
 import nl.esciencecenter.neon.math.FloatMatrixMath;
+import nl.esciencecenter.neon.math.FloatVectorMath;
 import nl.esciencecenter.neon.models.Model;
 import nl.esciencecenter.neon.shaders.ShaderProgram;
 import nl.esciencecenter.neon.util.Settings;
@@ -40,6 +40,8 @@ public class OctreeNode {
      */
     protected static final int         maxElements = 1000000;
     protected static final int         minDivision = 0;
+    /** Half the length of the diagonal of a cube with ribs of length 1. */
+    private static final float         HALF_DIAGONAL = 0.8660254f;
     /** The center location for this node. */
     protected final Float3Vector       center;
     /** The size of the ribs of the cube this node represents. */
@@ -50,8 +52,8 @@ public class OctreeNode {
     /** The scale for this node's graphical representation. */
     protected final float              scale;
 
-    /** The stored elements. */
-    protected ArrayList<OctreeElement> elements;
+    /** The stored points. */
+    protected OctreePointStore         points;
     /** The model to be used if this node is drawn. */
     protected Model                    model;
     /** The translation matrix for this node. */
@@ -72,9 +74,25 @@ public class OctreeNode {
     protected float                    minY, maxY;
     protected float                    minZ, maxZ;
 
-    private VertexBufferObject         vbo;
+    private QuantizedVertexBuffer      vbo;
     private int                        numVertices;
 
+    /**
+     * Representative subsample of the points in this node's subtree, only
+     * kept until the parent has built its own subsample from it.
+     */
+    protected OctreePointStore         lodSample;
+    /** The level of detail model for subdivided nodes. */
+    private QuantizedVertexBuffer      lodVbo;
+    private int                        lodNumVertices;
+
+    /**
+     * Host copy of the quantized vertex data prepared by
+     * {@link #prepareBuffers(Queue)}, kept so the model can be uploaded again
+     * after the {@link VboCache} has evicted it.
+     */
+    private QuantizedVertexData        hostVertexData;
+
     /**
      * Basic constructor for OctreeNode
      * 
@@ -99,7 +117,7 @@ public class OctreeNode {
         this.childRibSize = ribSize / 2f;
         this.TMatrix = FloatMatrixMath.translate(center);
         this.scale = ribSize / 2f;
-        this.elements = new ArrayList<OctreeElement>();
+        this.points = new OctreePointStore();
     }
 
     /**
@@ -123,7 +141,7 @@ public class OctreeNode {
         this.childRibSize = ribSize / 2f;
         this.TMatrix = FloatMatrixMath.translate(center);
         this.scale = ribSize / 2f;
-        this.elements = new ArrayList<OctreeElement>();
+        this.points = new OctreePointStore();
     }
 
     /**
@@ -156,34 +174,73 @@ public class OctreeNode {
         // center.add(new Float3Vector(-childRibSize, -childRibSize,
         // -childRibSize)), childRibSize);
 
-        for (OctreeElement element : elements) {
-            addElementSubdivided(element);
+        for (int i = 0; i < points.size(); i++) {
+            addPointSubdivided(points.getX(i), points.getY(i), points.getZ(i), points.getR(i), points.getG(i),
+                    points.getB(i));
         }
 
         // this.model = null;
         this.TMatrix = null;
-        this.elements = null;
+        this.points = null;
+
+        subdivided = true;
+    }
+
+    /**
+     * Turns this node into a subdivided node with the given children, used by
+     * the {@link MortonOctreeBuilder} to build a tree in bulk.
+     * 
+     * @param children
+     *            The children of this node in octant order: the index bits are
+     *            set for the positive X, Y and Z halves respectively (so 0 is
+     *            nnn and 7 is ppp). Empty octants are null.
+     */
+    void setChildren(OctreeNode[] children) {
+        nnn = children[0];
+        nnp = children[1];
+        npn = children[2];
+        npp = children[3];
+        pnn = children[4];
+        pnp = children[5];
+        ppn = children[6];
+        ppp = children[7];
+
+        this.TMatrix = null;
+        this.points = null;
 
         subdivided = true;
     }
 
+    /**
+     * Replaces the points of this (leaf) node, used by the
+     * {@link MortonOctreeBuilder} to build a tree in bulk.
+     * 
+     * @param points
+     *            The points for this node.
+     */
+    void setPoints(OctreePointStore points) {
+        this.points = points;
+    }
+
     /**
      * Helper method to determine if the given location falls within the domain
      * of this node. Only needed for the root, to make sure no outside elements
      * are caught.
      * 
-     * @param location
-     *            The location to check.
+     * @param x
+     *            The X coordinate of the location to check.
+     * @param y
+     *            The Y coordinate of the location to check.
+     * @param z
+     *            The Z coordinate of the location to check.
      * @return true if the location falls inside the domain of this node.
      */
-    private boolean isInThisNodesSpace(Float3Vector location) {
+    private boolean isInThisNodesSpace(float x, float y, float z) {
         float halfRibSize = ribSize * 0.5f;
 
-        if ((location.getX() > (center.getX() - halfRibSize)) && (location.getY() > (center.getY() - halfRibSize))
-                && (location.getZ() > (center.getZ() - halfRibSize))
-                && (location.getX() < (center.getX() + halfRibSize))
-                && (location.getY() < (center.getY() + halfRibSize))
-                && (location.getZ() < (center.getZ() + halfRibSize))) {
+        if ((x > (center.getX() - halfRibSize)) && (y > (center.getY() - halfRibSize))
+                && (z > (center.getZ() - halfRibSize)) && (x < (center.getX() + halfRibSize))
+                && (y < (center.getY() + halfRibSize)) && (z < (center.getZ() + halfRibSize))) {
             return true;
         } else {
             return false;
@@ -198,15 +255,38 @@ public class OctreeNode {
      */
     public void addElement(OctreeElement element) {
         Float3Vector location = element.getCenter();
+        Float3Vector elementColor = element.getColor();
+
+        addPoint(location.getX(), location.getY(), location.getZ(), elementColor.getX(), elementColor.getY(),
+                elementColor.getZ());
+    }
 
-        // If this is the root, check if the location of the element is within
+    /**
+     * Add a single point to this node, without the need to create an
+     * {@link OctreeElement} for it.
+     * 
+     * @param x
+     *            The X coordinate of the point.
+     * @param y
+     *            The Y coordinate of the point.
+     * @param z
+     *            The Z coordinate of the point.
+     * @param r
+     *            The red component of the point's color.
+     * @param g
+     *            The green component of the point's color.
+     * @param b
+     *            The blue component of the point's color.
+     */
+    public void addPoint(float x, float y, float z, float r, float g, float b) {
+        // If this is the root, check if the location of the point is within
         // the domain governed by this octree.
-        if (depth > 0 || isInThisNodesSpace(location)) {
+        if (depth > 0 || isInThisNodesSpace(x, y, z)) {
             // Check if we are full yet.
             if (!subdivided) {
                 if (depth < minDivision) {
                     subdivide();
-                } else if (elements.size() > maxElements) {
+                } else if (points.size() > maxElements) {
                     if (depth < Settings.getInstance().getMaxOctreeDepth()) {
                         // If so, subdivide this node.
                         subdivide();
@@ -220,13 +300,13 @@ public class OctreeNode {
 
             // If this node was already divided, we delegate.
             if (subdivided) {
-                addElementSubdivided(element);
+                addPointSubdivided(x, y, z, r, g, b);
             } else {
-                elements.add(element);
+                points.add(x, y, z, r, g, b);
             }
         } else {
-            logger.warn("OctreeElement added that is not within governed domain of this OctreeNode.");
-            logger.warn("OctreeElement center at:" + location);
+            logger.warn("Point added that is not within governed domain of this OctreeNode.");
+            logger.warn("Point at: " + x + ", " + y + ", " + z);
             logger.warn("OctreeNode center at:" + center);
         }
     }
@@ -237,32 +317,54 @@ public class OctreeNode {
      * ATTENTION: This is a placeholder, and currently sets the color to
      * transparent white based on population density compared to
      * {@link #maxElements}. Override this.
+     * 
+     * @param gl
+     *            the current GL instance.
      */
     public void finalizeAdding(GL3 gl) {
+        Queue<OctreeNode> prepared = new ArrayDeque<OctreeNode>();
+        prepareBuffers(prepared);
+
+        for (OctreeNode node : prepared) {
+            node.upload(gl);
+        }
+    }
+
+    /**
+     * First stage of {@link #finalizeAdding(GL3)}, which does all of the work
+     * that does not need OpenGL, so it can be done on a worker thread. The
+     * children are prepared before their parent, because the parent's level of
+     * detail subsample is built from theirs.
+     * 
+     * @param prepared
+     *            Receives every node that has vertex data waiting for
+     *            {@link #upload(GL3)}, in the order they were prepared.
+     */
+    public void prepareBuffers(Queue<OctreeNode> prepared) {
         if (subdivided) {
             if (ppp != null) {
-                ppp.finalizeAdding(gl);
+                ppp.prepareBuffers(prepared);
             }
             if (ppn != null) {
-                ppn.finalizeAdding(gl);
+                ppn.prepareBuffers(prepared);
             }
             if (pnp != null) {
-                pnp.finalizeAdding(gl);
+                pnp.prepareBuffers(prepared);
             }
             if (pnn != null) {
-                pnn.finalizeAdding(gl);
+                pnn.prepareBuffers(prepared);
             }
             if (npp != null) {
-                npp.finalizeAdding(gl);
+                npp.prepareBuffers(prepared);
             }
             if (npn != null) {
-                npn.finalizeAdding(gl);
+                npn.prepareBuffers(prepared);
             }
             if (nnp != null) {
-                nnp.finalizeAdding(gl);
+                nnp.prepareBuffers(prepared);
             }
             if (nnn != null) {
-                nnn.finalizeAdding(gl);
+                nnn.prepareBuffers(prepared);
             }
 
             // numPoints += ppp.getNumPoints();
@@ -290,9 +392,21 @@ public class OctreeNode {
             // color = new Float4Vector(protoColor.getX(), protoColor.getY(),
             // protoColor.getZ(), 1f);
 
-            drawable = true;
+            // Build this node's level of detail model out of the subsamples of
+            // its children, which are no longer needed afterwards.
+            lodSample = buildLodSample();
+            if (lodSample.size() > 0) {
+                setHostBuffers(lodSample);
+            }
+
+            for (OctreeNode child : getChildren()) {
+                if (child != null) {
+                    child.lodSample = null;
+                }
+            }
+
         } else {
-            if (elements.size() > 0) {
+            if (points.size() > 0) {
                 // if (elements.size() > 2 *
                 // (Settings.getInstance().getMaxOctreeDepth() - depth)) {
                 // Float3Vector protoColor = new Float3Vector(0f, 0f, 0f);
@@ -304,41 +418,185 @@ public class OctreeNode {
                 // color = new Float4Vector(protoColor.getX(),
                 // protoColor.getY(), protoColor.getZ(), 1f);
 
-                numPoints = elements.size();
+                numPoints = points.size();
+
+                setHostBuffers(points);
+            }
+            // }
+
+            // For leaves, the subsample is simply all of their points.
+            lodSample = points;
+        }
 
-                FloatBuffer verticesBuffer = FloatBuffer.allocate(numPoints * 3);
-                FloatBuffer vertexColorsBuffer = FloatBuffer.allocate(numPoints * 3);
+        points = null;
 
-                for (OctreeElement element : elements) {
-                    Float3Vector location = element.getCenter();
-                    Float3Vector color = element.getColor();
-                    // WRITE DATA XYZ
-                    verticesBuffer.put(location.getX());
-                    verticesBuffer.put(location.getY());
-                    verticesBuffer.put(location.getZ());
+        // The root has no parent to hand its subsample to.
+        if (depth == 0) {
+            lodSample = null;
+        }
 
-                    // RGB
-                    vertexColorsBuffer.put(color.getX());
-                    vertexColorsBuffer.put(color.getY());
-                    vertexColorsBuffer.put(color.getZ());
-                }
+        if (hostVertexData != null) {
+            prepared.add(this);
+        }
+    }
+
+    /**
+     * Quantizes the given points, relative to the bounds of this node, into
+     * the host buffer that is uploaded by {@link #upload(GL3)}.
+     * 
+     * @param store
+     *            The points this node should draw.
+     */
+    protected void setHostBuffers(OctreePointStore store) {
+        float halfRib = ribSize * 0.5f;
+        hostVertexData = QuantizedVertexData.quantize(store, center.getX() - halfRib, center.getY() - halfRib,
+                center.getZ() - halfRib, ribSize, ViaAppiaSettings.getInstance().isInterleavedVertices());
+    }
 
-                verticesBuffer.flip();
-                vertexColorsBuffer.flip();
+    /**
+     * Drops the host buffers, for nodes that can get their points back from
+     * elsewhere once they are evicted.
+     */
+    protected void releaseHostBuffers() {
+        hostVertexData = null;
+    }
 
-                GLSLAttribute vertices = new GLSLAttribute(verticesBuffer, "MCvertex", GLSLAttribute.SIZE_FLOAT, 3);
-                GLSLAttribute vertexColors = new GLSLAttribute(vertexColorsBuffer, "MCvertexColor",
-                        GLSLAttribute.SIZE_FLOAT, 3);
+    /**
+     * Second stage of {@link #finalizeAdding(GL3)}, which turns the buffers
+     * prepared by {@link #prepareBuffers(Queue)} into this node's model. Must
+     * be called on the thread that owns the GL context.
+     * 
+     * @param gl
+     *            the current GL instance.
+     */
+    public void upload(GL3 gl) {
+        if (hostVertexData == null || isResident()) {
+            return;
+        }
+
+        QuantizedVertexBuffer result = new QuantizedVertexBuffer(gl, hostVertexData);
+        if (subdivided) {
+            lodVbo = result;
+            lodNumVertices = result.getNumVertices();
+        } else {
+            vbo = result;
+            numVertices = result.getNumVertices();
+        }
+        drawable = true;
+
+        VboCache.getInstance().add(gl, this, result.getSize());
+    }
+
+    /**
+     * Deletes this node's model from the GPU, called by the {@link VboCache}
+     * to stay within its budget. The node keeps its point count, and uploads
+     * its model again with {@link #reload(GL3)} when it is drawn.
+     * 
+     * @param gl
+     *            the current GL instance.
+     */
+    public void evict(GL3 gl) {
+        if (lodVbo != null) {
+            lodVbo.delete(gl);
+            lodVbo = null;
+        }
+        if (vbo != null) {
+            vbo.delete(gl);
+            vbo = null;
+        }
+    }
+
+    /**
+     * Called when this node is drawn while its model was evicted from the
+     * GPU; uploads it again from the host buffers.
+     * 
+     * @param gl
+     *            the current GL instance.
+     */
+    protected void reload(GL3 gl) {
+        if (hostVertexData != null) {
+            VboCache.getInstance().miss();
+            upload(gl);
+        }
+    }
 
-                vbo = new VertexBufferObject(gl, vertices, vertexColors);
-                numVertices = numPoints;
+    /**
+     * Helper method to determine if this node's own model is on the GPU.
+     * 
+     * @return true if the model can be drawn right away.
+     */
+    protected boolean isResident() {
+        return subdivided ? lodVbo != null : vbo != null;
+    }
 
-                drawable = true;
+    /**
+     * Builds a representative subsample of this node's subtree out of the
+     * subsamples of its children, by laying a regular grid of
+     * {@link ViaAppiaSettings#getLodGridSize()} cells per rib over this node
+     * and keeping only the first point that falls in each cell.
+     * 
+     * @return The subsample for this node.
+     */
+    private OctreePointStore buildLodSample() {
+        List<OctreePointStore> samples = new ArrayList<OctreePointStore>(8);
+        for (OctreeNode child : getChildren()) {
+            if (child != null && child.lodSample != null) {
+                samples.add(child.lodSample);
             }
-            // }
         }
 
-        elements = null;
+        float halfRib = ribSize * 0.5f;
+        int gridSize = ViaAppiaSettings.getInstance().getLodGridSize();
+        return OctreePointStore.gridSubsample(samples, center.getX() - halfRib, center.getY() - halfRib,
+                center.getZ() - halfRib, ribSize, gridSize);
+    }
+
+    /**
+     * Helper method to determine if this node is far enough away from the
+     * camera to be drawn from its subsample instead of its children.
+     * 
+     * @param cameraPosition
+     *            The camera position, in the model space of the octree.
+     * @return true if the subsample is detailed enough.
+     */
+    private boolean isLodSufficient(Float3Vector cameraPosition) {
+        return getProjectedSize(cameraPosition) < ViaAppiaSettings.getInstance().getLodThreshold();
+    }
+
+    /**
+     * Estimates the size of this node on screen, as its rib size divided by
+     * the distance from the camera to its bounding sphere.
+     * 
+     * @param cameraPosition
+     *            The camera position, in the model space of the octree.
+     * @return The projected size, or {@link Float#POSITIVE_INFINITY} if the
+     *         camera is (nearly) inside this node.
+     */
+    protected float getProjectedSize(Float3Vector cameraPosition) {
+        // Measure to the bounding sphere, so a node is never coarsened while
+        // the camera is (nearly) inside of it.
+        float distance = FloatVectorMath.length(center.sub(cameraPosition)) - (ribSize * HALF_DIAGONAL);
+
+        if (distance <= 0f) {
+            return Float.POSITIVE_INFINITY;
+        }
+        return ribSize / distance;
+    }
+
+    /**
+     * Getter for the number of points drawn by
+     * {@link #drawRepresentation(GL3, ShaderProgram)}; the level of detail
+     * subsample for subdivided nodes, and all points for leaves.
+     * 
+     * @return the number of points in this node's own model.
+     */
+    protected int getNumRepresentationPoints() {
+        // Evicted nodes still count, they are uploaded again when drawn.
+        return subdivided ? lodNumVertices : numVertices;
+    }
+
+    protected OctreeNode[] getChildren() {
+        return new OctreeNode[] { ppp, ppn, pnp, pnn, npp, npn, nnp, nnn };
     }
 
     protected int getNumLeaves() {
@@ -544,6 +802,14 @@ public class OctreeNode {
         return center;
     }
 
+    protected float getRibSize() {
+        return ribSize;
+    }
+
+    protected boolean isSubdivided() {
+        return subdivided;
+    }
+
     protected int getNumPoints() {
         return numPoints;
     }
@@ -556,64 +822,87 @@ public class OctreeNode {
      */
     public void addElementSubdivided(OctreeElement element) {
         Float3Vector location = element.getCenter();
-        if (location.getX() < center.getX()) {
-            if (location.getY() < center.getY()) {
-                if (location.getZ() < center.getZ()) {
+        Float3Vector elementColor = element.getColor();
+
+        addPointSubdivided(location.getX(), location.getY(), location.getZ(), elementColor.getX(),
+                elementColor.getY(), elementColor.getZ());
+    }
+
+    /**
+     * Add a single point to the proper child.
+     * 
+     * @param x
+     *            The X coordinate of the point.
+     * @param y
+     *            The Y coordinate of the point.
+     * @param z
+     *            The Z coordinate of the point.
+     * @param r
+     *            The red component of the point's color.
+     * @param g
+     *            The green component of the point's color.
+     * @param b
+     *            The blue component of the point's color.
+     */
+    public void addPointSubdivided(float x, float y, float z, float r, float g, float b) {
+        if (x < center.getX()) {
+            if (y < center.getY()) {
+                if (z < center.getZ()) {
                     if (nnn == null) {
                         nnn = new OctreeNode(model, depth + 1, center.add(new Float3Vector(-childRibSize,
                                 -childRibSize, -childRibSize)), childRibSize);
 
                     }
-                    nnn.addElement(element);
+                    nnn.addPoint(x, y, z, r, g, b);
                 } else {
                     if (nnp == null) {
                         nnp = new OctreeNode(model, depth + 1, center.add(new Float3Vector(-childRibSize,
                                 -childRibSize, 0f)), childRibSize);
                     }
-                    nnp.addElement(element);
+                    nnp.addPoint(x, y, z, r, g, b);
                 }
             } else {
-                if (location.getZ() < center.getZ()) {
+                if (z < center.getZ()) {
                     if (npn == null) {
                         npn = new OctreeNode(model, depth + 1, center.add(new Float3Vector(-childRibSize, 0f,
                                 -childRibSize)), childRibSize);
                     }
-                    npn.addElement(element);
+                    npn.addPoint(x, y, z, r, g, b);
                 } else {
                     if (npp == null) {
                         npp = new OctreeNode(model, depth + 1, center.add(new Float3Vector(-childRibSize, 0f, 0f)),
                                 childRibSize);
                     }
-                    npp.addElement(element);
+                    npp.addPoint(x, y, z, r, g, b);
                 }
             }
         } else {
-            if (location.getY() < center.getY()) {
-                if (location.getZ() < center.getZ()) {
+            if (y < center.getY()) {
+                if (z < center.getZ()) {
                     if (pnn == null) {
                         pnn = new OctreeNode(model, depth + 1, center.add(new Float3Vector(0f, -childRibSize,
                                 -childRibSize)), childRibSize);
                     }
-                    pnn.addElement(element);
+                    pnn.addPoint(x, y, z, r, g, b);
                 } else {
                     if (pnp == null) {
                         pnp = new OctreeNode(model, depth + 1, center.add(new Float3Vector(0f, -childRibSize, 0f)),
                                 childRibSize);
                     }
-                    pnp.addElement(element);
+                    pnp.addPoint(x, y, z, r, g, b);
                 }
             } else {
-                if (location.getZ() < center.getZ()) {
+                if (z < center.getZ()) {
                     if (ppn == null) {
                         ppn = new OctreeNode(model, depth + 1, center.add(new Float3Vector(0f, 0f, -childRibSize)),
                                 childRibSize);
                     }
-                    ppn.addElement(element);
+                    ppn.addPoint(x, y, z, r, g, b);
                 } else {
                     if (ppp == null) {
                         ppp = new OctreeNode(model, depth + 1, center.add(new Float3Vector(0f, 0f, 0f)), childRibSize);
                     }
-                    ppp.addElement(element);
+                    ppp.addPoint(x, y, z, r, g, b);
                 }
             }
         }
@@ -627,43 +916,107 @@ public class OctreeNode {
      * @param program
      *            The ShaderProgram to use in the drawing process.
      * @param cameraPosition
-     * @param MVMatrix
-     *            The global Modelview Matrix.
+     *            The camera position, in the model space of the octree. Nodes
+     *            far away from the camera are drawn from their level of detail
+     *            subsample instead of their children.
      * @throws UninitializedException
      *             if this method was called before calling the
      *             {@link #init(GL3)} method.
      */
     public void draw(GL3 gl, ShaderProgram program, Float3Vector cameraPosition) throws UninitializedException {
+        draw(gl, program, cameraPosition, null);
+    }
+
+    /**
+     * OpenGL draw method, that skips all nodes outside of the given view
+     * frustum.
+     * 
+     * @param gl
+     *            the current GL instance.
+     * @param program
+     *            The ShaderProgram to use in the drawing process.
+     * @param cameraPosition
+     *            The camera position, in the model space of the octree.
+     * @param frustum
+     *            The view frustum, in the model space of the octree, or null
+     *            if this node is known to be completely visible.
+     * @throws UninitializedException
+     *             if this method was called before calling the
+     *             {@link #init(GL3)} method.
+     */
+    public void draw(GL3 gl, ShaderProgram program, Float3Vector cameraPosition, Frustum frustum)
+            throws UninitializedException {
+        if (frustum != null) {
+            int visibility = frustum.cubeInFrustum(center, ribSize);
+            if (visibility == Frustum.OUTSIDE) {
+                return;
+            } else if (visibility == Frustum.INSIDE) {
+                // Everything below this node is visible as well, so there is
+                // no need to test any further.
+                frustum = null;
+            }
+        }
+
         // if (initialized) {
         if (subdivided) {
-            draw_sorted(gl, program, cameraPosition);
+            if (getNumRepresentationPoints() > 0 && isLodSufficient(cameraPosition)) {
+                drawRepresentation(gl, program);
+            } else {
+                draw_sorted(gl, program, cameraPosition, frustum);
+            }
         } else {
-            if (drawable) {
-                // program.setUniformMatrix("TMatrix", TMatrix);
-                // program.setUniformMatrix("SMatrix",
-                // FloatMatrixMath.scale(scale));
-                // program.setUniformVector("Color", color);
-                //
-                // program.use(gl);
-                //
-                // model.draw(gl, program);
+            drawRepresentation(gl, program);
+        }
+        // } else {
+        // throw new UninitializedException();
+        // }
+    }
 
-                try {
-                    program.use(gl);
-                } catch (UninitializedException e) {
-                    logger.error(e.getMessage());
-                }
+    /**
+     * Draws only this node's own model, without descending into its children;
+     * the level of detail subsample for subdivided nodes, and all points for
+     * leaves.
+     * 
+     * @param gl
+     *            the current GL instance.
+     * @param program
+     *            The ShaderProgram to use in the drawing process.
+     */
+    protected void drawRepresentation(GL3 gl, ShaderProgram program) {
+        if (isResident()) {
+            VboCache.getInstance().hit(this);
+        } else if (getNumRepresentationPoints() > 0) {
+            reload(gl);
+        }
 
-                vbo.bind(gl);
+        QuantizedVertexBuffer model = subdivided ? lodVbo : vbo;
+        if (model != null) {
+            drawVbo(gl, program, model);
+        }
+    }
 
-                program.linkAttribs(gl, vbo.getAttribs());
+    protected void drawVbo(GL3 gl, ShaderProgram program, QuantizedVertexBuffer model) {
+        // program.setUniformMatrix("TMatrix", TMatrix);
+        // program.setUniformMatrix("SMatrix",
+        // FloatMatrixMath.scale(scale));
+        // program.setUniformVector("Color", color);
+        //
+        // program.use(gl);
+        //
+        // model.draw(gl, program);
 
-                gl.glDrawArrays(GL3.GL_POINTS, 0, numVertices);
-            }
+        // The positions are quantized relative to the bounds of this node.
+        float halfRib = ribSize * 0.5f;
+        program.setUniformVector("nodeMin", center.sub(new Float3Vector(halfRib, halfRib, halfRib)));
+        program.setUniform("nodeSize", ribSize);
+
+        try {
+            program.use(gl);
+        } catch (UninitializedException e) {
+            logger.error(e.getMessage());
         }
-        // } else {
-        // throw new UninitializedException();
-        // }
+
+        model.draw(gl);
     }
 
     /**
@@ -674,10 +1027,13 @@ public class OctreeNode {
      *            the current opengl instance.
      * @param program
      *            the shaderprogram to use in drawing.
-     * @param MVMatrix
-     *            the global Modelview Matrix.
+     * @param cameraPosition
+     *            The camera position, in the model space of the octree.
+     * @param frustum
+     *            The view frustum to test the children against, or null if
+     *            they are all visible.
      */
-    protected void draw_sorted(GL3 gl, ShaderProgram program, Float3Vector cameraPosition) {
+    protected void draw_sorted(GL3 gl, ShaderProgram program, Float3Vector cameraPosition, Frustum frustum) {
         // InputHandler inputHandler = InputHandler.getInstance();
 
         try {
@@ -685,28 +1041,28 @@ public class OctreeNode {
             // InputHandler.octants.NNN) {
 
             if (ppp != null) {
-                ppp.draw(gl, program, cameraPosition);
+                ppp.draw(gl, program, cameraPosition, frustum);
             }
             if (ppn != null) {
-                ppn.draw(gl, program, cameraPosition);
+                ppn.draw(gl, program, cameraPosition, frustum);
             }
             if (pnp != null) {
-                pnp.draw(gl, program, cameraPosition);
+                pnp.draw(gl, program, cameraPosition, frustum);
             }
             if (pnn != null) {
-                pnn.draw(gl, program, cameraPosition);
+                pnn.draw(gl, program, cameraPosition, frustum);
             }
             if (npp != null) {
-                npp.draw(gl, program, cameraPosition);
+                npp.draw(gl, program, cameraPosition, frustum);
             }
             if (npn != null) {
-                npn.draw(gl, program, cameraPosition);
+                npn.draw(gl, program, cameraPosition, frustum);
             }
             if (nnp != null) {
-                nnp.draw(gl, program, cameraPosition);
+                nnp.draw(gl, program, cameraPosition, frustum);
             }
             if (nnn != null) {
-                nnn.draw(gl, program, cameraPosition);
+                nnn.draw(gl, program, cameraPosition, frustum);
             }
 
             // } else if (inputHandler.getCurrentViewOctant() ==
@@ -0,0 +1,195 @@
+package nl.esciencecenter.neon.examples.viaAppia;
+
+import java.nio.FloatBuffer;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+
+/* Copyright 2013 Netherlands eScience Center
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License")
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/**
+ * Growable point storage for the leaves of an {@link OctreeNode}. Locations
+ * and colors are kept as a structure of primitive float arrays, so adding a
+ * point costs 24 bytes of heap and no objects, as opposed to an
+ * {@link OctreeElement} with its two {@link nl.esciencecenter.neon.math.Float3Vector}s.
+ * 
+ * @author Maarten van Meersbergen <m.van.meersbergen@esciencecenter.nl>
+ */
+public class OctreePointStore {
+    private static final int     INITIAL_CAPACITY = 1024;
+    private static final float[] EMPTY            = new float[0];
+
+    private final int            initialCapacity;
+    private float[]              x, y, z;
+    private float[]              r, g, b;
+    private int                  size;
+
+    public OctreePointStore() {
+        this(INITIAL_CAPACITY);
+    }
+
+    /**
+     * Constructor for a store with room for the given number of points before
+     * it needs to grow. The arrays are only allocated once the first point is
+     * added, so stores of nodes that are subdivided right away cost nothing.
+     * 
+     * @param capacity
+     *            The initial capacity, in points.
+     */
+    public OctreePointStore(int capacity) {
+        initialCapacity = Math.max(1, capacity);
+
+        x = EMPTY;
+        y = EMPTY;
+        z = EMPTY;
+        r = EMPTY;
+        g = EMPTY;
+        b = EMPTY;
+        size = 0;
+    }
+
+    /**
+     * Adds a point to this store, growing the arrays by half their size if
+     * they are full.
+     * 
+     * @param px
+     *            The X coordinate of the point.
+     * @param py
+     *            The Y coordinate of the point.
+     * @param pz
+     *            The Z coordinate of the point.
+     * @param pr
+     *            The red component of the point's color.
+     * @param pg
+     *            The green component of the point's color.
+     * @param pb
+     *            The blue component of the point's color.
+     */
+    public void add(float px, float py, float pz, float pr, float pg, float pb) {
+        if (size == x.length) {
+            grow(Math.max(initialCapacity, size + (size >> 1) + 1));
+        }
+
+        x[size] = px;
+        y[size] = py;
+        z[size] = pz;
+        r[size] = pr;
+        g[size] = pg;
+        b[size] = pb;
+        size++;
+    }
+
+    private void grow(int capacity) {
+        x = Arrays.copyOf(x, capacity);
+        y = Arrays.copyOf(y, capacity);
+        z = Arrays.copyOf(z, capacity);
+        r = Arrays.copyOf(r, capacity);
+        g = Arrays.copyOf(g, capacity);
+        b = Arrays.copyOf(b, capacity);
+    }
+
+    /**
+     * Writes all points in this store to the given buffers, as interleaved XYZ
+     * and RGB triplets.
+     * 
+     * @param vertices
+     *            The buffer to write the locations to.
+     * @param vertexColors
+     *            The buffer to write the colors to.
+     */
+    public void writeTo(FloatBuffer vertices, FloatBuffer vertexColors) {
+        for (int i = 0; i < size; i++) {
+            vertices.put(x[i]);
+            vertices.put(y[i]);
+            vertices.put(z[i]);
+
+            vertexColors.put(r[i]);
+            vertexColors.put(g[i]);
+            vertexColors.put(b[i]);
+        }
+    }
+
+    /**
+     * Builds a representative subsample of the given point stores, by laying
+     * a regular grid over the cube they occupy and keeping only the first
+     * point that falls in each cell.
+     * 
+     * @param samples
+     *            The stores to subsample.
+     * @param cornerX
+     *            The lowest X coordinate of the cube.
+     * @param cornerY
+     *            The lowest Y coordinate of the cube.
+     * @param cornerZ
+     *            The lowest Z coordinate of the cube.
+     * @param ribSize
+     *            The rib size of the cube.
+     * @param gridSize
+     *            The number of grid cells along each rib.
+     * @return The subsample, with at most gridSize^3 points.
+     */
+    public static OctreePointStore gridSubsample(List<OctreePointStore> samples, float cornerX, float cornerY,
+            float cornerZ, float ribSize, int gridSize) {
+        float cellsPerUnit = gridSize / ribSize;
+
+        BitSet occupied = new BitSet(gridSize * gridSize * gridSize);
+        OctreePointStore result = new OctreePointStore();
+
+        for (OctreePointStore sample : samples) {
+            for (int i = 0; i < sample.size; i++) {
+                int cellX = Math.min(gridSize - 1, Math.max(0, (int) ((sample.x[i] - cornerX) * cellsPerUnit)));
+                int cellY = Math.min(gridSize - 1, Math.max(0, (int) ((sample.y[i] - cornerY) * cellsPerUnit)));
+                int cellZ = Math.min(gridSize - 1, Math.max(0, (int) ((sample.z[i] - cornerZ) * cellsPerUnit)));
+
+                int cell = (((cellX * gridSize) + cellY) * gridSize) + cellZ;
+                if (!occupied.get(cell)) {
+                    occupied.set(cell);
+                    result.add(sample.x[i], sample.y[i], sample.z[i], sample.r[i], sample.g[i], sample.b[i]);
+                }
+            }
+        }
+
+        return result;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public float getX(int index) {
+        return x[index];
+    }
+
+    public float getY(int index) {
+        return y[index];
+    }
+
+    public float getZ(int index) {
+        return z[index];
+    }
+
+    public float getR(int index) {
+        return r[index];
+    }
+
+    public float getG(int index) {
+        return g[index];
+    }
+
+    public float getB(int index) {
+        return b[index];
+    }
+}
@@ -0,0 +1,103 @@
+package nl.esciencecenter.neon.examples.viaAppia;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Random;
+
+import nl.esciencecenter.neon.math.Float3Vector;
+
+/* Copyright 2013 Netherlands eScience Center
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License")
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/**
+ * Self-contained check that an out-of-core {@link PPOctreeNode} tree loses no
+ * points while its nodes are subdivided. Synthetic points, most of them in a
+ * tiny cluster so that a few nodes are split over and over again, are added
+ * to a tree in a temporary directory, with a write budget of a single batch
+ * and only two open files, so nearly every subdivision has to stream points
+ * back in from disk. Afterwards the points in the leaf files must add up to
+ * the number of points added.
+ * 
+ * Usage: PPOctreeCheck [numPoints]
+ * 
+ * Exits with status 1 if the counts differ.
+ * 
+ * @author Maarten van Meersbergen <m.van.meersbergen@esciencecenter.nl>
+ */
+public class PPOctreeCheck {
+    private static final int   DEFAULT_NUM_POINTS = 200000;
+    /** The part of the points that falls in the cluster. */
+    private static final float CLUSTER_FRACTION   = 0.95f;
+    /** The rib size of the cluster, in the [-1, 1] domain of the root. */
+    private static final float CLUSTER_SIZE       = 0.001f;
+
+    public static void main(String[] args) throws IOException {
+        int numPoints = DEFAULT_NUM_POINTS;
+        if (args.length > 0) {
+            numPoints = Integer.parseInt(args[0]);
+        }
+
+        boolean ok;
+        File directory = Files.createTempDirectory("ppoctree").toFile();
+        try {
+            PPOctreeStorage storage = new PPOctreeStorage(directory.getPath() + File.separator, 2,
+                    PPOctreeNode.MIN_BATCH_SIZE * PPOctreeNode.POINT_SIZE);
+            PPOctreeNode root = new PPOctreeNode(storage, "r", 0, new Float3Vector(-1f, -1f, -1f), 2f);
+
+            Random random = new Random(42);
+            for (int i = 0; i < numPoints; i++) {
+                float x, y, z;
+                if (random.nextFloat() < CLUSTER_FRACTION) {
+                    x = 0.3f + (random.nextFloat() * CLUSTER_SIZE);
+                    y = 0.3f + (random.nextFloat() * CLUSTER_SIZE);
+                    z = 0.3f + (random.nextFloat() * CLUSTER_SIZE);
+                } else {
+                    x = (random.nextFloat() * 1.998f) - 0.999f;
+                    y = (random.nextFloat() * 1.998f) - 0.999f;
+                    z = (random.nextFloat() * 1.998f) - 0.999f;
+                }
+                root.addPoint(x, y, z, random.nextFloat(), random.nextFloat(), random.nextFloat());
+            }
+
+            root.finalizeAdding(null);
+            storage.close();
+
+            long pointsStored = root.countStoredPoints();
+            System.out.println("Points added     : " + root.getNumPointsAdded());
+            System.out.println("Points stored    : " + pointsStored);
+
+            ok = root.getNumPointsAdded() == numPoints && pointsStored == root.getNumPointsAdded();
+        } finally {
+            delete(directory);
+        }
+
+        if (!ok) {
+            System.err.println("FAILED: point counts differ, points were lost or duplicated during subdivision.");
+            System.exit(1);
+        }
+        System.out.println("OK");
+    }
+
+    private static void delete(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+}
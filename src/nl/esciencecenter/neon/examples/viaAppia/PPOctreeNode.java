@@ -1,12 +1,8 @@
 package nl.esciencecenter.neon.examples.viaAppia;
 
 import java.io.File;
-import java.io.FileNotFoundException;
 import java.io.IOException;
-import java.io.RandomAccessFile;
 import java.nio.ByteBuffer;
-import java.nio.channels.FileChannel;
-import java.nio.file.Files;
 
 import javax.media.opengl.GL3;
 
@@ -25,6 +21,12 @@ public class PPOctreeNode {
      */
     protected static final int   maxElements     = 1000;
     protected static final int   minDivision     = 7;
+    /** The size of a single point on disk: XYZ and RGB as floats. */
+    protected static final int   POINT_SIZE      = 6 * (Float.SIZE / Byte.SIZE);
+    /** The initial and maximum number of points in a node's write batch. */
+    protected static final int   MIN_BATCH_SIZE  = 64, MAX_BATCH_SIZE = 1024;
+    /** The number of points read at once when a node's file is split up. */
+    protected static final int   READ_CHUNK_SIZE = 16 * 1024;
     /** The center location for this node. */
     protected final Float3Vector center;
     /** The size of the ribs of the cube this node represents. */
@@ -34,11 +36,16 @@ public class PPOctreeNode {
     /** The scale for this node's graphical representation. */
     protected final float        scale;
 
-    /** The stored elements. */
-    protected RandomAccessFile   elements;
+    /** The shared storage for the files of all nodes in this tree. */
+    protected PPOctreeStorage    storage;
     protected int                elementsWritten = 0;
-    protected String             path, filename;
-    protected FileChannel        inChannel;
+    protected long               numPointsAdded  = 0;
+    /** The number of bytes written to this node's file so far. */
+    protected long               bytesFlushed    = 0;
+    /** Name of this node, the octant digits of the path from the root. */
+    protected String             name, filename;
+    /** Points not yet written to this node's file, null if there are none. */
+    private ByteBuffer           batch;
 
     /** The (potential) child nodes. */
     protected PPOctreeNode       ppp, ppn, pnp, pnn, npp, npn, nnp, nnn;
@@ -54,24 +61,35 @@ public class PPOctreeNode {
     protected float              minY, maxY;
     protected float              minZ, maxZ;
 
-    public PPOctreeNode(String path, int depth, Float3Vector corner, float ribSize) {
-        this.path = path;
-        this.filename = path + "data/" + depth + "-" + corner + ".oct";
+    /**
+     * Constructor for a node of an out-of-core octree.
+     * 
+     * @param storage
+     *            The shared storage for the files of all nodes in the tree.
+     * @param name
+     *            The name of this node, made up of the name of its parent
+     *            followed by the octant digit (x = 4, y = 2, z = 1 for the
+     *            positive halves) of this node within its parent.
+     * @param depth
+     *            The depth for this node in the octree (root = 0).
+     * @param corner
+     *            The corner location for the lower X, Y, Z values of the cube
+     *            represented by this node.
+     * @param ribSize
+     *            The rib sizes for the cube represented by this node.
+     */
+    public PPOctreeNode(PPOctreeStorage storage, String name, int depth, Float3Vector corner, float ribSize) {
+        this.storage = storage;
+        this.name = name;
+        this.filename = storage.getPath() + "data/" + name + ".oct";
         this.depth = depth;
         this.center = corner.add(new Float3Vector(.5f * ribSize, .5f * ribSize, .5f * ribSize));
         this.ribSize = ribSize;
         this.scale = ribSize / 2f;
         try {
-            new File(new File(filename).getParent()).mkdirs();
-            File f = new File(filename);
-            f.createNewFile();
-            long length = f.length();
-            this.elements = new RandomAccessFile(filename, "rw");
-            elements.seek(length);
-
-            this.inChannel = elements.getChannel();
-        } catch (FileNotFoundException e) {
-            e.printStackTrace();
+            // Remove any leftovers of a previous run, the file is only created
+            // once the first batch is flushed.
+            storage.delete(filename);
         } catch (IOException e) {
             // TODO Auto-generated catch block
             e.printStackTrace();
@@ -87,28 +105,152 @@ public class PPOctreeNode {
      * @throws IOException
      */
     protected void subdivide() throws IOException {
-        ByteBuffer buf = ByteBuffer.allocate(6 * Float.SIZE);
-        inChannel.position(0);
-
-        int numread = 0;
-        while (numread > 0) {
-            numread = inChannel.read(buf);
-            if (numread != buf.capacity()) {
-                logger.error("read weird number of bytes");
-                System.exit(1);
+        // Mark this node as subdivided and take its write batch first, so the
+        // flushes caused by adding to the children never write to this node's
+        // file while it is being read.
+        subdivided = true;
+
+        ByteBuffer pending = batch;
+        if (pending != null) {
+            releaseBatch();
+        }
+
+        // Stream the points that were already spilled to disk back in, in
+        // chunks of READ_CHUNK_SIZE points, so memory use does not depend on
+        // the size of the file.
+        if (bytesFlushed > 0) {
+            ByteBuffer chunk = ByteBuffer.allocate(READ_CHUNK_SIZE * POINT_SIZE);
+            long position = 0;
+
+            while (position < bytesFlushed) {
+                chunk.clear();
+                int numread = storage.read(filename, position, chunk);
+                if (numread <= 0 || (numread % POINT_SIZE) != 0) {
+                    throw new IOException("Node file " + filename + " is truncated at " + (position + numread)
+                            + " bytes, expected " + bytesFlushed);
+                }
+                position += numread;
+
+                chunk.flip();
+                while (chunk.hasRemaining()) {
+                    addPointSubdivided(chunk.getFloat(), chunk.getFloat(), chunk.getFloat(), chunk.getFloat(),
+                            chunk.getFloat(), chunk.getFloat());
+                }
+            }
+
+            storage.delete(filename);
+            bytesFlushed = 0;
+        }
+
+        // Points still in the write batch never have to go through the disk.
+        if (pending != null) {
+            pending.flip();
+            while (pending.hasRemaining()) {
+                addPointSubdivided(pending.getFloat(), pending.getFloat(), pending.getFloat(), pending.getFloat(),
+                        pending.getFloat(), pending.getFloat());
+            }
+        }
+    }
+
+    /**
+     * Counts the points stored in the files of all leaves below this node, by
+     * the size of those files. Should only be called after
+     * {@link #finalizeAdding(GL3)}, when all write batches have been flushed.
+     * Comparing this to {@link #getNumPointsAdded()} proves that no points
+     * were lost or duplicated during subdivision.
+     * 
+     * @return the number of points on disk.
+     */
+    public long countStoredPoints() {
+        long result = 0;
+        if (subdivided) {
+            for (PPOctreeNode child : getChildren()) {
+                if (child != null) {
+                    result += child.countStoredPoints();
+                }
             }
-            buf.flip();
-            OctreeElement element = new OctreeElement(new Float3Vector(buf.getFloat(), buf.getFloat(), buf.getFloat()),
-                    new Float3Vector(buf.getFloat(), buf.getFloat(), buf.getFloat()));
-            addElementSubdivided(element);
+        } else {
+            result = new File(filename).length() / POINT_SIZE;
         }
+        return result;
+    }
 
-        inChannel.close();
-        elements.close();
+    protected String getFilename() {
+        return filename;
+    }
 
-        Files.deleteIfExists(new File(filename).toPath());
+    protected long getBytesFlushed() {
+        return bytesFlushed;
+    }
 
-        subdivided = true;
+    protected boolean isSubdivided() {
+        return subdivided;
+    }
+
+    protected int getDepth() {
+        return depth;
+    }
+
+    protected Float3Vector getCenter() {
+        return center;
+    }
+
+    protected float getRibSize() {
+        return ribSize;
+    }
+
+    /**
+     * Getter for the children of this node, in octant digit order (nnn, nnp,
+     * npn, npp, pnn, pnp, ppn, ppp). Children that were never created are
+     * null.
+     * 
+     * @return the children.
+     */
+    protected PPOctreeNode[] getChildren() {
+        return new PPOctreeNode[] { nnn, nnp, npn, npp, pnn, pnp, ppn, ppp };
+    }
+
+    /**
+     * Getter for the number of points added to this node that fell inside its
+     * domain, including those that were passed on to its children.
+     * 
+     * @return the number of points added.
+     */
+    public long getNumPointsAdded() {
+        return numPointsAdded;
+    }
+
+    /**
+     * Writes all points in this node's write batch to its file, and releases
+     * the batch.
+     * 
+     * @throws IOException
+     *             if the batch could not be written.
+     */
+    protected void flush() throws IOException {
+        if (batch != null) {
+            ByteBuffer pending = batch;
+            releaseBatch();
+
+            pending.flip();
+            bytesFlushed += pending.remaining();
+            storage.append(filename, pending);
+        }
+    }
+
+    private void releaseBatch() {
+        storage.batchReleased(this, batch.capacity());
+        batch = null;
+    }
+
+    /**
+     * Getter for the number of bytes currently allocated for this node's write
+     * batch.
+     * 
+     * @return the capacity of the write batch.
+     */
+    protected int getBatchCapacity() {
+        return batch != null ? batch.capacity() : 0;
     }
 
     protected int getNumLeaves() {
@@ -180,8 +322,7 @@ public class PPOctreeNode {
                 nnn.finalizeAdding(gl);
             }
         } else {
-            inChannel.close();
-            elements.close();
+            flush();
         }
     }
 
@@ -190,14 +331,17 @@ public class PPOctreeNode {
      * of this node. Only needed for the root, to make sure no outside elements
      * are caught.
      * 
-     * @param location
-     *            The location to check.
+     * @param x
+     *            The X coordinate of the location to check.
+     * @param y
+     *            The Y coordinate of the location to check.
+     * @param z
+     *            The Z coordinate of the location to check.
      * @return true if the location falls inside the domain of this node.
      */
-    private boolean isInThisNodesSpace(Float3Vector location) {
-        if ((location.getX() > (center.getX() - scale)) && (location.getY() > (center.getY() - scale))
-                && (location.getZ() > (center.getZ() - scale)) && (location.getX() < (center.getX() + scale))
-                && (location.getY() < (center.getY() + scale)) && (location.getZ() < (center.getZ() + scale))) {
+    private boolean isInThisNodesSpace(float x, float y, float z) {
+        if ((x > (center.getX() - scale)) && (y > (center.getY() - scale)) && (z > (center.getZ() - scale))
+                && (x < (center.getX() + scale)) && (y < (center.getY() + scale)) && (z < (center.getZ() + scale))) {
             return true;
         } else {
             return false;
@@ -213,10 +357,36 @@ public class PPOctreeNode {
      */
     public void addElement(OctreeElement element) throws IOException {
         Float3Vector location = element.getCenter();
+        Float3Vector elementColor = element.getColor();
+
+        addPoint(location.getX(), location.getY(), location.getZ(), elementColor.getX(), elementColor.getY(),
+                elementColor.getZ());
+    }
 
-        // If this is the root, check if the location of the element is within
+    /**
+     * Add a single point to this node, without the need to create an
+     * {@link OctreeElement} for it.
+     * 
+     * @param x
+     *            The X coordinate of the point.
+     * @param y
+     *            The Y coordinate of the point.
+     * @param z
+     *            The Z coordinate of the point.
+     * @param r
+     *            The red component of the point's color.
+     * @param g
+     *            The green component of the point's color.
+     * @param b
+     *            The blue component of the point's color.
+     * @throws IOException
+     */
+    public void addPoint(float x, float y, float z, float r, float g, float b) throws IOException {
+        // If this is the root, check if the location of the point is within
         // the domain governed by this octree.
-        if (depth > 0 || isInThisNodesSpace(location)) {
+        if (depth > 0 || isInThisNodesSpace(x, y, z)) {
+            numPointsAdded++;
+
             // Check if we are full yet.
             if (!subdivided) {
                 if (depth < minDivision) {
@@ -235,29 +405,55 @@ public class PPOctreeNode {
 
             // If this node was already divided, we delegate.
             if (subdivided) {
-                addElementSubdivided(element);
+                addPointSubdivided(x, y, z, r, g, b);
             } else {
-                ByteBuffer buf = ByteBuffer.allocate(6 * Float.SIZE);
-                buf.putFloat(element.getCenter().getX());
-                buf.putFloat(element.getCenter().getY());
-                buf.putFloat(element.getCenter().getZ());
-                buf.putFloat(element.getColor().getX());
-                buf.putFloat(element.getColor().getY());
-                buf.putFloat(element.getColor().getZ());
-                buf.flip();
-
-                while (buf.hasRemaining()) {
-                    inChannel.write(buf);
-                }
+                ensureBatchSpace();
+
+                batch.putFloat(x);
+                batch.putFloat(y);
+                batch.putFloat(z);
+                batch.putFloat(r);
+                batch.putFloat(g);
+                batch.putFloat(b);
                 elementsWritten++;
             }
         } else {
-            logger.warn("OctreeElement added that is not within governed domain of this OctreeNode.");
-            logger.warn("OctreeElement center at:" + location);
+            logger.warn("Point added that is not within governed domain of this OctreeNode.");
+            logger.warn("Point at: " + x + ", " + y + ", " + z);
             logger.warn("OctreeNode center at:" + center);
         }
     }
 
+    /**
+     * Makes sure there is room for one more point in the write batch. Batches
+     * start small and grow up to {@link #MAX_BATCH_SIZE} points, after which
+     * they are written to disk as one sequential block whenever they fill up.
+     * 
+     * @throws IOException
+     *             if the batch could not be written.
+     */
+    private void ensureBatchSpace() throws IOException {
+        if (batch == null) {
+            batch = ByteBuffer.allocate(MIN_BATCH_SIZE * POINT_SIZE);
+            storage.batchResized(this, batch.capacity());
+        } else if (!batch.hasRemaining()) {
+            if (batch.capacity() < MAX_BATCH_SIZE * POINT_SIZE) {
+                ByteBuffer grown = ByteBuffer.allocate(batch.capacity() * 2);
+                batch.flip();
+                grown.put(batch);
+
+                int delta = grown.capacity() - batch.capacity();
+                batch = grown;
+                storage.batchResized(this, delta);
+            } else {
+                batch.flip();
+                bytesFlushed += batch.remaining();
+                storage.append(filename, batch);
+                batch.clear();
+            }
+        }
+    }
+
     /**
      * Add an element to the proper child.
      * 
@@ -267,58 +463,89 @@ public class PPOctreeNode {
      */
     public void addElementSubdivided(OctreeElement element) throws IOException {
         Float3Vector location = element.getCenter();
-        if (location.getX() < center.getX()) {
-            if (location.getY() < center.getY()) {
-                if (location.getZ() < center.getZ()) {
+        Float3Vector elementColor = element.getColor();
+
+        addPointSubdivided(location.getX(), location.getY(), location.getZ(), elementColor.getX(),
+                elementColor.getY(), elementColor.getZ());
+    }
+
+    /**
+     * Add a single point to the proper child.
+     * 
+     * @param x
+     *            The X coordinate of the point.
+     * @param y
+     *            The Y coordinate of the point.
+     * @param z
+     *            The Z coordinate of the point.
+     * @param r
+     *            The red component of the point's color.
+     * @param g
+     *            The green component of the point's color.
+     * @param b
+     *            The blue component of the point's color.
+     * @throws IOException
+     */
+    public void addPointSubdivided(float x, float y, float z, float r, float g, float b) throws IOException {
+        if (x < center.getX()) {
+            if (y < center.getY()) {
+                if (z < center.getZ()) {
                     if (nnn == null) {
-                        nnn = new PPOctreeNode(path, depth + 1, center.add(new Float3Vector(-scale, -scale, -scale)),
-                                scale);
+                        nnn = new PPOctreeNode(storage, name + "0", depth + 1,
+                                center.add(new Float3Vector(-scale, -scale, -scale)), scale);
 
                     }
-                    nnn.addElement(element);
+                    nnn.addPoint(x, y, z, r, g, b);
                 } else {
                     if (nnp == null) {
-                        nnp = new PPOctreeNode(path, depth + 1, center.add(new Float3Vector(-scale, -scale, 0f)), scale);
+                        nnp = new PPOctreeNode(storage, name + "1", depth + 1,
+                                center.add(new Float3Vector(-scale, -scale, 0f)), scale);
                     }
-                    nnp.addElement(element);
+                    nnp.addPoint(x, y, z, r, g, b);
                 }
             } else {
-                if (location.getZ() < center.getZ()) {
+                if (z < center.getZ()) {
                     if (npn == null) {
-                        npn = new PPOctreeNode(path, depth + 1, center.add(new Float3Vector(-scale, 0f, -scale)), scale);
+                        npn = new PPOctreeNode(storage, name + "2", depth + 1,
+                                center.add(new Float3Vector(-scale, 0f, -scale)), scale);
                     }
-                    npn.addElement(element);
+                    npn.addPoint(x, y, z, r, g, b);
                 } else {
                     if (npp == null) {
-                        npp = new PPOctreeNode(path, depth + 1, center.add(new Float3Vector(-scale, 0f, 0f)), scale);
+                        npp = new PPOctreeNode(storage, name + "3", depth + 1,
+                                center.add(new Float3Vector(-scale, 0f, 0f)), scale);
                     }
-                    npp.addElement(element);
+                    npp.addPoint(x, y, z, r, g, b);
                 }
             }
         } else {
-            if (location.getY() < center.getY()) {
-                if (location.getZ() < center.getZ()) {
+            if (y < center.getY()) {
+                if (z < center.getZ()) {
                     if (pnn == null) {
-                        pnn = new PPOctreeNode(path, depth + 1, center.add(new Float3Vector(0f, -scale, -scale)), scale);
+                        pnn = new PPOctreeNode(storage, name + "4", depth + 1,
+                                center.add(new Float3Vector(0f, -scale, -scale)), scale);
                     }
-                    pnn.addElement(element);
+                    pnn.addPoint(x, y, z, r, g, b);
                 } else {
                     if (pnp == null) {
-                        pnp = new PPOctreeNode(path, depth + 1, center.add(new Float3Vector(0f, -scale, 0f)), scale);
+                        pnp = new PPOctreeNode(storage, name + "5", depth + 1,
+                                center.add(new Float3Vector(0f, -scale, 0f)), scale);
                     }
-                    pnp.addElement(element);
+                    pnp.addPoint(x, y, z, r, g, b);
                 }
             } else {
-                if (location.getZ() < center.getZ()) {
+                if (z < center.getZ()) {
                     if (ppn == null) {
-                        ppn = new PPOctreeNode(path, depth + 1, center.add(new Float3Vector(0f, 0f, -scale)), scale);
+                        ppn = new PPOctreeNode(storage, name + "6", depth + 1,
+                                center.add(new Float3Vector(0f, 0f, -scale)), scale);
                     }
-                    ppn.addElement(element);
+                    ppn.addPoint(x, y, z, r, g, b);
                 } else {
                     if (ppp == null) {
-                        ppp = new PPOctreeNode(path, depth + 1, center.add(new Float3Vector(0f, 0f, 0f)), scale);
+                        ppp = new PPOctreeNode(storage, name + "7", depth + 1,
+                                center.add(new Float3Vector(0f, 0f, 0f)), scale);
                     }
-                    ppp.addElement(element);
+                    ppp.addPoint(x, y, z, r, g, b);
                 }
             }
         }
@@ -0,0 +1,248 @@
+package nl.esciencecenter.neon.examples.viaAppia;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/* Copyright 2013 Netherlands eScience Center
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License")
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/**
+ * Shared disk access for all nodes of a {@link PPOctreeNode} tree. Nodes
+ * collect their points in in-memory write batches, which this class keeps
+ * track of and flushes, oldest first, once their total size exceeds the write
+ * buffer budget. The files themselves are accessed through a bounded pool of
+ * open channels, in which the least recently used file is closed when a new
+ * one needs to be opened, so the number of open file descriptors stays fixed
+ * no matter how many nodes the tree has.
+ * 
+ * @author Maarten van Meersbergen <m.van.meersbergen@esciencecenter.nl>
+ */
+public class PPOctreeStorage {
+    private final static Logger                         logger = LoggerFactory.getLogger(PPOctreeStorage.class);
+
+    private final String                                path;
+    private final int                                   maxOpenFiles;
+    private final long                                  writeBufferSize;
+
+    /** Open files, in least recently used order. */
+    private final Map<String, RandomAccessFile>         openFiles;
+    /** Nodes with unflushed points, in the order they became dirty. */
+    private final LinkedHashSet<PPOctreeNode>           dirtyNodes;
+    /** Total capacity of all write batches currently allocated. */
+    private long                                        bufferedBytes;
+
+    /**
+     * Constructor for the storage of a new octree.
+     * 
+     * @param path
+     *            The directory to store the node files in, ending with a
+     *            separator.
+     * @param maxOpenFiles
+     *            The maximum number of files kept open at any time.
+     * @param writeBufferSize
+     *            The maximum number of bytes kept in write batches before they
+     *            are flushed to disk.
+     */
+    public PPOctreeStorage(String path, int maxOpenFiles, long writeBufferSize) {
+        this.path = path;
+        this.maxOpenFiles = Math.max(1, maxOpenFiles);
+        this.writeBufferSize = writeBufferSize;
+
+        this.openFiles = new LinkedHashMap<String, RandomAccessFile>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, RandomAccessFile> eldest) {
+                if (size() > PPOctreeStorage.this.maxOpenFiles) {
+                    closeQuietly(eldest.getValue());
+                    return true;
+                }
+                return false;
+            }
+        };
+        this.dirtyNodes = new LinkedHashSet<PPOctreeNode>();
+
+        new File(path + "data/").mkdirs();
+    }
+
+    /**
+     * Getter for the directory the node files are stored in.
+     * 
+     * @return the path.
+     */
+    public String getPath() {
+        return path;
+    }
+
+    /**
+     * Appends the contents of the given buffer to the end of a file.
+     * 
+     * @param filename
+     *            The file to write to.
+     * @param data
+     *            The data to write, from its position up to its limit.
+     * @throws IOException
+     *             if the file could not be opened or written.
+     */
+    public void append(String filename, ByteBuffer data) throws IOException {
+        FileChannel channel = getChannel(filename);
+        long position = channel.size();
+        while (data.hasRemaining()) {
+            position += channel.write(data, position);
+        }
+    }
+
+    /**
+     * Reads from a file at the given position until the buffer is full or the
+     * end of the file is reached.
+     * 
+     * @param filename
+     *            The file to read from.
+     * @param position
+     *            The position in the file to start reading at.
+     * @param destination
+     *            The buffer to read into.
+     * @return The number of bytes read, or -1 if the position is at or beyond
+     *         the end of the file.
+     * @throws IOException
+     *             if the file could not be opened or read.
+     */
+    public int read(String filename, long position, ByteBuffer destination) throws IOException {
+        FileChannel channel = getChannel(filename);
+        int total = 0;
+        while (destination.hasRemaining()) {
+            int numRead = channel.read(destination, position + total);
+            if (numRead < 0) {
+                return total == 0 ? -1 : total;
+            }
+            total += numRead;
+        }
+        return total;
+    }
+
+    /**
+     * Closes and deletes a file, if it exists.
+     * 
+     * @param filename
+     *            The file to delete.
+     * @throws IOException
+     *             if the file could not be deleted.
+     */
+    public void delete(String filename) throws IOException {
+        RandomAccessFile file = openFiles.remove(filename);
+        if (file != null) {
+            file.close();
+        }
+        Files.deleteIfExists(new File(filename).toPath());
+    }
+
+    private FileChannel getChannel(String filename) throws IOException {
+        RandomAccessFile file = openFiles.get(filename);
+        if (file == null) {
+            file = new RandomAccessFile(filename, "rw");
+            openFiles.put(filename, file);
+        }
+        return file.getChannel();
+    }
+
+    /**
+     * Registers a change in the capacity of a node's write batch, flushing the
+     * oldest batches to disk if the total exceeds the write buffer budget.
+     * 
+     * @param node
+     *            The node whose write batch changed.
+     * @param deltaBytes
+     *            The change in capacity of the batch, in bytes.
+     * @throws IOException
+     *             if a batch could not be flushed.
+     */
+    void batchResized(PPOctreeNode node, long deltaBytes) throws IOException {
+        bufferedBytes += deltaBytes;
+        if (deltaBytes > 0) {
+            dirtyNodes.add(node);
+        }
+
+        if (bufferedBytes > writeBufferSize) {
+            // Flush down to half the budget, so this does not happen again on
+            // the very next point.
+            List<PPOctreeNode> victims = new ArrayList<PPOctreeNode>();
+            long remaining = bufferedBytes;
+            for (PPOctreeNode dirty : dirtyNodes) {
+                if (remaining <= (writeBufferSize / 2)) {
+                    break;
+                }
+                if (dirty != node) {
+                    victims.add(dirty);
+                    remaining -= dirty.getBatchCapacity();
+                }
+            }
+
+            for (PPOctreeNode victim : victims) {
+                victim.flush();
+            }
+        }
+    }
+
+    /**
+     * Called by a node when its write batch has been released.
+     * 
+     * @param node
+     *            The node whose write batch was released.
+     * @param bytes
+     *            The capacity of the released batch, in bytes.
+     */
+    void batchReleased(PPOctreeNode node, long bytes) {
+        bufferedBytes -= bytes;
+        dirtyNodes.remove(node);
+    }
+
+    /**
+     * Flushes all write batches and closes all open files.
+     * 
+     * @throws IOException
+     *             if a batch could not be flushed.
+     */
+    public void close() throws IOException {
+        List<PPOctreeNode> nodes = new ArrayList<PPOctreeNode>(dirtyNodes);
+        for (PPOctreeNode node : nodes) {
+            node.flush();
+        }
+
+        for (RandomAccessFile file : openFiles.values()) {
+            closeQuietly(file);
+        }
+        openFiles.clear();
+    }
+
+    private static void closeQuietly(RandomAccessFile file) {
+        try {
+            file.close();
+        } catch (IOException e) {
+            logger.error(e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,427 @@
+package nl.esciencecenter.neon.examples.viaAppia;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.Queue;
+
+import javax.media.opengl.GL3;
+
+import nl.esciencecenter.neon.math.Float3Vector;
+
+/* Copyright 2013 Netherlands eScience Center
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License")
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/**
+ * A complete octree packed into two files. The data file holds the points of
+ * all nodes, each node as one contiguous block, in post-order: leaves hold all
+ * of their points, subdivided nodes a grid subsample of their subtree for
+ * level of detail. The index file holds a small header followed by one fixed
+ * size record per node, in the same order, with the node's bounds, its
+ * location in the data file and which of its children exist.
+ * 
+ * When opened, only the index is read. The data file is memory mapped in
+ * windows, and the points of a node are only read once that node is needed.
+ * No node crosses a window boundary, so every node can be read as a single
+ * slice of a mapped buffer.
+ * 
+ * @author Maarten van Meersbergen <m.van.meersbergen@esciencecenter.nl>
+ */
+public class PackedOctree {
+    /** Extension of the index file. */
+    public static final String INDEX_EXTENSION   = ".octi";
+    /** Extension of the data file. */
+    public static final String DATA_EXTENSION    = ".octd";
+
+    private static final int   MAGIC             = 0x56414F43;
+    private static final int   VERSION           = 1;
+    private static final int   HEADER_SIZE       = 3 * (Integer.SIZE / Byte.SIZE);
+    /** Corner XYZ and rib size, data offset, point count, depth, children. */
+    private static final int   NODE_RECORD_SIZE  = (4 * 4) + 8 + 4 + 1 + 1;
+
+    /** The size of a single point in the data file: XYZ and RGB as floats. */
+    public static final int    POINT_SIZE        = 6 * (Float.SIZE / Byte.SIZE);
+    /** The size of the windows the data file is mapped in. */
+    private static final long  WINDOW_SIZE       = 256L * 1024L * 1024L;
+
+    private final OctreeLoader loader;
+    private final FileChannel  dataChannel;
+    private final long         dataSize;
+    private final ByteBuffer[] windows;
+    private final OctreeNode   root;
+    private final int          numNodes;
+
+    private PackedOctree(File indexFile, File dataFile, OctreeLoader loader) throws IOException {
+        this.loader = loader;
+
+        // The data file is only closed by close(), unless the index turns out
+        // to be unusable, in which case this octree is never returned.
+        RandomAccessFile data = new RandomAccessFile(dataFile, "r");
+        try {
+            dataChannel = data.getChannel();
+            dataSize = dataChannel.size();
+            windows = new ByteBuffer[(int) ((dataSize + WINDOW_SIZE - 1) / WINDOW_SIZE)];
+
+            RandomAccessFile indexRaf = new RandomAccessFile(indexFile, "r");
+            try {
+                FileChannel indexChannel = indexRaf.getChannel();
+                MappedByteBuffer index = indexChannel.map(FileChannel.MapMode.READ_ONLY, 0, indexChannel.size());
+
+                if (index.getInt() != MAGIC || index.getInt() != VERSION) {
+                    throw new IOException(indexFile + " is not a packed octree index.");
+                }
+                numNodes = index.getInt();
+                if (indexChannel.size() != HEADER_SIZE + ((long) numNodes * NODE_RECORD_SIZE)) {
+                    throw new IOException(indexFile + " is truncated.");
+                }
+
+                // The nodes are stored in post-order, so the children of a node
+                // are always the last ones on the stack when it is read.
+                Deque<OctreeNode> stack = new ArrayDeque<OctreeNode>();
+                for (int i = 0; i < numNodes; i++) {
+                    Float3Vector corner = new Float3Vector(index.getFloat(), index.getFloat(), index.getFloat());
+                    float ribSize = index.getFloat();
+                    long offset = index.getLong();
+                    int count = index.getInt();
+                    int depth = index.get() & 0xFF;
+                    int childMask = index.get() & 0xFF;
+
+                    PackedOctreeNode node = new PackedOctreeNode(this, depth, corner, ribSize, offset, count);
+
+                    if (childMask != 0) {
+                        OctreeNode[] children = new OctreeNode[8];
+                        for (int octant = 7; octant >= 0; octant--) {
+                            if ((childMask & (1 << octant)) != 0) {
+                                if (stack.isEmpty()) {
+                                    throw new IOException(indexFile + " does not describe a single tree.");
+                                }
+                                children[octant] = stack.pop();
+                            }
+                        }
+                        node.setChildren(children);
+                    }
+                    stack.push(node);
+                }
+
+                if (stack.size() != 1) {
+                    throw new IOException(indexFile + " does not describe a single tree.");
+                }
+                root = stack.pop();
+            } finally {
+                indexRaf.close();
+            }
+        } catch (IOException e) {
+            data.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Opens a packed octree. Only the index is read, the point data is mapped
+     * and read on demand.
+     * 
+     * @param indexFile
+     *            The index file, the data file is expected next to it, with
+     *            the same name but the {@link #DATA_EXTENSION}.
+     * @return The opened octree.
+     * @throws IOException
+     *             if either file could not be read.
+     */
+    public static PackedOctree open(File indexFile) throws IOException {
+        return open(indexFile, null);
+    }
+
+    /**
+     * Opens a packed octree, whose nodes are read by the given loader's worker
+     * threads when they are needed, instead of on the GL thread.
+     * 
+     * @param indexFile
+     *            The index file, the data file is expected next to it, with
+     *            the same name but the {@link #DATA_EXTENSION}.
+     * @param loader
+     *            The loader to read the nodes with, or null to read them
+     *            synchronously while drawing.
+     * @return The opened octree.
+     * @throws IOException
+     *             if either file could not be read.
+     */
+    public static PackedOctree open(File indexFile, OctreeLoader loader) throws IOException {
+        String path = indexFile.getPath();
+        if (path.endsWith(INDEX_EXTENSION)) {
+            path = path.substring(0, path.length() - INDEX_EXTENSION.length());
+        }
+        return new PackedOctree(indexFile, new File(path + DATA_EXTENSION), loader);
+    }
+
+    /**
+     * Getter for the root of the octree. The tree consists of
+     * {@link PackedOctreeNode}s, and does not need to be finalized before
+     * drawing.
+     * 
+     * @return the root.
+     */
+    public OctreeNode getRoot() {
+        return root;
+    }
+
+    public int getNumNodes() {
+        return numNodes;
+    }
+
+    /**
+     * Reads the points of a node from the mapped data file.
+     * 
+     * @param offset
+     *            The offset of the node's points in the data file.
+     * @param count
+     *            The number of points of the node.
+     * @return The points of the node.
+     * @throws IOException
+     *             if the data file could not be mapped.
+     */
+    OctreePointStore readPoints(long offset, int count) throws IOException {
+        if (count == 0) {
+            return new OctreePointStore();
+        }
+
+        ByteBuffer window = getWindow((int) (offset / WINDOW_SIZE));
+        ByteBuffer slice = window.duplicate();
+        slice.position((int) (offset % WINDOW_SIZE));
+
+        OctreePointStore result = new OctreePointStore(count);
+        for (int i = 0; i < count; i++) {
+            result.add(slice.getFloat(), slice.getFloat(), slice.getFloat(), slice.getFloat(), slice.getFloat(),
+                    slice.getFloat());
+        }
+        return result;
+    }
+
+    /**
+     * Loads the points of a node that is about to be drawn for the first
+     * time. With a loader, this only queues the node, and it is drawn once
+     * its points have been uploaded in a later frame.
+     * 
+     * @param node
+     *            The node to load.
+     * @param gl
+     *            the current GL instance.
+     */
+    void load(PackedOctreeNode node, GL3 gl) {
+        if (loader != null) {
+            loader.prepare(node);
+        } else {
+            Queue<OctreeNode> prepared = new ArrayDeque<OctreeNode>(1);
+            node.prepareBuffers(prepared);
+            for (OctreeNode preparedNode : prepared) {
+                preparedNode.upload(gl);
+            }
+        }
+    }
+
+    private synchronized ByteBuffer getWindow(int window) throws IOException {
+        if (windows[window] == null) {
+            long start = window * WINDOW_SIZE;
+            long size = Math.min(WINDOW_SIZE, dataSize - start);
+            windows[window] = dataChannel.map(FileChannel.MapMode.READ_ONLY, start, size);
+        }
+        return windows[window];
+    }
+
+    /**
+     * Closes the data file. Nodes that were not loaded yet can no longer be
+     * drawn afterwards.
+     * 
+     * @throws IOException
+     *             if the data file could not be closed.
+     */
+    public void close() throws IOException {
+        dataChannel.close();
+    }
+
+    /**
+     * Packs a finished out-of-core octree into an index and a data file. The
+     * files of the leaves are deleted once they have been copied.
+     * 
+     * @param root
+     *            The root of the octree, after
+     *            {@link PPOctreeNode#finalizeAdding} was called.
+     * @param storage
+     *            The storage holding the files of the octree's leaves.
+     * @param basename
+     *            The path and name of the files to write, without extension.
+     * @param gridSize
+     *            The number of grid cells along each rib of a subdivided node
+     *            used to build its level of detail subsample.
+     * @throws IOException
+     *             if a file could not be read or written.
+     */
+    public static void write(PPOctreeNode root, PPOctreeStorage storage, String basename, int gridSize)
+            throws IOException {
+        Writer writer = new Writer(storage, new File(basename + DATA_EXTENSION), gridSize);
+        try {
+            writer.writeNode(root);
+        } finally {
+            writer.close();
+        }
+
+        DataOutputStream index = new DataOutputStream(new FileOutputStream(basename + INDEX_EXTENSION));
+        try {
+            index.writeInt(MAGIC);
+            index.writeInt(VERSION);
+            index.writeInt(writer.numNodes);
+            writer.index.writeTo(index);
+        } finally {
+            index.close();
+        }
+    }
+
+    private static class Writer {
+        private final PPOctreeStorage       storage;
+        private final int                   gridSize;
+        private final RandomAccessFile      data;
+        private final FileChannel           dataChannel;
+        private final ByteArrayOutputStream index;
+        private final DataOutputStream      indexOut;
+
+        private long                        position;
+        private int                         numNodes;
+
+        public Writer(PPOctreeStorage storage, File dataFile, int gridSize) throws IOException {
+            this.storage = storage;
+            this.gridSize = gridSize;
+
+            dataFile.delete();
+            this.data = new RandomAccessFile(dataFile, "rw");
+            this.dataChannel = data.getChannel();
+            this.index = new ByteArrayOutputStream();
+            this.indexOut = new DataOutputStream(index);
+        }
+
+        /**
+         * Writes a node and everything below it, children first.
+         * 
+         * @return The (subsample of the) points of the node, for its parent
+         *         to build its own subsample from.
+         */
+        public OctreePointStore writeNode(PPOctreeNode node) throws IOException {
+            OctreePointStore points;
+            int childMask = 0;
+
+            if (node.isSubdivided()) {
+                List<OctreePointStore> samples = new ArrayList<OctreePointStore>(8);
+                PPOctreeNode[] children = node.getChildren();
+                for (int octant = 0; octant < 8; octant++) {
+                    if (children[octant] != null) {
+                        samples.add(writeNode(children[octant]));
+                        childMask |= 1 << octant;
+                    }
+                }
+
+                float halfRib = node.getRibSize() * 0.5f;
+                Float3Vector center = node.getCenter();
+                points = OctreePointStore.gridSubsample(samples, center.getX() - halfRib, center.getY() - halfRib,
+                        center.getZ() - halfRib, node.getRibSize(), gridSize);
+            } else {
+                points = readLeaf(node);
+            }
+
+            long offset = writePoints(points);
+
+            float halfRib = node.getRibSize() * 0.5f;
+            Float3Vector center = node.getCenter();
+            indexOut.writeFloat(center.getX() - halfRib);
+            indexOut.writeFloat(center.getY() - halfRib);
+            indexOut.writeFloat(center.getZ() - halfRib);
+            indexOut.writeFloat(node.getRibSize());
+            indexOut.writeLong(offset);
+            indexOut.writeInt(points.size());
+            indexOut.writeByte(node.getDepth());
+            indexOut.writeByte(childMask);
+            numNodes++;
+
+            return points;
+        }
+
+        private OctreePointStore readLeaf(PPOctreeNode node) throws IOException {
+            long size = node.getBytesFlushed();
+            OctreePointStore result = new OctreePointStore((int) (size / POINT_SIZE));
+
+            ByteBuffer chunk = ByteBuffer.allocate(16 * 1024 * POINT_SIZE);
+            long read = 0;
+            while (read < size) {
+                chunk.clear();
+                int numRead = storage.read(node.getFilename(), read, chunk);
+                if (numRead <= 0 || (numRead % POINT_SIZE) != 0) {
+                    throw new IOException("Node file " + node.getFilename() + " is truncated.");
+                }
+                read += numRead;
+
+                chunk.flip();
+                while (chunk.hasRemaining()) {
+                    result.add(chunk.getFloat(), chunk.getFloat(), chunk.getFloat(), chunk.getFloat(),
+                            chunk.getFloat(), chunk.getFloat());
+                }
+            }
+
+            storage.delete(node.getFilename());
+            return result;
+        }
+
+        private long writePoints(OctreePointStore points) throws IOException {
+            long size = (long) points.size() * POINT_SIZE;
+            if (size > WINDOW_SIZE) {
+                throw new IOException("Octree node of " + points.size() + " points does not fit in a window.");
+            }
+
+            // Skip to the next window if this node would cross into it.
+            if ((position % WINDOW_SIZE) + size > WINDOW_SIZE) {
+                position += WINDOW_SIZE - (position % WINDOW_SIZE);
+            }
+            long offset = position;
+
+            ByteBuffer buffer = ByteBuffer.allocate((int) size);
+            for (int i = 0; i < points.size(); i++) {
+                buffer.putFloat(points.getX(i));
+                buffer.putFloat(points.getY(i));
+                buffer.putFloat(points.getZ(i));
+                buffer.putFloat(points.getR(i));
+                buffer.putFloat(points.getG(i));
+                buffer.putFloat(points.getB(i));
+            }
+            buffer.flip();
+
+            while (buffer.hasRemaining()) {
+                position += dataChannel.write(buffer, position);
+            }
+            return offset;
+        }
+
+        public void close() throws IOException {
+            indexOut.flush();
+            dataChannel.close();
+            data.close();
+        }
+    }
+}
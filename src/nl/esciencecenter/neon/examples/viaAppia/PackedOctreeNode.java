@@ -0,0 +1,128 @@
+package nl.esciencecenter.neon.examples.viaAppia;
+
+import java.io.IOException;
+import java.util.Queue;
+
+import javax.media.opengl.GL3;
+
+import nl.esciencecenter.neon.math.Float3Vector;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/* Copyright 2013 Netherlands eScience Center
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License")
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/**
+ * Node of a {@link PackedOctree}. Its points stay in the mapped data file
+ * until the node is drawn for the first time, so only the parts of the tree
+ * that are actually looked at are ever read and uploaded.
+ * 
+ * @author Maarten van Meersbergen <m.van.meersbergen@esciencecenter.nl>
+ */
+public class PackedOctreeNode extends OctreeNode {
+    private final static Logger logger = LoggerFactory.getLogger(PackedOctreeNode.class);
+
+    private final PackedOctree  source;
+    private final long          offset;
+    private final int           count;
+
+    private boolean             loadRequested = false;
+
+    /**
+     * Constructor for a node of a packed octree.
+     * 
+     * @param source
+     *            The packed octree holding this node's points.
+     * @param depth
+     *            The depth for this node in the octree (root = 0).
+     * @param corner
+     *            The corner location for the lower X, Y, Z values of the cube
+     *            represented by this node.
+     * @param ribSize
+     *            The rib sizes for the cube represented by this node.
+     * @param offset
+     *            The offset of this node's points in the data file.
+     * @param count
+     *            The number of points of this node; all points for leaves,
+     *            the level of detail subsample for subdivided nodes.
+     */
+    public PackedOctreeNode(PackedOctree source, int depth, Float3Vector corner, float ribSize, long offset,
+            int count) {
+        super(depth, corner, ribSize);
+        this.source = source;
+        this.offset = offset;
+        this.count = count;
+
+        // Points are never added to a packed node.
+        this.points = null;
+    }
+
+    /**
+     * Packed nodes need no finalization, their points are loaded when they
+     * are first drawn.
+     */
+    @Override
+    public void finalizeAdding(GL3 gl) {
+    }
+
+    @Override
+    protected int getNumRepresentationPoints() {
+        return count;
+    }
+
+    /**
+     * Reads only this node's own points from the data file; its children are
+     * loaded separately, when they are drawn themselves.
+     */
+    @Override
+    public void prepareBuffers(Queue<OctreeNode> prepared) {
+        try {
+            setHostBuffers(source.readPoints(offset, count));
+            prepared.add(this);
+        } catch (IOException e) {
+            logger.error("Could not load octree node: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Uploads the points, and then drops the host copy, since they can be read
+     * from the data file again after an eviction.
+     */
+    @Override
+    public void upload(GL3 gl) {
+        super.upload(gl);
+        releaseHostBuffers();
+    }
+
+    @Override
+    public void evict(GL3 gl) {
+        super.evict(gl);
+        loadRequested = false;
+    }
+
+    /**
+     * Requests this node's points from the data file, the first time it is
+     * drawn and again after every eviction.
+     */
+    @Override
+    protected void reload(GL3 gl) {
+        if (!loadRequested) {
+            loadRequested = true;
+            VboCache.getInstance().miss();
+            source.load(this, gl);
+        }
+    }
+}
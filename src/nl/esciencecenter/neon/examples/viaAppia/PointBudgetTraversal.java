@@ -0,0 +1,169 @@
+package nl.esciencecenter.neon.examples.viaAppia;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.PriorityQueue;
+
+import javax.media.opengl.GL3;
+
+import nl.esciencecenter.neon.math.Float3Vector;
+import nl.esciencecenter.neon.shaders.ShaderProgram;
+
+/* Copyright 2013 Netherlands eScience Center
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License")
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/**
+ * Selects the octree nodes to draw in a frame, such that no more than a fixed
+ * budget of points is drawn. Starting at the roots, which are drawn from their
+ * level of detail subsample, the node with the largest projected size is
+ * repeatedly replaced by its children, as long as the total number of points
+ * stays within the budget. This keeps the frame time predictable regardless of
+ * the size of the dataset, and spends the points where they are most visible.
+ * 
+ * @author Maarten van Meersbergen <m.van.meersbergen@esciencecenter.nl>
+ */
+public class PointBudgetTraversal {
+    private static class Candidate implements Comparable<Candidate> {
+        private final OctreeNode node;
+        private final float      projectedSize;
+        private final boolean    inside;
+
+        public Candidate(OctreeNode node, float projectedSize, boolean inside) {
+            this.node = node;
+            this.projectedSize = projectedSize;
+            this.inside = inside;
+        }
+
+        @Override
+        public int compareTo(Candidate other) {
+            // Largest projected size first
+            return Float.compare(other.projectedSize, projectedSize);
+        }
+    }
+
+    private final PriorityQueue<Candidate> queue     = new PriorityQueue<Candidate>();
+    private final List<OctreeNode>         selection = new ArrayList<OctreeNode>();
+
+    private long                           numSelectedPoints;
+    private int                            numSelectedNodes;
+
+    /**
+     * Selects the nodes to draw for the current frame. The roots are always
+     * selected if they are in view, even if their subsamples alone exceed the
+     * budget.
+     * 
+     * @param roots
+     *            The roots of the octrees to select from.
+     * @param cameraPosition
+     *            The camera position, in the model space of the octrees.
+     * @param frustum
+     *            The view frustum, in the model space of the octrees, or null
+     *            to select nodes outside of the view as well.
+     * @param budget
+     *            The maximum number of points to select.
+     */
+    public void select(List<OctreeNode> roots, Float3Vector cameraPosition, Frustum frustum, long budget) {
+        queue.clear();
+        selection.clear();
+
+        long points = 0;
+        for (OctreeNode root : roots) {
+            Candidate candidate = createCandidate(root, cameraPosition, frustum, false);
+            if (candidate != null) {
+                points += root.getNumRepresentationPoints();
+                queue.add(candidate);
+            }
+        }
+
+        List<Candidate> children = new ArrayList<Candidate>(8);
+        while (!queue.isEmpty()) {
+            Candidate candidate = queue.poll();
+            OctreeNode node = candidate.node;
+
+            if (node.isSubdivided()) {
+                children.clear();
+                long childPoints = 0;
+                for (OctreeNode child : node.getChildren()) {
+                    if (child != null) {
+                        Candidate childCandidate = createCandidate(child, cameraPosition, frustum, candidate.inside);
+                        if (childCandidate != null) {
+                            childPoints += child.getNumRepresentationPoints();
+                            children.add(childCandidate);
+                        }
+                    }
+                }
+
+                long refinedPoints = (points - node.getNumRepresentationPoints()) + childPoints;
+                if (refinedPoints <= budget) {
+                    points = refinedPoints;
+                    queue.addAll(children);
+                    continue;
+                }
+            }
+
+            selection.add(node);
+        }
+
+        numSelectedPoints = points;
+        numSelectedNodes = selection.size();
+    }
+
+    private Candidate createCandidate(OctreeNode node, Float3Vector cameraPosition, Frustum frustum,
+            boolean parentInside) {
+        boolean inside = parentInside || frustum == null;
+        if (!inside) {
+            int visibility = frustum.cubeInFrustum(node.getCenter(), node.getRibSize());
+            if (visibility == Frustum.OUTSIDE) {
+                return null;
+            }
+            inside = visibility == Frustum.INSIDE;
+        }
+
+        return new Candidate(node, node.getProjectedSize(cameraPosition), inside);
+    }
+
+    /**
+     * Draws the nodes chosen by the last call to
+     * {@link #select(List, Float3Vector, Frustum, long)}.
+     * 
+     * @param gl
+     *            the current GL instance.
+     * @param program
+     *            The ShaderProgram to use in the drawing process.
+     */
+    public void draw(GL3 gl, ShaderProgram program) {
+        for (OctreeNode node : selection) {
+            node.drawRepresentation(gl, program);
+        }
+    }
+
+    /**
+     * Getter for the number of points selected in the last frame.
+     * 
+     * @return the numSelectedPoints.
+     */
+    public long getNumSelectedPoints() {
+        return numSelectedPoints;
+    }
+
+    /**
+     * Getter for the number of nodes selected in the last frame.
+     * 
+     * @return the numSelectedNodes.
+     */
+    public int getNumSelectedNodes() {
+        return numSelectedNodes;
+    }
+}
@@ -1,81 +1,56 @@
 package nl.esciencecenter.neon.examples.viaAppia;
 
-import java.io.File;
-import java.util.ArrayList;
-import java.util.List;
+import java.io.IOException;
 
 import nl.esciencecenter.neon.examples.viaAppia.las.BoundingBox;
+import nl.esciencecenter.neon.examples.viaAppia.las.LASDataset;
 import nl.esciencecenter.neon.examples.viaAppia.las.LASFile;
-import nl.esciencecenter.neon.examples.viaAppia.las.LASPublicHeader;
 import nl.esciencecenter.neon.math.Float3Vector;
 
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
 public class PreProcesser {
+    private final static Logger           logger   = LoggerFactory.getLogger(PreProcesser.class);
+
     // Global (singleton) settings instance.
     private final static ViaAppiaSettings settings = ViaAppiaSettings.getInstance();
 
     public static void main(String[] args) {
-        double minMinX = Double.MAX_VALUE;
-        double minMinY = Double.MAX_VALUE;
-        double minMinZ = Double.MAX_VALUE;
-
-        double maxMaxX = Double.MIN_VALUE;
-        double maxMaxY = Double.MIN_VALUE;
-        double maxMaxZ = Double.MIN_VALUE;
-
-        BoundingBox overallBoundingBox = new BoundingBox(minMinX, maxMaxX, minMinY, maxMaxY, minMinZ, maxMaxZ);
-
-        boolean colorDataIncluded = true;
-
-        List<LASFile> lasFiles = new ArrayList<LASFile>();
-        long totalRecords = 0;
+        LASDataset dataset = LASDataset.open(settings.getFiles());
+        BoundingBox overallBoundingBox = dataset.getBoundingBox();
 
-        for (File dataFile : settings.getFiles()) {
-            if (dataFile != null && dataFile.exists()) {
-                LASFile lasFile = new LASFile(dataFile);
+        System.out.println(dataset);
 
-                LASPublicHeader header = lasFile.getPublicHeader();
-                double minX = header.getMinX();
-                if (minX < minMinX) {
-                    minMinX = minX;
-                }
-                double minY = header.getMinY();
-                if (minY < minMinY) {
-                    minMinY = minY;
-                }
-                double minZ = header.getMinZ();
-                if (minZ < minMinZ) {
-                    minMinZ = minZ;
-                }
-                double maxX = header.getMaxX();
-                if (maxX > maxMaxX) {
-                    maxMaxX = maxX;
-                }
-                double maxY = header.getMaxY();
-                if (maxY > maxMaxY) {
-                    maxMaxY = maxY;
-                }
-                double maxZ = header.getMaxZ();
-                if (maxZ > maxMaxZ) {
-                    maxMaxZ = maxZ;
-                }
+        PPOctreeStorage storage = new PPOctreeStorage(settings.getOctreeDataPath(),
+                settings.getOutOfCoreMaxOpenFiles(), settings.getOutOfCoreWriteBufferSize());
+        PPOctreeNode root = new PPOctreeNode(storage, "r", 0, new Float3Vector(-1f, -1f, -1f), 2f);
 
-                if (header.getPointDataFormatID() < 2) {
-                    colorDataIncluded = false;
-                }
-
-                totalRecords += header.getNumberofpointrecords();
-
-                lasFiles.add(lasFile);
+        try {
+            for (LASFile lasFile : dataset.getLASFiles()) {
+                lasFile.readPointsToOctree(root, overallBoundingBox);
             }
-        }
 
-        overallBoundingBox.set(minMinX, maxMaxX, minMinY, maxMaxY, minMinZ, maxMaxZ);
-
-        System.out.println("Number of records: " + totalRecords);
+            root.finalizeAdding(null);
+            storage.close();
+
+            // Every point that went in should have ended up in exactly one
+            // leaf file, no matter how often its nodes were subdivided.
+            long pointsStored = root.countStoredPoints();
+            System.out.println("Points added     : " + root.getNumPointsAdded());
+            System.out.println("Points stored    : " + pointsStored);
+            if (pointsStored != root.getNumPointsAdded()) {
+                System.err.println("Point count mismatch, " + (root.getNumPointsAdded() - pointsStored)
+                        + " points were lost during subdivision.");
+            }
 
-        PPOctreeNode root = new PPOctreeNode(0, new Float3Vector(-1f, -1f, -1f), 2f);
-        for (LASFile lasFile : lasFiles) {
-            lasFile.readPointsToOctree(root, overallBoundingBox);
+            // Pack all nodes into a single data file and index for the viewer.
+            String basename = settings.getOctreeDataPath() + "octree";
+            PackedOctree.write(root, storage, basename, settings.getLodGridSize());
+            System.out.println("Packed octree    : " + basename + PackedOctree.INDEX_EXTENSION);
+        } catch (IOException e) {
+            logger.error("Building the out-of-core octree failed: " + e.getMessage());
+            System.exit(1);
         }
 
     }
@@ -0,0 +1,121 @@
+package nl.esciencecenter.neon.examples.viaAppia;
+
+import javax.media.opengl.GL;
+import javax.media.opengl.GL3;
+
+/* Copyright 2013 Netherlands eScience Center
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License")
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/**
+ * GPU copy of the points of an octree node, in the compact format of
+ * {@link QuantizedVertexData}: 10 or 12 bytes per point, instead of the 24
+ * bytes of six floats. The shader turns the positions back into model space
+ * with the node's corner and rib size, which are passed as the nodeMin and
+ * nodeSize uniforms.
+ * 
+ * The attribute pointers are captured in a vertex array object once, when
+ * the points are uploaded, so drawing is a single bind and draw call. This
+ * relies on the shaders declaring the attributes at the fixed
+ * {@link #POSITION_LOCATION} and {@link #COLOR_LOCATION}. Neon's
+ * {@link nl.esciencecenter.neon.datastructures.VertexBufferObject} only
+ * supports float attributes, so this class talks to OpenGL directly.
+ * 
+ * @author Maarten van Meersbergen <m.van.meersbergen@esciencecenter.nl>
+ */
+public class QuantizedVertexBuffer {
+    /** The attribute location of MCvertex in the point cloud shaders. */
+    public static final int POSITION_LOCATION = 0;
+    /** The attribute location of MCvertexColor in the point cloud shaders. */
+    public static final int COLOR_LOCATION    = 1;
+
+    private final int[]     buffer            = new int[1];
+    private final int[]     vertexArray       = new int[1];
+    private final int       numVertices;
+    private final long      size;
+
+    /**
+     * Constructor, uploads quantized points to the GPU. The vertex array that
+     * was bound before is bound again afterwards, so this can safely be
+     * called in between drawing other models.
+     * 
+     * @param gl
+     *            the current GL instance.
+     * @param data
+     *            The quantized points.
+     */
+    public QuantizedVertexBuffer(GL3 gl, QuantizedVertexData data) {
+        this.numVertices = data.getNumVertices();
+        this.size = data.getBuffer().capacity();
+
+        int[] previousVertexArray = new int[1];
+        gl.glGetIntegerv(GL3.GL_VERTEX_ARRAY_BINDING, previousVertexArray, 0);
+
+        gl.glGenVertexArrays(1, vertexArray, 0);
+        gl.glBindVertexArray(vertexArray[0]);
+
+        gl.glGenBuffers(1, buffer, 0);
+        gl.glBindBuffer(GL.GL_ARRAY_BUFFER, buffer[0]);
+        gl.glBufferData(GL.GL_ARRAY_BUFFER, size, data.getBuffer(), GL.GL_STATIC_DRAW);
+
+        gl.glVertexAttribPointer(POSITION_LOCATION, 3, GL.GL_UNSIGNED_SHORT, true, data.getStride(),
+                data.getPositionOffset());
+        gl.glEnableVertexAttribArray(POSITION_LOCATION);
+
+        // The colorless shaders simply ignore this attribute.
+        gl.glVertexAttribPointer(COLOR_LOCATION, 4, GL.GL_UNSIGNED_BYTE, true, data.getStride(),
+                data.getColorOffset());
+        gl.glEnableVertexAttribArray(COLOR_LOCATION);
+
+        gl.glBindVertexArray(previousVertexArray[0]);
+    }
+
+    /**
+     * Draws the points in this buffer. The program must be in use, with its
+     * uniforms, including nodeMin and nodeSize, already set. This leaves this
+     * buffer's vertex array bound, callers should restore their own once
+     * they are done drawing octree nodes.
+     * 
+     * @param gl
+     *            the current GL instance.
+     */
+    public void draw(GL3 gl) {
+        gl.glBindVertexArray(vertexArray[0]);
+        gl.glDrawArrays(GL.GL_POINTS, 0, numVertices);
+    }
+
+    /**
+     * Deletes this buffer from the GPU.
+     * 
+     * @param gl
+     *            the current GL instance.
+     */
+    public void delete(GL3 gl) {
+        gl.glDeleteVertexArrays(1, vertexArray, 0);
+        gl.glDeleteBuffers(1, buffer, 0);
+    }
+
+    /**
+     * Getter for the size of this buffer on the GPU.
+     * 
+     * @return the size, in bytes.
+     */
+    public long getSize() {
+        return size;
+    }
+
+    public int getNumVertices() {
+        return numVertices;
+    }
+}
@@ -0,0 +1,158 @@
+package nl.esciencecenter.neon.examples.viaAppia;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/* Copyright 2013 Netherlands eScience Center
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License")
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/**
+ * Host side copy of the points of an octree node, in the compact format drawn
+ * by {@link QuantizedVertexBuffer}: the position as three normalized unsigned
+ * 16 bit integers relative to the bounds of the node, and the color as four
+ * normalized unsigned bytes.
+ * 
+ * The points are laid out in one of two ways. Interleaved, every vertex is 12
+ * bytes, the position padded to 8 bytes followed by the color, so both
+ * attributes stay 4 byte aligned. Separate, all positions come first,
+ * followed by all colors, for 10 bytes per vertex.
+ * 
+ * @author Maarten van Meersbergen <m.van.meersbergen@esciencecenter.nl>
+ */
+public class QuantizedVertexData {
+    /** The size of an interleaved vertex, in bytes. */
+    public static final int  INTERLEAVED_VERTEX_SIZE = 12;
+    /** The size of a quantized position in the separate layout, in bytes. */
+    public static final int  POSITION_SIZE           = 3 * (Short.SIZE / Byte.SIZE);
+    /** The size of a color, in bytes. */
+    public static final int  COLOR_SIZE              = 4;
+
+    private static final int QUANTIZE_STEPS          = 0xFFFF;
+
+    private final ByteBuffer buffer;
+    private final int        numVertices;
+    private final boolean    interleaved;
+
+    private QuantizedVertexData(ByteBuffer buffer, int numVertices, boolean interleaved) {
+        this.buffer = buffer;
+        this.numVertices = numVertices;
+        this.interleaved = interleaved;
+    }
+
+    /**
+     * Quantizes points into a direct buffer, ready to be uploaded.
+     * 
+     * @param store
+     *            The points to quantize.
+     * @param cornerX
+     *            The lower X coordinate of the bounds of the points.
+     * @param cornerY
+     *            The lower Y coordinate of the bounds of the points.
+     * @param cornerZ
+     *            The lower Z coordinate of the bounds of the points.
+     * @param ribSize
+     *            The size of the (cubic) bounds of the points.
+     * @param interleaved
+     *            true for the interleaved layout, false for the separate one.
+     * @return The quantized points.
+     */
+    public static QuantizedVertexData quantize(OctreePointStore store, float cornerX, float cornerY, float cornerZ,
+            float ribSize, boolean interleaved) {
+        int numPoints = store.size();
+
+        int positionStride, colorStride, colorOffset, size;
+        if (interleaved) {
+            positionStride = INTERLEAVED_VERTEX_SIZE;
+            colorStride = INTERLEAVED_VERTEX_SIZE;
+            colorOffset = INTERLEAVED_VERTEX_SIZE - COLOR_SIZE;
+            size = numPoints * INTERLEAVED_VERTEX_SIZE;
+        } else {
+            positionStride = POSITION_SIZE;
+            colorStride = COLOR_SIZE;
+            colorOffset = getSeparateColorOffset(numPoints);
+            size = colorOffset + (numPoints * COLOR_SIZE);
+        }
+
+        ByteBuffer result = ByteBuffer.allocateDirect(size).order(ByteOrder.nativeOrder());
+
+        float scale = ribSize > 0f ? QUANTIZE_STEPS / ribSize : 0f;
+        for (int i = 0; i < numPoints; i++) {
+            int position = i * positionStride;
+            result.putShort(position, quantize((store.getX(i) - cornerX) * scale));
+            result.putShort(position + 2, quantize((store.getY(i) - cornerY) * scale));
+            result.putShort(position + 4, quantize((store.getZ(i) - cornerZ) * scale));
+
+            int color = colorOffset + (i * colorStride);
+            result.put(color, toByte(store.getR(i)));
+            result.put(color + 1, toByte(store.getG(i)));
+            result.put(color + 2, toByte(store.getB(i)));
+            result.put(color + 3, (byte) 0xFF);
+        }
+
+        return new QuantizedVertexData(result, numPoints, interleaved);
+    }
+
+    private static short quantize(float value) {
+        return (short) Math.max(0, Math.min(QUANTIZE_STEPS, Math.round(value)));
+    }
+
+    private static byte toByte(float color) {
+        return (byte) Math.max(0, Math.min(0xFF, Math.round(color * 0xFF)));
+    }
+
+    /**
+     * In the separate layout, the colors start after the positions, at the
+     * next multiple of 4 bytes so they stay aligned.
+     */
+    private static int getSeparateColorOffset(int numVertices) {
+        return ((numVertices * POSITION_SIZE) + 3) & ~3;
+    }
+
+    /**
+     * Getter for the buffer holding the points. Only accessed with absolute
+     * gets, so its position is always 0.
+     * 
+     * @return the buffer.
+     */
+    public ByteBuffer getBuffer() {
+        return buffer;
+    }
+
+    public int getNumVertices() {
+        return numVertices;
+    }
+
+    public boolean isInterleaved() {
+        return interleaved;
+    }
+
+    /**
+     * Getter for the distance between consecutive vertices, for
+     * glVertexAttribPointer.
+     * 
+     * @return the stride, or 0 if the attributes are tightly packed.
+     */
+    public int getStride() {
+        return interleaved ? INTERLEAVED_VERTEX_SIZE : 0;
+    }
+
+    public long getPositionOffset() {
+        return 0L;
+    }
+
+    public long getColorOffset() {
+        return interleaved ? INTERLEAVED_VERTEX_SIZE - COLOR_SIZE : getSeparateColorOffset(numVertices);
+    }
+}
@@ -1,47 +1,50 @@
 package nl.esciencecenter.neon.examples.viaAppia;
 
-import java.io.FileNotFoundException;
 import java.nio.FloatBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
 
 import javax.media.opengl.GL3;
 
 import nl.esciencecenter.neon.models.graphs.ScatterPlot3D;
 
 public class ScatBuilder implements Runnable {
+    /** The number of files whose buffers may wait to be added at once. */
+    private static final int QUEUE_SIZE = 8;
+
     private ScatterPlot3D scat;
     private DataReader dr;
+    private final BlockingQueue<FloatBuffer[]> queue;
 
     public ScatBuilder() {
-        try {
-            dr = new DataReader();
-            new Thread(dr).start();
+        queue = new ArrayBlockingQueue<FloatBuffer[]>(QUEUE_SIZE);
 
-            scat = new ScatterPlot3D();
-        } catch (FileNotFoundException e) {
-            e.printStackTrace();
-        }
+        dr = new DataReader(queue);
+        new Thread(dr).start();
+
+        scat = new ScatterPlot3D();
     }
 
     @Override
     public void run() {
         FloatBuffer[] buffers;
 
-        while (true) {
-            buffers = dr.getBuffers();
-            if (buffers != null) {
+        try {
+            while ((buffers = queue.take()) != DataReader.END_OF_FILES) {
                 System.out.println("Added file detected, now rebuilding scatterplot");
 
                 FloatBuffer vertices = buffers[0];
                 FloatBuffer colors = buffers[1];
 
                 addToScat(vertices, colors);
-            } else {
-                try {
-                    Thread.sleep(100);
-                } catch (InterruptedException e) {
-                    e.printStackTrace();
-                }
             }
+            System.out.println("All files added");
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            // Nothing takes from the queue anymore, so the readers must not
+            // wait for room on it.
+            dr.cancel();
         }
     }
 
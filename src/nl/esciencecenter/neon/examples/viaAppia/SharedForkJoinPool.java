@@ -0,0 +1,47 @@
+package nl.esciencecenter.neon.examples.viaAppia;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+
+/**
+ * The {@link ForkJoinPool} shared by the parallel decoders and builders of
+ * the viewer, such as
+ * {@link nl.esciencecenter.neon.examples.viaAppia.las.LASParallelDecoder} and
+ * {@link MortonOctreeBuilder}. Only a pool for the most recently asked for
+ * parallelism is kept. When the parallelism changes, the old pool is shut
+ * down, which lets it finish the tasks that were already submitted to it, so
+ * work running on another thread is never cut short.
+ * 
+ * Tasks are submitted while holding the lock that guards the pool, so a pool
+ * can never be shut down between being handed out and receiving its task.
+ * 
+ * @author Maarten van Meersbergen <m.van.meersbergen@esciencecenter.nl>
+ */
+public final class SharedForkJoinPool {
+    private static ForkJoinPool pool;
+
+    private SharedForkJoinPool() {
+        // Utility class.
+    }
+
+    /**
+     * Submits a task to the shared pool, which is replaced first if it has
+     * another parallelism.
+     * 
+     * @param parallelism
+     *            The number of threads to run the task on.
+     * @param task
+     *            The task.
+     * @return The task, to wait for with {@link ForkJoinTask#get()} or
+     *         {@link ForkJoinTask#join()}.
+     */
+    public static synchronized <T> ForkJoinTask<T> submit(int parallelism, ForkJoinTask<T> task) {
+        if (pool == null || pool.getParallelism() != parallelism) {
+            if (pool != null) {
+                pool.shutdown();
+            }
+            pool = new ForkJoinPool(parallelism);
+        }
+        return pool.submit(task);
+    }
+}
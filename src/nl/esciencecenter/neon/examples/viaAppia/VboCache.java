@@ -0,0 +1,209 @@
+package nl.esciencecenter.neon.examples.viaAppia;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.media.opengl.GL3;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/* Copyright 2013 Netherlands eScience Center
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License")
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/**
+ * Keeps track of the octree nodes that have their model on the GPU, and keeps
+ * the total size of those models within
+ * {@link ViaAppiaSettings#getGpuMemoryBudget()}. When a new model is uploaded
+ * and the budget is exceeded, the least recently drawn nodes are evicted.
+ * Evicted nodes upload their model again when they are drawn, from their host
+ * copy or, for a {@link PackedOctreeNode}, from disk. Nodes drawn in the
+ * current frame are never evicted, so a visible set larger than the budget
+ * temporarily exceeds it instead of thrashing.
+ * 
+ * All methods must be called from the GL thread.
+ * 
+ * @author Maarten van Meersbergen <m.van.meersbergen@esciencecenter.nl>
+ */
+public class VboCache {
+    private final static Logger logger = LoggerFactory.getLogger(VboCache.class);
+
+    private static class SingletonHolder {
+        public final static VboCache instance = new VboCache();
+    }
+
+    public static VboCache getInstance() {
+        return SingletonHolder.instance;
+    }
+
+    private static class Entry {
+        private final long bytes;
+        private long       lastDrawnFrame;
+
+        public Entry(long bytes, long lastDrawnFrame) {
+            this.bytes = bytes;
+            this.lastDrawnFrame = lastDrawnFrame;
+        }
+    }
+
+    /** Resident nodes, in least recently drawn order. */
+    private final Map<OctreeNode, Entry> resident;
+    private final long                   budget;
+    private long                         residentBytes;
+    private long                         frame;
+
+    private long                         hits, misses, evictions;
+
+    private VboCache() {
+        this.resident = new LinkedHashMap<OctreeNode, Entry>(16, 0.75f, true);
+        this.budget = ViaAppiaSettings.getInstance().getGpuMemoryBudget();
+    }
+
+    /**
+     * Marks the start of a new frame. Nodes drawn before this call may be
+     * evicted again.
+     */
+    public void beginFrame() {
+        frame++;
+    }
+
+    /**
+     * Registers a model that was just uploaded, evicting the least recently
+     * drawn nodes if the budget is exceeded.
+     * 
+     * @param gl
+     *            the current GL instance.
+     * @param node
+     *            The node the model belongs to.
+     * @param bytes
+     *            The size of the model on the GPU, in bytes.
+     */
+    public void add(GL3 gl, OctreeNode node, long bytes) {
+        Entry previous = resident.put(node, new Entry(bytes, frame));
+        if (previous != null) {
+            residentBytes -= previous.bytes;
+        }
+        residentBytes += bytes;
+
+        if (residentBytes > budget) {
+            List<OctreeNode> victims = new ArrayList<OctreeNode>();
+            long remaining = residentBytes;
+            for (Map.Entry<OctreeNode, Entry> candidate : resident.entrySet()) {
+                if (remaining <= budget) {
+                    break;
+                }
+                if (candidate.getKey() != node && candidate.getValue().lastDrawnFrame < frame) {
+                    victims.add(candidate.getKey());
+                    remaining -= candidate.getValue().bytes;
+                }
+            }
+
+            for (OctreeNode victim : victims) {
+                residentBytes -= resident.remove(victim).bytes;
+                victim.evict(gl);
+                evictions++;
+            }
+
+            if (residentBytes > budget) {
+                logger.debug("GPU memory budget exceeded by the nodes drawn this frame: " + residentBytes + " bytes");
+            }
+        }
+    }
+
+    /**
+     * Registers that a resident node is drawn, which makes it the most
+     * recently drawn one.
+     * 
+     * @param node
+     *            The node being drawn.
+     */
+    public void hit(OctreeNode node) {
+        Entry entry = resident.get(node);
+        if (entry != null) {
+            entry.lastDrawnFrame = frame;
+        }
+        hits++;
+    }
+
+    /**
+     * Registers that a node that is not resident is drawn, and has to be
+     * uploaded again.
+     */
+    public void miss() {
+        misses++;
+    }
+
+    /**
+     * Evicts all nodes, for instance because the data they belong to is no
+     * longer drawn.
+     * 
+     * @param gl
+     *            the current GL instance.
+     */
+    public void evictAll(GL3 gl) {
+        for (OctreeNode node : resident.keySet()) {
+            node.evict(gl);
+        }
+        resident.clear();
+        residentBytes = 0;
+    }
+
+    /**
+     * Getter for the total size of the resident models.
+     * 
+     * @return the residentBytes.
+     */
+    public long getResidentBytes() {
+        return residentBytes;
+    }
+
+    public int getNumResidentNodes() {
+        return resident.size();
+    }
+
+    public long getBudget() {
+        return budget;
+    }
+
+    /**
+     * Getter for the number of times a resident node was drawn.
+     * 
+     * @return the hits.
+     */
+    public long getHits() {
+        return hits;
+    }
+
+    /**
+     * Getter for the number of times a node had to be uploaded (or loaded)
+     * again because it was drawn while not resident.
+     * 
+     * @return the misses.
+     */
+    public long getMisses() {
+        return misses;
+    }
+
+    /**
+     * Getter for the number of nodes evicted to stay within the budget.
+     * 
+     * @return the evictions.
+     */
+    public long getEvictions() {
+        return evictions;
+    }
+}
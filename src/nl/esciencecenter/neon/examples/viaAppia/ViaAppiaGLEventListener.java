@@ -1,7 +1,6 @@
 package nl.esciencecenter.neon.examples.viaAppia;
 
 import java.io.File;
-import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
 
@@ -14,9 +13,6 @@ import javax.media.opengl.GLContext;
 import nl.esciencecenter.neon.NeonGLEventListener;
 import nl.esciencecenter.neon.datastructures.FrameBufferObject;
 import nl.esciencecenter.neon.datastructures.IntPixelBufferObject;
-import nl.esciencecenter.neon.examples.viaAppia.las.BoundingBox;
-import nl.esciencecenter.neon.examples.viaAppia.las.LASFile;
-import nl.esciencecenter.neon.examples.viaAppia.las.LASPublicHeader;
 import nl.esciencecenter.neon.exceptions.UninitializedException;
 import nl.esciencecenter.neon.input.InputHandler;
 import nl.esciencecenter.neon.math.Float3Vector;
@@ -58,7 +54,6 @@ import org.slf4j.LoggerFactory;
  */
 public class ViaAppiaGLEventListener extends NeonGLEventListener {
     private final static Logger        logger           = LoggerFactory.getLogger(ViaAppiaGLEventListener.class);
-    private final long                 MAX_POINTS       = 2500000;
 
     // Two example shader program definitions.
     private ShaderProgram              axesShaderProgram, textShaderProgram, lineShaderProgram,
@@ -110,9 +105,12 @@ public class ViaAppiaGLEventListener extends NeonGLEventListener {
 
     private boolean                    colorless        = false;
 
-    private List<OctreeNode>           roots;
+    private final List<OctreeNode>     roots            = new ArrayList<OctreeNode>();
+    private final OctreeLoader         octreeLoader     = new OctreeLoader();
+    private final VboCache             vboCache         = VboCache.getInstance();
     // private BoxModel baseBox;
-    private Frustum                    frustum;
+    private final Frustum              frustum          = new Frustum();
+    private final PointBudgetTraversal traversal        = new PointBudgetTraversal();
 
     // private List<BarebonesModel> bbModels;
 
@@ -272,6 +270,11 @@ public class ViaAppiaGLEventListener extends NeonGLEventListener {
         // version).
         final GL3 gl = GLContext.getCurrentGL().getGL3();
 
+        // Upload whatever the background loader has finished since the last
+        // frame, within the time budget so the frame rate does not suffer.
+        octreeLoader.update(gl, roots, settings.getUploadBudget() * 1000000L);
+        colorless = octreeLoader.isColorless();
+
         // First, we clear the buffer to start with a clean slate to draw on.
         gl.glClear(GL.GL_COLOR_BUFFER_BIT | GL.GL_DEPTH_BUFFER_BIT);
 
@@ -409,14 +412,23 @@ public class ViaAppiaGLEventListener extends NeonGLEventListener {
         // }
         // }
 
-        contextOff(drawable);
-
         // Check if the user wants to load new files
         if (settings.isNewFiles()) {
             reloadData(gl);
         }
+
+        contextOff(drawable);
     }
 
+    /**
+     * Starts loading the currently selected files in the background, and
+     * removes the previously loaded data from view. The new data appears as
+     * the {@link OctreeLoader} finishes it, see
+     * {@link OctreeLoader#update(GL3, List, long)}.
+     * 
+     * @param gl
+     *            the current GL instance.
+     */
     private void reloadData(GL3 gl) {
         // if (pcModels != null) {
         // for (LASPointCloudModel currentModel : pcModels) {
@@ -426,113 +438,9 @@ public class ViaAppiaGLEventListener extends NeonGLEventListener {
         //
         // pcModels = new ArrayList<LASPointCloudModel>();
 
-        double minMinX = Double.MAX_VALUE;
-        double minMinY = Double.MAX_VALUE;
-        double minMinZ = Double.MAX_VALUE;
-
-        double maxMaxX = Double.MIN_VALUE;
-        double maxMaxY = Double.MIN_VALUE;
-        double maxMaxZ = Double.MIN_VALUE;
-
-        BoundingBox overallBoundingBox = new BoundingBox(minMinX, maxMaxX, minMinY, maxMaxY, minMinZ, maxMaxZ);
-
-        boolean colorDataIncluded = true;
-
-        List<LASFile> lasFiles = new ArrayList<LASFile>();
-        long totalRecords = 0;
-
-        for (File dataFile : settings.getFiles()) {
-            if (dataFile != null && dataFile.exists()) {
-                LASFile lasFile = new LASFile(dataFile);
-
-                LASPublicHeader header = lasFile.getPublicHeader();
-                double minX = header.getMinX();
-                if (minX < minMinX) {
-                    minMinX = minX;
-                }
-                double minY = header.getMinY();
-                if (minY < minMinY) {
-                    minMinY = minY;
-                }
-                double minZ = header.getMinZ();
-                if (minZ < minMinZ) {
-                    minMinZ = minZ;
-                }
-                double maxX = header.getMaxX();
-                if (maxX > maxMaxX) {
-                    maxMaxX = maxX;
-                }
-                double maxY = header.getMaxY();
-                if (maxY > maxMaxY) {
-                    maxMaxY = maxY;
-                }
-                double maxZ = header.getMaxZ();
-                if (maxZ > maxMaxZ) {
-                    maxMaxZ = maxZ;
-                }
-
-                if (header.getPointDataFormatID() < 2) {
-                    colorDataIncluded = false;
-                }
-
-                totalRecords += header.getNumberofpointrecords();
-
-                lasFiles.add(lasFile);
-            }
-        }
-
-        overallBoundingBox.set(minMinX, maxMaxX, minMinY, maxMaxY, minMinZ, maxMaxZ);
-
-        double frac = (totalRecords / MAX_POINTS) - 1.0;
-        int skip;
-
-        if (frac < 0.0) {
-            skip = 0;
-        } else {
-            skip = (int) Math.ceil(frac);
-        }
-
-        System.out.println("Number of records: " + totalRecords);
-        System.out.println("Skipping         : " + skip);
-
-        roots = new ArrayList<OctreeNode>();
-        // bbModels = new ArrayList<BarebonesModel>();
-        for (LASFile lasFile : lasFiles) {
-            PPOctreeNode ppRoot = new PPOctreeNode("D:/Via Appia/", 0, new Float3Vector(-1f, -1f, -1f), 2f);
-            // OctreeNode root = new OctreeNode(0, new Float3Vector(-1f, -1f,
-            // -1f), 2f);
-            // roots.add(root);
-            lasFile.readPointsToOctree(ppRoot, overallBoundingBox);
-            try {
-                ppRoot.finalizeAdding(gl);
-            } catch (IOException e) {
-                // TODO Auto-generated catch block
-                e.printStackTrace();
-            }
-            // root.finalizeAdding(gl);
-            System.out.println("Leaves in octree: " + ppRoot.getNumLeaves());
-
-            // bbModels.addAll(root.getModels());
-            // for (BarebonesModel bbModel : bbModels) {
-            // bbModel.init(gl);
-            // }
-        }
-
-        // List<Float3Vector> triangles = root.getLeafTriangles();
-
-        // for (LASFile lasFile : lasFiles) {
-        // LASPointCloudModel currentModel = new LASPointCloudModel(lasFile,
-        // overallBoundingBox, skip);
-        // pcModels.add(currentModel);
-        // }
-        //
-        // for (LASPointCloudModel currentModel : pcModels) {
-        // currentModel.init(gl);
-        // }
-
-        colorless = !colorDataIncluded;
-
-        System.out.println("init complete");
+        roots.clear();
+        vboCache.evictAll(gl);
+        octreeLoader.load(settings.getFiles());
     }
 
     private float pointToVectorDistance(Float4Vector point, Float3Vector a, Float3Vector b) {
@@ -551,9 +459,6 @@ public class ViaAppiaGLEventListener extends NeonGLEventListener {
     }
 
     private Float4Matrix makePerspectiveMatrix() {
-        frustum = new Frustum(getFovy(), getAspect(), getzNear(), getzFar(), inputHandler.getCameraPosition(),
-                inputHandler.getCameraDirection(), new Float3Vector(0f, 1f, 0f), new Float3Vector(1f, 0f, 0f));
-
         return FloatMatrixMath.perspective(getFovy(), getAspect(), getzNear(), getzFar());
     }
 
@@ -764,6 +669,21 @@ public class ViaAppiaGLEventListener extends NeonGLEventListener {
         // }
     }
 
+    /**
+     * Transforms a position into the model space of the point cloud. The
+     * point cloud is rotated by -90 degrees around the X axis twice, once in
+     * {@link #renderScene(GL3, Float4Matrix)} and once in
+     * {@link #renderPointCloud(GL3, Float4Matrix, ShaderProgram)}, and the
+     * inverse of that rotation negates the Y and Z coordinates.
+     * 
+     * @param position
+     *            The position to transform.
+     * @return The position in the model space of the point cloud.
+     */
+    private Float3Vector toPointCloudSpace(Float3Vector position) {
+        return new Float3Vector(position.getX(), -position.getY(), -position.getZ());
+    }
+
     public void renderPointCloud(GL3 gl, Float4Matrix mv, ShaderProgram program) throws UninitializedException {
         program.setUniformMatrix("PMatrix", makePerspectiveMatrix());
 
@@ -775,10 +695,36 @@ public class ViaAppiaGLEventListener extends NeonGLEventListener {
         Float3Vector cameraPosition = inputHandler.getCameraPosition();
         program.setUniformVector("cameraPos", cameraPosition);
 
-        for (OctreeNode node : roots) {
-            node.draw(gl, program, cameraPosition);
+        // Cull the octree against the view frustum in its own model space,
+        // so the nodes can be tested without transforming them.
+        Float3Vector modelCameraPosition = toPointCloudSpace(cameraPosition);
+        frustum.update(getFovy(), getAspect(), getzNear(), getzFar(), modelCameraPosition,
+                toPointCloudSpace(inputHandler.getCameraDirection()), toPointCloudSpace(new Float3Vector(0f, 1f, 0f)));
+
+        // The octree nodes each bind their own vertex array, restore the one
+        // the other models are drawn with afterwards.
+        int[] vertexArray = new int[1];
+        gl.glGetIntegerv(GL3.GL_VERTEX_ARRAY_BINDING, vertexArray, 0);
+
+        vboCache.beginFrame();
+        if (settings.isPointBudgetRendering()) {
+            traversal.select(roots, modelCameraPosition, frustum, settings.getPointBudget());
+            traversal.draw(gl, program);
+
+            logger.debug("Point budget: " + traversal.getNumSelectedPoints() + " points in "
+                    + traversal.getNumSelectedNodes() + " nodes");
+        } else {
+            for (OctreeNode node : roots) {
+                node.draw(gl, program, modelCameraPosition, frustum);
+            }
         }
 
+        gl.glBindVertexArray(vertexArray[0]);
+
+        logger.debug("GPU memory: " + vboCache.getResidentBytes() + " of " + vboCache.getBudget() + " bytes in "
+                + vboCache.getNumResidentNodes() + " nodes, hits: " + vboCache.getHits() + ", misses: "
+                + vboCache.getMisses() + ", evictions: " + vboCache.getEvictions());
+
         // for (LASPointCloudModel model : pcModels) {
         // model.draw(gl, program);
         // }
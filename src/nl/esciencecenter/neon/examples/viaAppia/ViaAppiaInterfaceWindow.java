@@ -117,7 +117,7 @@ public class ViaAppiaInterfaceWindow extends JPanel {
     private void handleFiles(File[] files) {
         boolean accept = true;
         for (File thisFile : files) {
-            if (!isAcceptableFile(thisFile, new String[] { ".las" })) {
+            if (!isAcceptableFile(thisFile, new String[] { ".las", ".laz", PackedOctree.INDEX_EXTENSION })) {
                 accept = false;
             }
         }
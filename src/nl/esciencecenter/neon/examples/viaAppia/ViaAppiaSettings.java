@@ -48,6 +48,23 @@ public class ViaAppiaSettings extends Settings {
     private float hueFactor = 1f;
     private float saturationFactor = 1f;
 
+    private int decodeParallelism = Runtime.getRuntime().availableProcessors();
+
+    private int lodGridSize = 64;
+    private float lodThreshold = 0.5f;
+
+    private boolean pointBudgetRendering = true;
+    private int pointBudget = 2500000;
+    private long maxLoadedPoints = 25000000;
+
+    private String octreeDataPath = "octree/";
+    private int outOfCoreMaxOpenFiles = 256;
+    private long outOfCoreWriteBufferSize = 256L * 1024 * 1024;
+
+    private int uploadBudget = 8;
+    private long gpuMemoryBudget = 1024L * 1024 * 1024;
+    private boolean interleavedVertices = false;
+
     private File[] files;
     private boolean newFilesLoaded = false;
 
@@ -59,6 +76,32 @@ public class ViaAppiaSettings extends Settings {
             props.loadFromClassPath("settings.properties");
 
             screenshotFileName = props.getProperty("SCREENSHOT_FILENAME");
+
+            int parallelism = props.getIntProperty("DECODE_PARALLELISM", 0);
+            if (parallelism > 0) {
+                decodeParallelism = parallelism;
+            }
+
+            lodGridSize = Math.max(1, Math.min(1024, props.getIntProperty("LOD_GRID_SIZE", lodGridSize)));
+            lodThreshold = props.getFloatProperty("LOD_THRESHOLD", lodThreshold);
+
+            pointBudgetRendering = props.getBooleanProperty("POINT_BUDGET_RENDERING", pointBudgetRendering);
+            pointBudget = Math.max(0, props.getIntProperty("POINT_BUDGET", pointBudget));
+            maxLoadedPoints = Math.max(1, props.getLongProperty("MAX_LOADED_POINTS", maxLoadedPoints));
+
+            String dataPath = props.getProperty("OCTREE_DATA_PATH");
+            if (dataPath != null && !dataPath.isEmpty()) {
+                octreeDataPath = dataPath.endsWith("/") ? dataPath : dataPath + "/";
+            }
+            outOfCoreMaxOpenFiles = Math.max(1,
+                    props.getIntProperty("OUT_OF_CORE_MAX_OPEN_FILES", outOfCoreMaxOpenFiles));
+            int writeBufferMB = Math.max(1, props.getIntProperty("OUT_OF_CORE_WRITE_BUFFER_MB", 256));
+            outOfCoreWriteBufferSize = writeBufferMB * 1024L * 1024L;
+
+            uploadBudget = Math.max(0, props.getIntProperty("UPLOAD_BUDGET_MS", uploadBudget));
+            int gpuMemoryMB = Math.max(1, props.getIntProperty("GPU_MEMORY_BUDGET_MB", 1024));
+            gpuMemoryBudget = gpuMemoryMB * 1024L * 1024L;
+            interleavedVertices = props.getBooleanProperty("INTERLEAVED_VERTICES", interleavedVertices);
         } catch (NumberFormatException e) {
             logger.debug(e.getMessage());
         }
@@ -99,6 +142,149 @@ public class ViaAppiaSettings extends Settings {
         this.saturationFactor = value;
     }
 
+    /**
+     * Getter for the number of threads used to decode LAS point data. Set
+     * DECODE_PARALLELISM to 0 to use all available processors.
+     * 
+     * @return the decodeParallelism.
+     */
+    public int getDecodeParallelism() {
+        return decodeParallelism;
+    }
+
+    public void setDecodeParallelism(int value) {
+        this.decodeParallelism = value;
+    }
+
+    /**
+     * Getter for the number of grid cells along each rib of an octree node
+     * used to subsample its subtree for level of detail. Every cell keeps at
+     * most one point.
+     * 
+     * @return the lodGridSize.
+     */
+    public int getLodGridSize() {
+        return lodGridSize;
+    }
+
+    /**
+     * Getter for the level of detail threshold. An octree node is drawn from
+     * its subsample instead of its children if its rib size divided by its
+     * distance to the camera falls below this value. Lower values give more
+     * detail.
+     * 
+     * @return the lodThreshold.
+     */
+    public float getLodThreshold() {
+        return lodThreshold;
+    }
+
+    public void setLodThreshold(float value) {
+        this.lodThreshold = value;
+    }
+
+    /**
+     * Getter for the render mode. If true, the octree is drawn by a
+     * {@link PointBudgetTraversal} that never draws more than
+     * {@link #getPointBudget()} points per frame. If false, every node is
+     * drawn according to the level of detail threshold alone.
+     * 
+     * @return the pointBudgetRendering.
+     */
+    public boolean isPointBudgetRendering() {
+        return pointBudgetRendering;
+    }
+
+    public void setPointBudgetRendering(boolean value) {
+        this.pointBudgetRendering = value;
+    }
+
+    /**
+     * Getter for the maximum number of points drawn per frame in point budget
+     * rendering mode.
+     * 
+     * @return the pointBudget.
+     */
+    public int getPointBudget() {
+        return pointBudget;
+    }
+
+    public void setPointBudget(int value) {
+        this.pointBudget = value;
+    }
+
+    /**
+     * Getter for the maximum number of points loaded into the octree. Datasets
+     * with more points are thinned out by skipping records while decoding.
+     * 
+     * @return the maxLoadedPoints.
+     */
+    public long getMaxLoadedPoints() {
+        return maxLoadedPoints;
+    }
+
+    /**
+     * Getter for the directory the out-of-core octree builder stores its
+     * temporary node files and the resulting packed octree in, ending with a
+     * separator.
+     * 
+     * @return the octreeDataPath.
+     */
+    public String getOctreeDataPath() {
+        return octreeDataPath;
+    }
+
+    /**
+     * Getter for the maximum number of node files the out-of-core octree
+     * builder keeps open at the same time.
+     * 
+     * @return the outOfCoreMaxOpenFiles.
+     */
+    public int getOutOfCoreMaxOpenFiles() {
+        return outOfCoreMaxOpenFiles;
+    }
+
+    /**
+     * Getter for the number of bytes the out-of-core octree builder may keep
+     * in write batches before flushing them to disk.
+     * 
+     * @return the outOfCoreWriteBufferSize.
+     */
+    public long getOutOfCoreWriteBufferSize() {
+        return outOfCoreWriteBufferSize;
+    }
+
+    /**
+     * Getter for the time, in milliseconds, the GL thread may spend per frame
+     * on uploading newly loaded octree nodes to the GPU.
+     * 
+     * @return the uploadBudget.
+     */
+    public int getUploadBudget() {
+        return uploadBudget;
+    }
+
+    /**
+     * Getter for the number of bytes of octree node models kept on the GPU,
+     * beyond which the least recently drawn nodes are evicted.
+     * 
+     * @return the gpuMemoryBudget.
+     */
+    public long getGpuMemoryBudget() {
+        return gpuMemoryBudget;
+    }
+
+    /**
+     * Getter for the vertex layout of octree node models: interleaved (12
+     * bytes per point, every vertex contiguous) or separate (10 bytes per
+     * point, all positions followed by all colors).
+     * 
+     * @return the interleavedVertices.
+     */
+    public boolean isInterleavedVertices() {
+        return interleavedVertices;
+    }
+
     public synchronized void setFiles(File[] files) {
         this.files = files;
         this.newFilesLoaded = true;
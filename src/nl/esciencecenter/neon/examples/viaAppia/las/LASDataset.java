@@ -0,0 +1,425 @@
+package nl.esciencecenter.neon.examples.viaAppia.las;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import nl.esciencecenter.neon.examples.viaAppia.ViaAppiaSettings;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A set of LAS files that are loaded together. Opening a dataset reads the
+ * public headers of all files, in parallel, and combines them into the
+ * overall bounding box, the total number of point records and the mix of
+ * point data formats.
+ * 
+ * The raw headers are cached in a small sidecar file, {@link #CACHE_FILENAME},
+ * in the directory of the LAS files, keyed by file name, size and
+ * modification time. Reopening the same files only reads the sidecar, the
+ * LAS files themselves are not opened again until their points are decoded.
+ * If the sidecar cannot be written, for instance in a read only directory,
+ * the headers are simply scanned again next time.
+ * 
+ * @author Maarten van Meersbergen <m.van.meersbergen@esciencecenter.nl>
+ */
+public class LASDataset {
+    private final static Logger       logger         = LoggerFactory.getLogger(LASDataset.class);
+
+    /** The name of the header cache written next to the LAS files. */
+    public static final String        CACHE_FILENAME = ".lasheaders";
+    private static final int          CACHE_MAGIC    = 0x4C415348;
+    private static final int          CACHE_VERSION  = 2;
+
+    private final List<LASFile>               lasFiles;
+    private final BoundingBox                 boundingBox;
+    private final long                        totalRecords;
+    private final SortedMap<Integer, Integer> filesPerFormat;
+    private final int                         numCachedHeaders;
+
+    private LASDataset(List<LASFile> lasFiles, int numCachedHeaders) {
+        this.lasFiles = Collections.unmodifiableList(lasFiles);
+        this.numCachedHeaders = numCachedHeaders;
+
+        // The maxima start at the lowest possible value, not at
+        // Double.MIN_VALUE, which is the smallest positive double.
+        double minX = Double.MAX_VALUE, minY = Double.MAX_VALUE, minZ = Double.MAX_VALUE;
+        double maxX = -Double.MAX_VALUE, maxY = -Double.MAX_VALUE, maxZ = -Double.MAX_VALUE;
+
+        long records = 0;
+        SortedMap<Integer, Integer> formats = new TreeMap<Integer, Integer>();
+
+        for (LASFile lasFile : lasFiles) {
+            LASPublicHeader header = lasFile.getPublicHeader();
+            minX = Math.min(minX, header.getMinX());
+            minY = Math.min(minY, header.getMinY());
+            minZ = Math.min(minZ, header.getMinZ());
+            maxX = Math.max(maxX, header.getMaxX());
+            maxY = Math.max(maxY, header.getMaxY());
+            maxZ = Math.max(maxZ, header.getMaxZ());
+
+            records += header.getPointRecordCount();
+
+            int format = header.getPointDataFormatID();
+            Integer count = formats.get(format);
+            formats.put(format, count == null ? 1 : count + 1);
+        }
+
+        if (lasFiles.isEmpty()) {
+            this.boundingBox = new BoundingBox(0, 0, 0, 0, 0, 0);
+        } else {
+            this.boundingBox = new BoundingBox(minX, maxX, minY, maxY, minZ, maxZ);
+        }
+        this.totalRecords = records;
+        this.filesPerFormat = Collections.unmodifiableSortedMap(formats);
+    }
+
+    /**
+     * Opens a dataset, reading the headers of the given LAS files from their
+     * sidecar caches where possible, and scanning the others on
+     * {@link ViaAppiaSettings#getDecodeParallelism()} threads. Files that do
+     * not exist, cannot be read or do not have a valid LAS header are left out
+     * of the dataset.
+     * 
+     * @param files
+     *            The LAS files to open.
+     * @return The dataset.
+     */
+    public static LASDataset open(File[] files) {
+        List<File> dataFiles = new ArrayList<File>();
+        for (File dataFile : files) {
+            if (dataFile != null && dataFile.isFile()) {
+                dataFiles.add(dataFile.getAbsoluteFile());
+            }
+        }
+
+        // Look up every file in the cache of its directory.
+        Map<File, Map<String, CachedHeader>> caches = new HashMap<File, Map<String, CachedHeader>>();
+        Map<File, byte[]> headerBlocks = new HashMap<File, byte[]>();
+        List<File> toScan = new ArrayList<File>();
+
+        for (File dataFile : dataFiles) {
+            File directory = dataFile.getParentFile();
+            Map<String, CachedHeader> cache = caches.get(directory);
+            if (cache == null) {
+                cache = readCache(new File(directory, CACHE_FILENAME));
+                caches.put(directory, cache);
+            }
+
+            CachedHeader cached = cache.get(dataFile.getName());
+            if (cached != null && cached.matches(dataFile)) {
+                headerBlocks.put(dataFile, cached.headerBlock);
+            } else {
+                toScan.add(dataFile);
+            }
+        }
+        int numCachedHeaders = headerBlocks.size();
+
+        // Read the headers that were not cached in parallel, and add them to
+        // the caches of their directories.
+        if (!toScan.isEmpty()) {
+            Map<File, byte[]> scanned = scanHeaders(toScan);
+
+            List<File> changedDirectories = new ArrayList<File>();
+            for (Map.Entry<File, byte[]> entry : scanned.entrySet()) {
+                File dataFile = entry.getKey();
+                File directory = dataFile.getParentFile();
+                headerBlocks.put(dataFile, entry.getValue());
+                caches.get(directory).put(dataFile.getName(), new CachedHeader(dataFile, entry.getValue()));
+                if (!changedDirectories.contains(directory)) {
+                    changedDirectories.add(directory);
+                }
+            }
+
+            for (File directory : changedDirectories) {
+                writeCache(new File(directory, CACHE_FILENAME), caches.get(directory));
+            }
+        }
+
+        // Keep the order in which the files were given.
+        List<LASFile> lasFiles = new ArrayList<LASFile>();
+        for (File dataFile : dataFiles) {
+            byte[] headerBlock = headerBlocks.get(dataFile);
+            if (headerBlock == null) {
+                continue;
+            }
+
+            LASPublicHeader header = toPublicHeader(headerBlock);
+            if (!header.isAcceptableHeader()) {
+                logger.warn("Not a LAS file, skipped: " + dataFile);
+                continue;
+            }
+            lasFiles.add(new LASFile(dataFile, header));
+        }
+
+        return new LASDataset(lasFiles, numCachedHeaders);
+    }
+
+    private static Map<File, byte[]> scanHeaders(List<File> dataFiles) {
+        int numThreads = Math.max(1, Math.min(ViaAppiaSettings.getInstance().getDecodeParallelism(),
+                dataFiles.size()));
+        ExecutorService executor = Executors.newFixedThreadPool(numThreads);
+
+        Map<File, Future<byte[]>> futures = new LinkedHashMap<File, Future<byte[]>>();
+        for (final File dataFile : dataFiles) {
+            futures.put(dataFile, executor.submit(new Callable<byte[]>() {
+                @Override
+                public byte[] call() throws IOException {
+                    return readHeaderBlock(dataFile);
+                }
+            }));
+        }
+
+        Map<File, byte[]> result = new LinkedHashMap<File, byte[]>();
+        try {
+            for (Map.Entry<File, Future<byte[]>> entry : futures.entrySet()) {
+                try {
+                    result.put(entry.getKey(), entry.getValue().get());
+                } catch (ExecutionException e) {
+                    logger.error("Could not read the header of " + entry.getKey() + ": "
+                            + e.getCause().getMessage());
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            executor.shutdownNow();
+        }
+
+        return result;
+    }
+
+    private static byte[] readHeaderBlock(File dataFile) throws IOException {
+        try (FileChannel fc = FileChannel.open(dataFile.toPath(), StandardOpenOption.READ)) {
+            // Read the largest header there is, older and shorter headers
+            // simply ignore the rest.
+            ByteBuffer headerBlock = ByteBuffer.allocate(LASPublicHeader.MAX_HEADER_SIZE);
+            while (headerBlock.hasRemaining()) {
+                if (fc.read(headerBlock) < 0) {
+                    break;
+                }
+            }
+            if (headerBlock.position() < LASPublicHeader.HEADER_SIZE) {
+                throw new IOException("File too short for a LAS header");
+            }
+            return Arrays.copyOf(headerBlock.array(), headerBlock.position());
+        }
+    }
+
+    private static LASPublicHeader toPublicHeader(byte[] headerBlock) {
+        // The header flips the buffer before reading, so it must be passed
+        // positioned at the end of the data.
+        ByteBuffer buffer = ByteBuffer.allocate(headerBlock.length);
+        buffer.put(headerBlock);
+        return new LASPublicHeader(buffer);
+    }
+
+    /** A raw header block, with the size and time of the file it came from. */
+    private static class CachedHeader {
+        private final long   length;
+        private final long   lastModified;
+        private final byte[] headerBlock;
+
+        public CachedHeader(long length, long lastModified, byte[] headerBlock) {
+            this.length = length;
+            this.lastModified = lastModified;
+            this.headerBlock = headerBlock;
+        }
+
+        public CachedHeader(File dataFile, byte[] headerBlock) {
+            this(dataFile.length(), dataFile.lastModified(), headerBlock);
+        }
+
+        public boolean matches(File dataFile) {
+            return length == dataFile.length() && lastModified == dataFile.lastModified();
+        }
+    }
+
+    private static Map<String, CachedHeader> readCache(File cacheFile) {
+        Map<String, CachedHeader> result = new HashMap<String, CachedHeader>();
+        if (!cacheFile.isFile()) {
+            return result;
+        }
+
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(cacheFile)))) {
+            if (in.readInt() != CACHE_MAGIC || in.readInt() != CACHE_VERSION) {
+                return result;
+            }
+
+            int numEntries = in.readInt();
+            for (int i = 0; i < numEntries; i++) {
+                String name = in.readUTF();
+                long length = in.readLong();
+                long lastModified = in.readLong();
+                byte[] headerBlock = new byte[in.readInt()];
+                in.readFully(headerBlock);
+                result.put(name, new CachedHeader(length, lastModified, headerBlock));
+            }
+        } catch (IOException e) {
+            // A damaged cache only means the headers are scanned again.
+            logger.warn("Ignoring header cache " + cacheFile + ": " + e.getMessage());
+            result.clear();
+        }
+
+        return result;
+    }
+
+    private static void writeCache(File cacheFile, Map<String, CachedHeader> cache) {
+        Path tempFile = null;
+        try {
+            // A temporary file of its own, in the same directory, so that
+            // concurrent writers never share one, and it can be moved over
+            // the cache atomically.
+            tempFile = Files.createTempFile(cacheFile.getAbsoluteFile().getParentFile().toPath(),
+                    cacheFile.getName(), ".tmp");
+
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                    Files.newOutputStream(tempFile)))) {
+                out.writeInt(CACHE_MAGIC);
+                out.writeInt(CACHE_VERSION);
+                out.writeInt(cache.size());
+                for (Map.Entry<String, CachedHeader> entry : cache.entrySet()) {
+                    CachedHeader cached = entry.getValue();
+                    out.writeUTF(entry.getKey());
+                    out.writeLong(cached.length);
+                    out.writeLong(cached.lastModified);
+                    out.writeInt(cached.headerBlock.length);
+                    out.write(cached.headerBlock);
+                }
+            }
+
+            // Replace the old cache in one step, so a concurrent reader
+            // always sees either the old or the new cache, never none or a
+            // partially written one.
+            Files.move(tempFile, cacheFile.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            logger.debug("Could not write header cache " + cacheFile + ": " + e.getMessage());
+            if (tempFile != null) {
+                try {
+                    Files.deleteIfExists(tempFile);
+                } catch (IOException e2) {
+                    logger.debug("Could not delete " + tempFile + ": " + e2.getMessage());
+                }
+            }
+        }
+    }
+
+    /**
+     * Getter for whether a point data format includes RGB colors.
+     * 
+     * @param pointDataFormatID
+     *            The point data format.
+     * @return true for the formats with colors.
+     */
+    public static boolean hasColor(int pointDataFormatID) {
+        switch (pointDataFormatID) {
+        case 2:
+        case 3:
+        case 5:
+        case 7:
+        case 8:
+        case 10:
+            return true;
+        default:
+            return false;
+        }
+    }
+
+    /**
+     * Getter for the files in this dataset, in the order they were given.
+     * 
+     * @return the lasFiles.
+     */
+    public List<LASFile> getLASFiles() {
+        return lasFiles;
+    }
+
+    public boolean isEmpty() {
+        return lasFiles.isEmpty();
+    }
+
+    /**
+     * Getter for the bounding box around all files in this dataset.
+     * 
+     * @return the boundingBox.
+     */
+    public BoundingBox getBoundingBox() {
+        return boundingBox;
+    }
+
+    public long getTotalRecords() {
+        return totalRecords;
+    }
+
+    /**
+     * Getter for the number of files per point data format.
+     * 
+     * @return the filesPerFormat.
+     */
+    public SortedMap<Integer, Integer> getFilesPerFormat() {
+        return filesPerFormat;
+    }
+
+    /**
+     * Getter for whether all files in this dataset have color data.
+     * 
+     * @return false if at least one of the files has no colors.
+     */
+    public boolean isColorDataIncluded() {
+        for (int format : filesPerFormat.keySet()) {
+            if (!hasColor(format)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Getter for the number of headers that were read from the sidecar
+     * caches instead of from the LAS files.
+     * 
+     * @return the numCachedHeaders.
+     */
+    public int getNumCachedHeaders() {
+        return numCachedHeaders;
+    }
+
+    @Override
+    public String toString() {
+        String result = "";
+        result += "files:                      " + lasFiles.size() + " (" + numCachedHeaders + " headers cached)\n";
+        result += "number of point records:    " + totalRecords + "\n";
+        result += "files per point format:     " + filesPerFormat + "\n";
+        result += "min x y z:                  " + boundingBox.getMinX() + " " + boundingBox.getMinY() + " "
+                + boundingBox.getMinZ() + "\n";
+        result += "max x y z:                  " + boundingBox.getMaxX() + " " + boundingBox.getMaxY() + " "
+                + boundingBox.getMaxZ() + "\n";
+        return result;
+    }
+}
@@ -0,0 +1,146 @@
+package nl.esciencecenter.neon.examples.viaAppia.las;
+
+import java.io.IOException;
+import java.nio.FloatBuffer;
+import java.nio.channels.FileChannel;
+
+import javax.media.opengl.GL3;
+
+import nl.esciencecenter.neon.datastructures.GLSLAttribute;
+import nl.esciencecenter.neon.datastructures.VertexBufferObject;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Common base of the LAS 1.4 point data record formats 6 to 10. These formats
+ * share the layout of format 6 for their first 30 bytes, so they only differ
+ * in their minimum record size and in whether colors follow. All of them are
+ * decoded by the same {@link LASParallelDecoder} path.
+ * 
+ * Records are stepped through by the point data record length in the header,
+ * not by the size of the format, since LAS 1.4 files often append extra bytes
+ * to every point.
+ * 
+ * @author Maarten van Meersbergen <m.van.meersbergen@esciencecenter.nl>
+ */
+public abstract class LASExtendedPointDataRecord implements LASPointDataRecord {
+    private final static Logger   logger                = LoggerFactory.getLogger(LASExtendedPointDataRecord.class);
+
+    /*
+     * GPS Time: The GPS Time is the double floating point time tag value at
+     * which the point was acquired, at offset 22 for all LAS 1.4 formats.
+     */
+    private static final int      GPS_TIME_OFFSET       = 22;
+
+    /*
+     * Classification: A full byte in the LAS 1.4 formats, at offset 16.
+     */
+    private static final int      CLASSIFICATION_OFFSET = 16;
+
+    private final long            numrecords;
+    private final int             minimumRecordSize;
+    private final int             colorOffset;
+    private int                   numPoints;
+
+    private final LASPublicHeader publicHeader;
+
+    /**
+     * Constructor.
+     * 
+     * @param numrecords
+     *            The number of point records.
+     * @param publicHeader
+     *            The public header of the file.
+     * @param minimumRecordSize
+     *            The size of a record of this format without extra bytes.
+     * @param colorOffset
+     *            The offset of the colors within a record, or
+     *            {@link #NOT_INCLUDED}.
+     */
+    protected LASExtendedPointDataRecord(long numrecords, LASPublicHeader publicHeader, int minimumRecordSize,
+            int colorOffset) {
+        this.numrecords = numrecords;
+        this.publicHeader = publicHeader;
+        this.minimumRecordSize = minimumRecordSize;
+        this.colorOffset = colorOffset;
+    }
+
+    @Override
+    public VertexBufferObject readPoints(GL3 gl, FileChannel recordsBlock, long offset, int skip,
+            BoundingBox overallBoundingBox) {
+        boolean colored = colorOffset != NOT_INCLUDED;
+        FloatBuffer verticesBuffer = null;
+        FloatBuffer vertexColorsBuffer = null;
+
+        try {
+            if (getSizePerRecord() < minimumRecordSize) {
+                throw new IOException("Point data records of " + getSizePerRecord() + " bytes are too short, "
+                        + "this format needs at least " + minimumRecordSize);
+            }
+
+            LASMappedReader reader = new LASMappedReader(recordsBlock, offset, numrecords, getSizePerRecord());
+
+            numPoints = LASMappedReader.numSelectedPoints(reader.getNumRecords(), skip);
+
+            verticesBuffer = FloatBuffer.allocate(numPoints * 3);
+            if (colored) {
+                vertexColorsBuffer = FloatBuffer.allocate(numPoints * 3);
+            }
+
+            LASParallelDecoder.decode(this, reader, skip, overallBoundingBox, verticesBuffer, vertexColorsBuffer);
+        } catch (IOException e) {
+            logger.error("Could not read points: " + e.getMessage());
+
+            numPoints = 0;
+            verticesBuffer = FloatBuffer.allocate(0);
+            vertexColorsBuffer = FloatBuffer.allocate(0);
+        }
+
+        GLSLAttribute vertices = new GLSLAttribute(verticesBuffer, "MCvertex", GLSLAttribute.SIZE_FLOAT, 3);
+        if (!colored) {
+            return new VertexBufferObject(gl, vertices);
+        }
+
+        GLSLAttribute vertexColors = new GLSLAttribute(vertexColorsBuffer, "MCvertexColor", GLSLAttribute.SIZE_FLOAT,
+                3);
+        return new VertexBufferObject(gl, vertices, vertexColors);
+    }
+
+    @Override
+    public int getGpsTimeOffset() {
+        return GPS_TIME_OFFSET;
+    }
+
+    @Override
+    public int getColorOffset() {
+        return colorOffset;
+    }
+
+    @Override
+    public int getClassificationOffset() {
+        return CLASSIFICATION_OFFSET;
+    }
+
+    @Override
+    public LASPublicHeader getPublicHeader() {
+        return publicHeader;
+    }
+
+    /**
+     * Getter for the size of the records in the file, including any extra
+     * bytes after the fields of this format.
+     * 
+     * @return the point data record length from the public header.
+     */
+    @Override
+    public int getSizePerRecord() {
+        return publicHeader.getPointDataRecordLength() & 0xFFFF;
+    }
+
+    @Override
+    public int getNumPoints() {
+        return numPoints;
+    }
+
+}
@@ -3,52 +3,104 @@ package nl.esciencecenter.neon.examples.viaAppia.las;
 import java.io.File;
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.nio.FloatBuffer;
 import java.nio.channels.FileChannel;
 import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.SortedMap;
 
 import javax.media.opengl.GL3;
 
+import nl.esciencecenter.neon.datastructures.GLSLAttribute;
 import nl.esciencecenter.neon.datastructures.VertexBufferObject;
 import nl.esciencecenter.neon.examples.viaAppia.OctreeNode;
 import nl.esciencecenter.neon.examples.viaAppia.PPOctreeNode;
 import nl.esciencecenter.neon.shaders.ShaderProgram;
 
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
 public class LASFile {
-    private LASPublicHeader           publicHeader;
-    private LASVariableLengthRecord[] variableLengthRecords;
+    private final static Logger           logger = LoggerFactory.getLogger(LASFile.class);
+
+    private LASPublicHeader               publicHeader;
+    private List<LASVariableLengthRecord> variableLengthRecords;
+    private LASSpatialIndex               spatialIndex;
+    private boolean                       spatialIndexRead;
+    private float                         colorScale;
 
-    private LASPointDataRecord        pointDataRecord;
+    private LASPointDataRecord            pointDataRecord;
 
-    private final File                dataFile;
+    private final File                    dataFile;
 
     public LASFile(File dataFile) {
         this.dataFile = dataFile;
 
         try (FileChannel fc = FileChannel.open(dataFile.toPath(), StandardOpenOption.READ)) {
-            ByteBuffer headerBlock = ByteBuffer.allocate(LASPublicHeader.HEADER_SIZE);
+            ByteBuffer headerBlock = ByteBuffer.allocate(LASPublicHeader.MAX_HEADER_SIZE);
             fc.read(headerBlock);
             publicHeader = new LASPublicHeader(headerBlock);
 
             System.out.println(publicHeader);
 
-            int numPointRecords = publicHeader.getNumberofpointrecords();
-            int pointRecordType = publicHeader.getPointDataFormatID();
-
-            if (pointRecordType == 0) {
-                pointDataRecord = new LASPointDataRecord0(numPointRecords, publicHeader);
-            } else if (pointRecordType == 1) {
-                pointDataRecord = new LASPointDataRecord1(numPointRecords, publicHeader);
-            } else if (pointRecordType == 2) {
-                pointDataRecord = new LASPointDataRecord2(numPointRecords, publicHeader);
-            } else if (pointRecordType == 3) {
-                pointDataRecord = new LASPointDataRecord3(numPointRecords, publicHeader);
+            createPointDataRecord();
+
+            variableLengthRecords = LASVariableLengthRecord.readAll(fc, publicHeader);
+            for (LASVariableLengthRecord record : variableLengthRecords) {
+                logger.debug(record.toString());
             }
         } catch (IOException e) {
             e.printStackTrace();
         }
     }
 
+    /**
+     * Constructor for a file whose public header has already been read, for
+     * instance by {@link LASDataset}. The file is not opened until its points
+     * or variable length records are read.
+     * 
+     * @param dataFile
+     *            The LAS file.
+     * @param publicHeader
+     *            The public header of the file.
+     */
+    public LASFile(File dataFile, LASPublicHeader publicHeader) {
+        this.dataFile = dataFile;
+        this.publicHeader = publicHeader;
+
+        createPointDataRecord();
+    }
+
+    private void createPointDataRecord() {
+        long numPointRecords = publicHeader.getPointRecordCount();
+        int pointRecordType = publicHeader.getPointDataFormatID();
+
+        if (pointRecordType == 0) {
+            pointDataRecord = new LASPointDataRecord0(numPointRecords, publicHeader);
+        } else if (pointRecordType == 1) {
+            pointDataRecord = new LASPointDataRecord1(numPointRecords, publicHeader);
+        } else if (pointRecordType == 2) {
+            pointDataRecord = new LASPointDataRecord2(numPointRecords, publicHeader);
+        } else if (pointRecordType == 3) {
+            pointDataRecord = new LASPointDataRecord3(numPointRecords, publicHeader);
+        } else if (pointRecordType == 6) {
+            pointDataRecord = new LASPointDataRecord6(numPointRecords, publicHeader);
+        } else if (pointRecordType == 7) {
+            pointDataRecord = new LASPointDataRecord7(numPointRecords, publicHeader);
+        } else if (pointRecordType == 8) {
+            pointDataRecord = new LASPointDataRecord8(numPointRecords, publicHeader);
+        } else if (pointRecordType == 9) {
+            pointDataRecord = new LASPointDataRecord9(numPointRecords, publicHeader);
+        } else if (pointRecordType == 10) {
+            pointDataRecord = new LASPointDataRecord10(numPointRecords, publicHeader);
+        }
+    }
+
     public VertexBufferObject readPoints(GL3 gl, BoundingBox overallBoundingBox, int skip) {
+        if (publicHeader.isCompressed()) {
+            return readCompressedPoints(gl, overallBoundingBox, skip);
+        }
+
         VertexBufferObject result = null;
 
         try (FileChannel fc = FileChannel.open(dataFile.toPath(), StandardOpenOption.READ)) {
@@ -60,14 +112,288 @@ public class LASFile {
         return result;
     }
 
-    public void readPointsToOctree(OctreeNode root, BoundingBox overallBoundingBox) {
+    private VertexBufferObject readCompressedPoints(GL3 gl, BoundingBox overallBoundingBox, int skip) {
+        FloatBuffer verticesBuffer = null;
+        FloatBuffer vertexColorsBuffer = null;
+
+        try {
+            int numPoints = LASMappedReader.numSelectedPoints(publicHeader.getPointRecordCount(), skip);
+
+            verticesBuffer = FloatBuffer.allocate(numPoints * 3);
+            vertexColorsBuffer = FloatBuffer.allocate(numPoints * 3);
+
+            numPoints = decodePoints(overallBoundingBox, skip, verticesBuffer, vertexColorsBuffer);
+            verticesBuffer.limit(numPoints * 3);
+            vertexColorsBuffer.limit(numPoints * 3);
+        } catch (IOException e) {
+            logger.error("Could not decode the compressed points of " + dataFile + ": " + e.getMessage());
+
+            verticesBuffer = FloatBuffer.allocate(0);
+            vertexColorsBuffer = FloatBuffer.allocate(0);
+        }
+
+        GLSLAttribute vertices = new GLSLAttribute(verticesBuffer, "MCvertex", GLSLAttribute.SIZE_FLOAT, 3);
+        GLSLAttribute vertexColors = new GLSLAttribute(vertexColorsBuffer, "MCvertexColor", GLSLAttribute.SIZE_FLOAT,
+                3);
+
+        return new VertexBufferObject(gl, vertices, vertexColors);
+    }
+
+    /**
+     * Decodes the points of this file into the given buffers, without the need
+     * for an OpenGL context. The points of LAZ files are decompressed first.
+     * The buffers need room for 3 floats per point selected by the skip
+     * pattern out of the number of point records in the header.
+     * 
+     * @param overallBoundingBox
+     *            The bounding box used to normalize the coordinates.
+     * @param skip
+     *            The number of records to skip between decoded records.
+     * @param vertices
+     *            The buffer to write the XYZ coordinates to.
+     * @param vertexColors
+     *            The buffer to write the RGB colors to, ignored for point
+     *            formats without color information.
+     * @return The number of points decoded.
+     * @throws IOException
+     *             if the point data could not be read.
+     */
+    public int decodePoints(BoundingBox overallBoundingBox, int skip, FloatBuffer vertices, FloatBuffer vertexColors)
+            throws IOException {
         try (FileChannel fc = FileChannel.open(dataFile.toPath(), StandardOpenOption.READ)) {
-            pointDataRecord.addPointsToOctree(fc, publicHeader.getOffsettopointdata(), root, overallBoundingBox);
+            if (publicHeader.isCompressed()) {
+                LAZDecompressor decompressor = new LAZDecompressor(fc, publicHeader, getVariableLengthRecords());
+
+                LASParallelDecoder.decode(pointDataRecord, decompressor, skip, overallBoundingBox, vertices,
+                        vertexColors);
+
+                return (int) LASMappedReader.numSelectedRecords(decompressor.getNumRecords(), skip);
+            }
+
+            LASMappedReader reader = new LASMappedReader(fc, publicHeader.getOffsettopointdata(),
+                    publicHeader.getPointRecordCount(), getRecordSize());
+
+            LASParallelDecoder.decode(pointDataRecord, reader, skip, overallBoundingBox, vertices, vertexColors);
+
+            return (int) LASMappedReader.numSelectedRecords(reader.getNumRecords(), skip);
+        }
+    }
+
+    /**
+     * Opens a reader that streams all fields of the points of this file in
+     * batches. The caller must close the reader.
+     * 
+     * @param skip
+     *            The number of records to skip between decoded records.
+     * @return The reader.
+     * @throws IOException
+     *             if the file could not be opened.
+     */
+    public LASPointReader openPointReader(int skip) throws IOException {
+        return openPointReader(skip, LASPointReader.Projection.ALL);
+    }
+
+    /**
+     * Opens a reader that streams the given fields of the points of this file
+     * in batches. The caller must close the reader.
+     * 
+     * @param skip
+     *            The number of records to skip between decoded records.
+     * @param projection
+     *            The fields to decode.
+     * @return The reader.
+     * @throws IOException
+     *             if the file could not be opened.
+     */
+    public LASPointReader openPointReader(int skip, LASPointReader.Projection projection) throws IOException {
+        FileChannel fc = FileChannel.open(dataFile.toPath(), StandardOpenOption.READ);
+        try {
+            if (publicHeader.isCompressed()) {
+                LAZDecompressor decompressor = new LAZDecompressor(fc, publicHeader, getVariableLengthRecords());
+                return new LASPointReader(decompressor, pointDataRecord, 0, decompressor.getNumRecords(), skip,
+                        projection, fc);
+            }
+
+            LASMappedReader reader = new LASMappedReader(fc, publicHeader.getOffsettopointdata(),
+                    publicHeader.getPointRecordCount(), getRecordSize());
+            return new LASPointReader(reader, pointDataRecord, 0, reader.getNumRecords(), skip, projection, fc);
         } catch (IOException e) {
-            e.printStackTrace();
+            fc.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Opens a reader that streams the given fields of only those points of
+     * this file that may lie in the query box. If the file has a
+     * {@link LASSpatialIndex}, only the records in the cells of the index
+     * that intersect the box are read, otherwise all records are. Either way
+     * the points still need to be tested against the box. The caller must
+     * close the reader.
+     * 
+     * @param query
+     *            The query box, in the coordinates of the file.
+     * @param skip
+     *            The number of records to skip between decoded records.
+     * @param projection
+     *            The fields to decode.
+     * @return The reader.
+     * @throws IOException
+     *             if the file could not be opened.
+     */
+    public LASPointReader openPointReader(BoundingBox query, int skip, LASPointReader.Projection projection)
+            throws IOException {
+        LASSpatialIndex index = getSpatialIndex();
+        if (index == null) {
+            return openPointReader(skip, projection);
+        }
+
+        List<long[]> ranges = index.getRanges(query);
+        long[] flatRanges = new long[ranges.size() * 2];
+        for (int i = 0; i < ranges.size(); i++) {
+            flatRanges[i * 2] = ranges.get(i)[0];
+            flatRanges[(i * 2) + 1] = ranges.get(i)[1];
+        }
+
+        FileChannel fc = FileChannel.open(dataFile.toPath(), StandardOpenOption.READ);
+        try {
+            if (publicHeader.isCompressed()) {
+                LAZDecompressor decompressor = new LAZDecompressor(fc, publicHeader, getVariableLengthRecords());
+                return new LASPointReader(decompressor, pointDataRecord, flatRanges, skip, projection, fc);
+            }
+
+            LASMappedReader reader = new LASMappedReader(fc, publicHeader.getOffsettopointdata(),
+                    publicHeader.getPointRecordCount(), getRecordSize());
+            return new LASPointReader(reader, null, pointDataRecord, flatRanges, skip, projection, fc);
+        } catch (IOException e) {
+            fc.close();
+            throw e;
         }
     }
 
+    public void readPointsToOctree(final OctreeNode root, BoundingBox overallBoundingBox) {
+        try {
+            readPoints(new LASPointSink() {
+                @Override
+                public void addPoint(float x, float y, float z, float r, float g, float b) {
+                    root.addPoint(x, y, z, r, g, b);
+                }
+            }, overallBoundingBox);
+        } catch (IOException e) {
+            logger.error("Could not read the points of " + dataFile + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * Streams all points of this file into an out-of-core octree.
+     * 
+     * @param root
+     *            The root of the octree.
+     * @param overallBoundingBox
+     *            The bounding box used to normalize the coordinates.
+     * @throws IOException
+     *             if the points could not be read, or not be stored.
+     */
+    public void readPointsToOctree(final PPOctreeNode root, BoundingBox overallBoundingBox) throws IOException {
+        readPoints(new LASPointSink() {
+            @Override
+            public void addPoint(float x, float y, float z, float r, float g, float b) throws IOException {
+                root.addPoint(x, y, z, r, g, b);
+            }
+        }, overallBoundingBox);
+    }
+
+    /**
+     * Streams all points of this file into a sink, with their coordinates
+     * normalized to the overall bounding box, and their colors scaled with
+     * {@link #getColorScale()}. Points without colors are white.
+     * 
+     * @param sink
+     *            The sink to add the points to.
+     * @param overallBoundingBox
+     *            The bounding box used to normalize the coordinates.
+     * @throws IOException
+     *             if the points could not be read, or the sink failed.
+     */
+    public void readPoints(LASPointSink sink, BoundingBox overallBoundingBox) throws IOException {
+        double minX = overallBoundingBox.getMinX();
+        double minY = overallBoundingBox.getMinY();
+        double minZ = overallBoundingBox.getMinZ();
+
+        double maxDiff = Math.max(Math.max(overallBoundingBox.getMaxX() - minX, overallBoundingBox.getMaxY() - minY),
+                overallBoundingBox.getMaxZ() - minZ);
+
+        LASPointBatch batch = new LASPointBatch();
+        try (LASPointReader reader = openPointReader(0, LASPointReader.Projection.POSITIONS_COLORS)) {
+            float colorScale = getColorScale();
+
+            while (reader.next(batch)) {
+                double[] x = batch.getX();
+                double[] y = batch.getY();
+                double[] z = batch.getZ();
+
+                for (int i = 0; i < batch.size(); i++) {
+                    float r = 1f, g = 1f, b = 1f;
+                    if (batch.isColorIncluded()) {
+                        r = LASPointBatch.toUnitColor(batch.getRed()[i], colorScale);
+                        g = LASPointBatch.toUnitColor(batch.getGreen()[i], colorScale);
+                        b = LASPointBatch.toUnitColor(batch.getBlue()[i], colorScale);
+                    }
+
+                    double processedX = (((x[i] - minX) / maxDiff) - 0.5) * 2.0;
+                    double processedY = (((y[i] - minY) / maxDiff) - 0.5) * 2.0;
+                    double processedZ = ((z[i] - minZ) / maxDiff) * 2.0;
+
+                    sink.addPoint((float) processedX, (float) processedY, (float) processedZ, r, g, b);
+                }
+            }
+        }
+    }
+
+    /**
+     * Getter for the factor that scales the colors of this file to the [0, 1]
+     * range, see {@link LASPointBatch#getColorScale(int)}. The colors are
+     * scanned on first use, until one exceeds the 8 bit range.
+     * 
+     * @return the color scale.
+     * @throws IOException
+     *             if the points could not be read.
+     */
+    public synchronized float getColorScale() throws IOException {
+        if (colorScale == 0f) {
+            int maxColor = 0;
+            if (pointDataRecord.getColorOffset() != LASPointDataRecord.NOT_INCLUDED) {
+                LASPointBatch batch = new LASPointBatch();
+                try (LASPointReader reader = openPointReader(0, LASPointReader.Projection.POSITIONS_COLORS)) {
+                    while (maxColor <= 0xFF && reader.next(batch)) {
+                        for (int i = 0; i < batch.size(); i++) {
+                            maxColor = Math.max(maxColor,
+                                    Math.max(batch.getRed()[i], Math.max(batch.getGreen()[i], batch.getBlue()[i])));
+                        }
+                    }
+                }
+            }
+            colorScale = LASPointBatch.getColorScale(maxColor);
+        }
+        return colorScale;
+    }
+
+    /**
+     * Getter for the distance between point records in the file.
+     * 
+     * @return the record size, in bytes.
+     * @throws IOException
+     *             if the header gives a record length that is too short for
+     *             its point data format.
+     */
+    private int getRecordSize() throws IOException {
+        if ((publicHeader.getPointDataRecordLength() & 0xFFFF) < publicHeader.getMinimumPointDataRecordLength()) {
+            throw new IOException("Point data record length " + (publicHeader.getPointDataRecordLength() & 0xFFFF)
+                    + " is too short for format " + publicHeader.getPointDataFormatID());
+        }
+        return publicHeader.getPointDataRecordLength() & 0xFFFF;
+    }
+
     public void setUniforms(GL3 gl, ShaderProgram program) {
     }
 
@@ -79,11 +405,122 @@ public class LASFile {
         return publicHeader;
     }
 
-    public void readPointsToOctree(PPOctreeNode root, BoundingBox overallBoundingBox) {
-        try (FileChannel fc = FileChannel.open(dataFile.toPath(), StandardOpenOption.READ)) {
-            pointDataRecord.addPointsToOctree(fc, publicHeader.getOffsettopointdata(), root, overallBoundingBox);
-        } catch (IOException e) {
-            e.printStackTrace();
+    public File getDataFile() {
+        return dataFile;
+    }
+
+    /**
+     * Getter for the variable length records of this file, followed by its
+     * extended variable length records. These are read when the file is
+     * opened, or on first use for files created from a cached header. If
+     * they cannot be read, they are tried again on the next call.
+     * 
+     * @return the variableLengthRecords.
+     * @throws IOException
+     *             if the records could not be read.
+     */
+    public synchronized List<LASVariableLengthRecord> getVariableLengthRecords() throws IOException {
+        if (variableLengthRecords == null) {
+            try (FileChannel fc = FileChannel.open(dataFile.toPath(), StandardOpenOption.READ)) {
+                variableLengthRecords = LASVariableLengthRecord.readAll(fc, publicHeader);
+            } catch (IOException e) {
+                logger.error("Could not read the variable length records of " + dataFile + ": " + e.getMessage());
+                throw e;
+            }
+        }
+        return variableLengthRecords;
+    }
+
+    /**
+     * Getter for the first (extended) variable length record with the given
+     * IDs.
+     * 
+     * @param userID
+     *            The user ID.
+     * @param recordID
+     *            The record ID.
+     * @return The record, or null if this file has no such record.
+     * @throws IOException
+     *             if the records could not be read.
+     */
+    public LASVariableLengthRecord getVariableLengthRecord(String userID, int recordID) throws IOException {
+        for (LASVariableLengthRecord record : getVariableLengthRecords()) {
+            if (record.is(userID, recordID)) {
+                return record;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Getter for the EPSG code of the coordinate system of this file, from
+     * its GeoTIFF keys.
+     * 
+     * @return The EPSG code of the projected, or else geographic, coordinate
+     *         system, or 0 if the file does not specify one.
+     * @throws IOException
+     *             if the variable length records could not be read.
+     */
+    public int getEPSGCode() throws IOException {
+        LASVariableLengthRecord record = getVariableLengthRecord(LASVariableLengthRecord.PROJECTION_USER_ID,
+                LASVariableLengthRecord.GEO_KEY_DIRECTORY_ID);
+        if (record == null) {
+            return 0;
+        }
+
+        SortedMap<Integer, Integer> keys = record.getGeoKeys();
+        if (keys.containsKey(LASVariableLengthRecord.PROJECTED_CS_TYPE_KEY)) {
+            return keys.get(LASVariableLengthRecord.PROJECTED_CS_TYPE_KEY);
+        } else if (keys.containsKey(LASVariableLengthRecord.GEOGRAPHIC_TYPE_KEY)) {
+            return keys.get(LASVariableLengthRecord.GEOGRAPHIC_TYPE_KEY);
+        }
+        return 0;
+    }
+
+    /**
+     * Getter for the OGC WKT description of the coordinate system of this
+     * file, which LAS 1.4 files use instead of GeoTIFF keys.
+     * 
+     * @return The WKT, or null if the file does not have one.
+     * @throws IOException
+     *             if the variable length records could not be read.
+     */
+    public String getWKT() throws IOException {
+        LASVariableLengthRecord record = getVariableLengthRecord(LASVariableLengthRecord.PROJECTION_USER_ID,
+                LASVariableLengthRecord.OGC_WKT_ID);
+        if (record == null) {
+            return null;
+        }
+        return record.getDataAsString();
+    }
+
+    /**
+     * Getter for the spatial index of this file, read from its extended
+     * variable length records, or else from a .lax file next to it. An index
+     * that cannot be parsed is ignored, since all records can still be read
+     * without it.
+     * 
+     * @return The index, or null if this file is not indexed.
+     * @throws IOException
+     *             if the variable length records could not be read.
+     */
+    public synchronized LASSpatialIndex getSpatialIndex() throws IOException {
+        if (!spatialIndexRead) {
+            LASVariableLengthRecord record = getVariableLengthRecord(LASSpatialIndex.USER_ID,
+                    LASSpatialIndex.RECORD_ID);
+            if (record != null && record.getData() != null) {
+                try {
+                    spatialIndex = new LASSpatialIndex(record.getData());
+                } catch (IOException e) {
+                    logger.warn("Ignoring unreadable spatial index in " + dataFile + ": " + e.getMessage());
+                }
+            }
+            if (spatialIndex == null) {
+                spatialIndex = LASSpatialIndex.readIndexFile(dataFile);
+            }
+
+            spatialIndexRead = true;
         }
+        return spatialIndex;
     }
 }
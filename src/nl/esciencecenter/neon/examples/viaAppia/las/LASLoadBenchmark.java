@@ -0,0 +1,178 @@
+package nl.esciencecenter.neon.examples.viaAppia.las;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Load throughput comparison between the old way of reading LAS point records
+ * (one positional {@link FileChannel#read(ByteBuffer, long)} per record into a
+ * heap buffer), the memory-mapped path through {@link LASMappedReader}, and the
+ * parallel mapped path through {@link LASParallelDecoder}.
+ * 
+ * Usage: LASLoadBenchmark [-skip n] [-runs n] file.las [file.las ...]
+ * 
+ * All paths decode into the same kind of float buffer, and a checksum over
+ * the decoded coordinates is printed to show that they agree. The output of
+ * the parallel path is also compared against the serial mapped path, which it
+ * should match exactly. Every file is
+ * read once before timing so both paths start with a warm page cache.
+ * 
+ * @author Maarten van Meersbergen <m.van.meersbergen@esciencecenter.nl>
+ */
+public class LASLoadBenchmark {
+    public static void main(String[] args) {
+        int skip = 0;
+        int runs = 3;
+
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].equals("-skip")) {
+                skip = Integer.parseInt(args[++i]);
+            } else if (args[i].equals("-runs")) {
+                runs = Integer.parseInt(args[++i]);
+            } else {
+                File dataFile = new File(args[i]);
+                if (dataFile.exists()) {
+                    benchmark(dataFile, skip, runs);
+                } else {
+                    System.out.println("File not found: " + dataFile.getAbsolutePath());
+                }
+            }
+        }
+    }
+
+    private static void benchmark(File dataFile, int skip, int runs) {
+        LASFile lasFile = new LASFile(dataFile);
+        LASPublicHeader header = lasFile.getPublicHeader();
+        LASPointDataRecord record = lasFile.getPointDataRecord();
+
+        BoundingBox bounds = new BoundingBox(header.getMinX(), header.getMaxX(), header.getMinY(), header.getMaxY(),
+                header.getMinZ(), header.getMaxZ());
+
+        // Records are stepped by the length in the header, which includes any
+        // extra bytes after the fields of the point format.
+        int recordSize = header.getPointDataRecordLength() & 0xFFFF;
+        int numPoints = (int) LASMappedReader.numSelectedRecords(header.getPointRecordCount(), skip);
+        long bytes = header.getPointRecordCount() * recordSize;
+
+        FloatBuffer vertices = FloatBuffer.allocate(numPoints * 3);
+        FloatBuffer vertexColors = FloatBuffer.allocate(numPoints * 3);
+        FloatBuffer parallelVertices = FloatBuffer.allocate(numPoints * 3);
+        FloatBuffer parallelVertexColors = FloatBuffer.allocate(numPoints * 3);
+
+        try (FileChannel fc = FileChannel.open(dataFile.toPath(), StandardOpenOption.READ)) {
+            // Warm up the page cache and the JIT for both paths.
+            readPositional(fc, header, recordSize, skip, bounds, vertices);
+            readMapped(fc, header, record, skip, bounds, vertices, vertexColors, false);
+            readMapped(fc, header, record, skip, bounds, parallelVertices, parallelVertexColors, true);
+
+            for (int run = 0; run < runs; run++) {
+                long start = System.nanoTime();
+                double positionalChecksum = readPositional(fc, header, recordSize, skip, bounds, vertices);
+                long positionalTime = System.nanoTime() - start;
+
+                start = System.nanoTime();
+                double mappedChecksum = readMapped(fc, header, record, skip, bounds, vertices, vertexColors, false);
+                long mappedTime = System.nanoTime() - start;
+
+                start = System.nanoTime();
+                double parallelChecksum = readMapped(fc, header, record, skip, bounds, parallelVertices,
+                        parallelVertexColors, true);
+                long parallelTime = System.nanoTime() - start;
+
+                boolean identical = vertices.equals(parallelVertices) && vertexColors.equals(parallelVertexColors);
+
+                System.out.println(dataFile.getName() + " run " + run + ": " + numPoints + " points");
+                System.out.println("  positional reads : " + report(positionalTime, numPoints, bytes)
+                        + " checksum " + positionalChecksum);
+                System.out.println("  mapped reads     : " + report(mappedTime, numPoints, bytes) + " checksum "
+                        + mappedChecksum);
+                System.out.println("  parallel mapped  : " + report(parallelTime, numPoints, bytes) + " checksum "
+                        + parallelChecksum + (identical ? "" : " MISMATCH"));
+                System.out.println("  speedup          : " + String.format("%.2f", (double) positionalTime / mappedTime)
+                        + "x mapped, " + String.format("%.2f", (double) positionalTime / parallelTime) + "x parallel");
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private static String report(long nanos, int numPoints, long bytes) {
+        double seconds = nanos / 1e9;
+        return String.format("%8.3f s, %7.2f Mpoints/s, %8.2f MB/s", seconds, (numPoints / seconds) / 1e6,
+                (bytes / seconds) / (1024 * 1024));
+    }
+
+    /**
+     * The old decoding path, one read call per record. Only decodes the
+     * coordinates, which is the part all point formats share.
+     */
+    private static double readPositional(FileChannel fc, LASPublicHeader header, int recordSize, int skip,
+            BoundingBox bounds, FloatBuffer vertices) throws IOException {
+        ByteBuffer record = ByteBuffer.allocate(recordSize);
+        record.order(ByteOrder.LITTLE_ENDIAN);
+
+        double maxDiff = Math.max(Math.max(bounds.getMaxX() - bounds.getMinX(), bounds.getMaxY() - bounds.getMinY()),
+                bounds.getMaxZ() - bounds.getMinZ());
+
+        long offset = header.getOffsettopointdata();
+        long numrecords = header.getPointRecordCount();
+        int count = 0;
+        vertices.clear();
+
+        for (long recordNumber = 0; recordNumber < numrecords; recordNumber++) {
+            if (count == skip) {
+                record.clear();
+                fc.read(record, offset + (recordNumber * recordSize));
+                record.flip();
+
+                double rawX = record.getInt();
+                double rawY = record.getInt();
+                double rawZ = record.getInt();
+
+                double processedX = (((((rawX * header.getXscalefactor()) + header.getXoffset()) - bounds.getMinX()) / maxDiff) - 0.5) * 2.0;
+                double processedY = (((((rawY * header.getYscalefactor()) + header.getYoffset()) - bounds.getMinY()) / maxDiff) - 0.5) * 2.0;
+                double processedZ = ((((rawZ * header.getZscalefactor()) + header.getZoffset()) - bounds.getMinZ()) / maxDiff) * 2.0;
+
+                vertices.put((float) processedX);
+                vertices.put((float) processedY);
+                vertices.put((float) processedZ);
+
+                count = 0;
+            } else {
+                count++;
+            }
+        }
+
+        return checksum(vertices);
+    }
+
+    private static double readMapped(FileChannel fc, LASPublicHeader header, LASPointDataRecord record, int skip,
+            BoundingBox bounds, FloatBuffer vertices, FloatBuffer vertexColors, boolean parallel) throws IOException {
+        LASMappedReader reader = new LASMappedReader(fc, header.getOffsettopointdata(),
+                header.getPointRecordCount(), header.getPointDataRecordLength() & 0xFFFF);
+
+        vertices.clear();
+        if (parallel) {
+            LASParallelDecoder.decode(record, reader, skip, bounds, vertices, vertexColors);
+        } else {
+            LASParallelDecoder.decode(record, reader, 0, reader.getNumRecords(), skip, bounds, vertices, vertexColors);
+            LASParallelDecoder.scaleColors(vertexColors,
+                    LASMappedReader.numSelectedRecords(reader.getNumRecords(), skip));
+        }
+
+        return checksum(vertices);
+    }
+
+    private static double checksum(FloatBuffer vertices) {
+        double result = 0.0;
+        for (int i = 0; i < vertices.capacity(); i++) {
+            result += vertices.get(i);
+        }
+        return result;
+    }
+}
@@ -0,0 +1,277 @@
+package nl.esciencecenter.neon.examples.viaAppia.las;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Memory-mapped view on the point data block of a LAS file. The block is mapped
+ * in windows of whole records, each well below the 2GB limit of a single
+ * {@link java.nio.MappedByteBuffer}, so the point decoders can read records
+ * straight from the page cache with absolute little-endian gets instead of
+ * doing one {@link FileChannel#read(ByteBuffer, long)} per record.
+ * 
+ * Windows are mapped lazily and only read through absolute gets, so a single
+ * reader can safely be shared by several decoding threads.
+ * 
+ * A reader can also {@link #wrap(ByteBuffer, long, long, int)} records that
+ * are already in memory, such as a decompressed chunk of a LAZ file. Such a
+ * reader holds a single window, starting at the first record of the chunk.
+ * 
+ * @author Maarten van Meersbergen <m.van.meersbergen@esciencecenter.nl>
+ */
+public class LASMappedReader {
+    private final static Logger logger = LoggerFactory.getLogger(LASMappedReader.class);
+
+    /** Default upper bound for the size of a single mapped window, in bytes. */
+    public static final long DEFAULT_WINDOW_SIZE = 256L * 1024L * 1024L;
+    /** The maximum number of points decoded into one buffer of 3 floats each. */
+    public static final int  MAX_BUFFER_POINTS   = Integer.MAX_VALUE / 3;
+
+    private final FileChannel channel;
+    private final long offset;
+    private final long firstRecord;
+    private final long numRecords;
+    private final int recordSize;
+    private final long recordsPerWindow;
+
+    private final AtomicReferenceArray<ByteBuffer> windows;
+
+    /**
+     * Constructor for a reader using the {@link #DEFAULT_WINDOW_SIZE}.
+     * 
+     * @param channel
+     *            The (open) channel of the LAS file.
+     * @param offset
+     *            The offset to the point data in the file.
+     * @param numRecords
+     *            The number of point records in the file.
+     * @param recordSize
+     *            The size of a single point record in bytes.
+     * @throws IOException
+     *             if the size of the file could not be determined.
+     */
+    public LASMappedReader(FileChannel channel, long offset, long numRecords, int recordSize) throws IOException {
+        this(channel, offset, numRecords, recordSize, DEFAULT_WINDOW_SIZE);
+    }
+
+    /**
+     * Constructor.
+     * 
+     * @param channel
+     *            The (open) channel of the LAS file.
+     * @param offset
+     *            The offset to the point data in the file.
+     * @param numRecords
+     *            The number of point records in the file.
+     * @param recordSize
+     *            The size of a single point record in bytes.
+     * @param windowSize
+     *            The maximum size of a single mapped window in bytes. Windows
+     *            always hold a whole number of records.
+     * @throws IOException
+     *             if the size of the file could not be determined.
+     */
+    public LASMappedReader(FileChannel channel, long offset, long numRecords, int recordSize, long windowSize)
+            throws IOException {
+        this.channel = channel;
+        this.offset = offset;
+        this.firstRecord = 0;
+        this.recordSize = recordSize;
+
+        // Never map beyond the end of the file, a truncated file would
+        // otherwise make the mapping fail altogether.
+        long available = Math.max(0L, (channel.size() - offset) / recordSize);
+        if (numRecords > available) {
+            logger.warn("Header claims " + numRecords + " point records, but the file only holds " + available);
+            this.numRecords = available;
+        } else {
+            this.numRecords = numRecords;
+        }
+
+        this.recordsPerWindow = Math.max(1L, Math.min(windowSize, Integer.MAX_VALUE) / recordSize);
+
+        int numWindows = (int) ((this.numRecords + recordsPerWindow - 1) / recordsPerWindow);
+        this.windows = new AtomicReferenceArray<ByteBuffer>(numWindows);
+    }
+
+    private LASMappedReader(ByteBuffer records, long firstRecord, long numRecords, int recordSize) {
+        this.channel = null;
+        this.offset = 0;
+        this.firstRecord = firstRecord;
+        this.numRecords = numRecords;
+        this.recordSize = recordSize;
+        this.recordsPerWindow = Math.max(1L, numRecords);
+
+        this.windows = new AtomicReferenceArray<ByteBuffer>(1);
+        this.windows.set(0, records);
+    }
+
+    /**
+     * Factory method for a reader over records that are already in memory.
+     * 
+     * @param records
+     *            A little-endian buffer holding the records, starting at index
+     *            0.
+     * @param firstRecord
+     *            The record number of the first record in the buffer.
+     * @param numRecords
+     *            The number of records in the buffer.
+     * @param recordSize
+     *            The size of a single point record in bytes.
+     * @return The reader.
+     */
+    public static LASMappedReader wrap(ByteBuffer records, long firstRecord, long numRecords, int recordSize) {
+        return new LASMappedReader(records, firstRecord, numRecords, recordSize);
+    }
+
+    /**
+     * Getter for the window holding the given window index. The window is
+     * mapped on first use. Only use absolute gets on the returned buffer, it is
+     * shared between all users of this reader.
+     * 
+     * @param window
+     *            The index of the window.
+     * @return A little-endian buffer holding all records of this window.
+     * @throws IOException
+     *             if the mapping failed.
+     */
+    public ByteBuffer getWindow(int window) throws IOException {
+        ByteBuffer result = windows.get(window);
+        if (result == null) {
+            long start = getWindowStart(window);
+            long size = (getWindowEnd(window) - start) * recordSize;
+
+            ByteBuffer mapped = channel.map(MapMode.READ_ONLY, offset + (start * recordSize), size);
+            mapped.order(ByteOrder.LITTLE_ENDIAN);
+
+            // Another thread may have mapped the same window in the meantime,
+            // in which case we use theirs.
+            if (windows.compareAndSet(window, null, mapped)) {
+                result = mapped;
+            } else {
+                result = windows.get(window);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Helper method to find the first record at or after the given record that
+     * is selected by the skip pattern of the point decoders, where record r is
+     * selected if (r % (skip + 1)) == skip.
+     * 
+     * @param fromRecord
+     *            The record number to start looking from.
+     * @param skip
+     *            The number of records skipped between selected records.
+     * @return The first selected record number at or after fromRecord.
+     */
+    public static long firstSelectedRecord(long fromRecord, int skip) {
+        long stride = skip + 1L;
+        long result = fromRecord - (fromRecord % stride) + skip;
+        if (result < fromRecord) {
+            result += stride;
+        }
+        return result;
+    }
+
+    /**
+     * Helper method to determine the number of records selected by the skip
+     * pattern of the point decoders.
+     * 
+     * @param numRecords
+     *            The total number of records.
+     * @param skip
+     *            The number of records skipped between selected records.
+     * @return The number of selected records.
+     */
+    public static long numSelectedRecords(long numRecords, int skip) {
+        return numRecords / (skip + 1L);
+    }
+
+    /**
+     * Helper method to determine the number of points selected by the skip
+     * pattern, for sizing a buffer that holds 3 floats per point.
+     * 
+     * @param numRecords
+     *            The total number of records.
+     * @param skip
+     *            The number of records skipped between selected records.
+     * @return The number of selected records.
+     * @throws IOException
+     *             if the selected points do not fit in a single buffer.
+     */
+    public static int numSelectedPoints(long numRecords, int skip) throws IOException {
+        long result = numSelectedRecords(numRecords, skip);
+        if (result > MAX_BUFFER_POINTS) {
+            throw new IOException(result + " points do not fit in a single buffer, skip more records");
+        }
+        return (int) result;
+    }
+
+    /**
+     * Getter for the index of the window holding the given record.
+     * 
+     * @param record
+     *            The record number.
+     * @return The index of the window holding this record.
+     */
+    public int getWindowIndex(long record) {
+        return (int) ((record - firstRecord) / recordsPerWindow);
+    }
+
+    /**
+     * Getter for the first record number held by the given window.
+     * 
+     * @param window
+     *            The index of the window.
+     * @return The first record number in this window.
+     */
+    public long getWindowStart(int window) {
+        return firstRecord + (window * recordsPerWindow);
+    }
+
+    /**
+     * Getter for the record number just past the last record held by the
+     * given window.
+     * 
+     * @param window
+     *            The index of the window.
+     * @return The (exclusive) last record number in this window.
+     */
+    public long getWindowEnd(int window) {
+        return firstRecord + Math.min(numRecords, (window + 1L) * recordsPerWindow);
+    }
+
+    public int getNumWindows() {
+        return windows.length();
+    }
+
+    public long getNumRecords() {
+        return numRecords;
+    }
+
+    public long getFirstRecord() {
+        return firstRecord;
+    }
+
+    /**
+     * Getter for the record number just past the last record of this reader.
+     * 
+     * @return The (exclusive) last record number.
+     */
+    public long getEndRecord() {
+        return firstRecord + numRecords;
+    }
+
+    public int getRecordSize() {
+        return recordSize;
+    }
+}
@@ -0,0 +1,329 @@
+package nl.esciencecenter.neon.examples.viaAppia.las;
+
+import java.io.IOException;
+import java.nio.FloatBuffer;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+import nl.esciencecenter.neon.examples.viaAppia.SharedForkJoinPool;
+import nl.esciencecenter.neon.examples.viaAppia.ViaAppiaSettings;
+
+/**
+ * Decodes the point data block of a LAS file on a {@link ForkJoinPool}. The
+ * record range is split recursively into chunks, and every chunk is decoded
+ * with {@link #decode(LASPointDataRecord, LASMappedReader, long, long, int,
+ * BoundingBox, FloatBuffer, FloatBuffer)} into its own slice of the shared,
+ * preallocated vertex and color buffers. Since the decoders write with
+ * absolute puts at a position that only depends on the record number, the
+ * result is identical to decoding the whole range on a single thread.
+ * 
+ * The chunks write the raw color values of the records. Whether those are 8
+ * or 16 bit colors can only be told from all colors of the file, so they are
+ * scaled to the [0, 1] range by {@link #scaleColors(FloatBuffer, long)} once
+ * all chunks are done.
+ * 
+ * The points of LAZ files are decoded the same way, with one task per
+ * compressed chunk, that first decompresses its chunk and then decodes it.
+ * 
+ * @author Maarten van Meersbergen <m.van.meersbergen@esciencecenter.nl>
+ */
+public class LASParallelDecoder {
+    /** Chunks are never split below this number of records. */
+    private static final long MIN_RECORDS_PER_TASK = 64 * 1024;
+    /** Number of chunks made per worker thread, to balance the load. */
+    private static final int  TASKS_PER_THREAD     = 4;
+
+    private static class DecodeTask extends RecursiveAction {
+        private static final long        serialVersionUID = 1L;
+
+        private final LASPointDataRecord record;
+        private final LASMappedReader    reader;
+        private final long               fromRecord;
+        private final long               toRecord;
+        private final long               threshold;
+        private final int                skip;
+        private final BoundingBox        overallBoundingBox;
+        private final FloatBuffer        vertices;
+        private final FloatBuffer        vertexColors;
+
+        public DecodeTask(LASPointDataRecord record, LASMappedReader reader, long fromRecord, long toRecord,
+                long threshold, int skip, BoundingBox overallBoundingBox, FloatBuffer vertices,
+                FloatBuffer vertexColors) {
+            this.record = record;
+            this.reader = reader;
+            this.fromRecord = fromRecord;
+            this.toRecord = toRecord;
+            this.threshold = threshold;
+            this.skip = skip;
+            this.overallBoundingBox = overallBoundingBox;
+            this.vertices = vertices;
+            this.vertexColors = vertexColors;
+        }
+
+        @Override
+        protected void compute() {
+            if (toRecord - fromRecord <= threshold) {
+                try {
+                    decode(record, reader, fromRecord, toRecord, skip, overallBoundingBox, vertices,
+                            vertexColors);
+                } catch (IOException e) {
+                    completeExceptionally(e);
+                }
+            } else {
+                long middle = fromRecord + ((toRecord - fromRecord) / 2);
+                invokeAll(new DecodeTask(record, reader, fromRecord, middle, threshold, skip, overallBoundingBox,
+                        vertices, vertexColors), new DecodeTask(record, reader, middle, toRecord, threshold, skip,
+                        overallBoundingBox, vertices, vertexColors));
+            }
+        }
+    }
+
+    private static class ChunkTask extends RecursiveAction {
+        private static final long        serialVersionUID = 1L;
+
+        private final LASPointDataRecord record;
+        private final LAZDecompressor    decompressor;
+        private final int                fromChunk;
+        private final int                toChunk;
+        private final int                skip;
+        private final BoundingBox        overallBoundingBox;
+        private final FloatBuffer        vertices;
+        private final FloatBuffer        vertexColors;
+
+        public ChunkTask(LASPointDataRecord record, LAZDecompressor decompressor, int fromChunk, int toChunk,
+                int skip, BoundingBox overallBoundingBox, FloatBuffer vertices, FloatBuffer vertexColors) {
+            this.record = record;
+            this.decompressor = decompressor;
+            this.fromChunk = fromChunk;
+            this.toChunk = toChunk;
+            this.skip = skip;
+            this.overallBoundingBox = overallBoundingBox;
+            this.vertices = vertices;
+            this.vertexColors = vertexColors;
+        }
+
+        @Override
+        protected void compute() {
+            if (toChunk - fromChunk <= 1) {
+                try {
+                    for (int chunk = fromChunk; chunk < toChunk; chunk++) {
+                        decodeChunk(record, decompressor, chunk, skip, overallBoundingBox, vertices, vertexColors);
+                    }
+                } catch (IOException e) {
+                    completeExceptionally(e);
+                }
+            } else {
+                int middle = fromChunk + ((toChunk - fromChunk) / 2);
+                invokeAll(new ChunkTask(record, decompressor, fromChunk, middle, skip, overallBoundingBox, vertices,
+                        vertexColors), new ChunkTask(record, decompressor, middle, toChunk, skip,
+                        overallBoundingBox, vertices, vertexColors));
+            }
+        }
+    }
+
+    /**
+     * Decodes all records of the given reader that are selected by the skip
+     * pattern, using the number of threads set by
+     * {@link ViaAppiaSettings#getDecodeParallelism()}. A parallelism of 1
+     * decodes on the calling thread.
+     * 
+     * @param record
+     *            The point data record format of the file.
+     * @param reader
+     *            The mapped view on the point data of the file.
+     * @param skip
+     *            The number of records to skip between decoded records.
+     * @param overallBoundingBox
+     *            The bounding box used to normalize the coordinates.
+     * @param vertices
+     *            The buffer to write the XYZ coordinates to, holding at least 3
+     *            floats per selected record.
+     * @param vertexColors
+     *            The buffer to write the RGB colors to, may be null for point
+     *            formats without color information.
+     * @throws IOException
+     *             if the point data could not be mapped.
+     */
+    public static void decode(LASPointDataRecord record, LASMappedReader reader, int skip,
+            BoundingBox overallBoundingBox, FloatBuffer vertices, FloatBuffer vertexColors) throws IOException {
+        int parallelism = Math.max(1, ViaAppiaSettings.getInstance().getDecodeParallelism());
+
+        long numRecords = reader.getNumRecords();
+        long threshold = Math.max(MIN_RECORDS_PER_TASK, numRecords / (parallelism * TASKS_PER_THREAD));
+
+        if (parallelism <= 1 || numRecords <= threshold) {
+            decode(record, reader, 0, numRecords, skip, overallBoundingBox, vertices, vertexColors);
+        } else {
+            // Map all windows up front, so the workers only ever read.
+            for (int i = 0; i < reader.getNumWindows(); i++) {
+                reader.getWindow(i);
+            }
+
+            invoke(parallelism, new DecodeTask(record, reader, 0, numRecords, threshold, skip, overallBoundingBox,
+                    vertices, vertexColors));
+        }
+
+        scaleColors(vertexColors, LASMappedReader.numSelectedRecords(numRecords, skip));
+    }
+
+    /**
+     * Decompresses and decodes all records of a LAZ file that are selected by
+     * the skip pattern, one chunk per task, using the number of threads set by
+     * {@link ViaAppiaSettings#getDecodeParallelism()}.
+     * 
+     * @param record
+     *            The point data record format of the file.
+     * @param decompressor
+     *            The decompressor of the file.
+     * @param skip
+     *            The number of records to skip between decoded records.
+     * @param overallBoundingBox
+     *            The bounding box used to normalize the coordinates.
+     * @param vertices
+     *            The buffer to write the XYZ coordinates to, holding at least 3
+     *            floats per selected record.
+     * @param vertexColors
+     *            The buffer to write the RGB colors to, may be null for point
+     *            formats without color information.
+     * @throws IOException
+     *             if the point data could not be read or decompressed.
+     */
+    public static void decode(LASPointDataRecord record, LAZDecompressor decompressor, int skip,
+            BoundingBox overallBoundingBox, FloatBuffer vertices, FloatBuffer vertexColors) throws IOException {
+        int parallelism = Math.max(1, ViaAppiaSettings.getInstance().getDecodeParallelism());
+        int numChunks = decompressor.getNumChunks();
+
+        if (parallelism <= 1 || numChunks <= 1) {
+            for (int chunk = 0; chunk < numChunks; chunk++) {
+                decodeChunk(record, decompressor, chunk, skip, overallBoundingBox, vertices, vertexColors);
+            }
+        } else {
+            invoke(parallelism, new ChunkTask(record, decompressor, 0, numChunks, skip, overallBoundingBox,
+                    vertices, vertexColors));
+        }
+
+        scaleColors(vertexColors, LASMappedReader.numSelectedRecords(decompressor.getNumRecords(), skip));
+    }
+
+    /**
+     * Scales the raw color values written by
+     * {@link #decode(LASPointDataRecord, LASMappedReader, long, long, int, BoundingBox, FloatBuffer, FloatBuffer)}
+     * to the [0, 1] range, with one scale for all points, chosen by
+     * {@link LASPointBatch#getColorScale(int)} from the largest value.
+     * 
+     * @param vertexColors
+     *            The buffer holding the raw RGB colors, may be null for point
+     *            formats without color information.
+     * @param numPoints
+     *            The number of points in the buffer.
+     */
+    public static void scaleColors(FloatBuffer vertexColors, long numPoints) {
+        if (vertexColors == null) {
+            return;
+        }
+
+        int numValues = (int) Math.min(vertexColors.capacity(), numPoints * 3);
+
+        float maxColor = 0f;
+        for (int i = 0; i < numValues; i++) {
+            maxColor = Math.max(maxColor, vertexColors.get(i));
+        }
+
+        float colorScale = LASPointBatch.getColorScale((int) maxColor);
+        for (int i = 0; i < numValues; i++) {
+            vertexColors.put(i, vertexColors.get(i) * colorScale);
+        }
+    }
+
+    private static void decodeChunk(LASPointDataRecord record, LAZDecompressor decompressor, int chunk, int skip,
+            BoundingBox overallBoundingBox, FloatBuffer vertices, FloatBuffer vertexColors) throws IOException {
+        LASMappedReader reader = decompressor.decompressChunk(chunk);
+        decode(record, reader, reader.getFirstRecord(), reader.getEndRecord(), skip, overallBoundingBox, vertices,
+                vertexColors);
+    }
+
+    private static void invoke(int parallelism, RecursiveAction task) throws IOException {
+        try {
+            SharedForkJoinPool.submit(parallelism, task).get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while decoding point data", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException(e.getCause());
+        }
+    }
+
+    /**
+     * Decodes the records in the range [fromRecord, toRecord) that are selected
+     * by the skip pattern on the calling thread. Record r is selected if (r %
+     * (skip + 1)) == skip, and its point is written at position (r / (skip +
+     * 1)) of the given buffers, so disjoint record ranges always end up in
+     * disjoint slices of the buffers. The colors are written as the raw
+     * values of the records, see {@link #scaleColors(FloatBuffer, long)}.
+     * 
+     * @param record
+     *            The point data record format of the file.
+     * @param reader
+     *            The mapped view on the point data of the file.
+     * @param fromRecord
+     *            The first record of the range.
+     * @param toRecord
+     *            The (exclusive) last record of the range.
+     * @param skip
+     *            The number of records to skip between decoded records.
+     * @param overallBoundingBox
+     *            The bounding box used to normalize the coordinates.
+     * @param vertices
+     *            The buffer to write the XYZ coordinates to.
+     * @param vertexColors
+     *            The buffer to write the raw RGB colors to, may be null for
+     *            point formats without color information.
+     * @throws IOException
+     *             if the point data could not be mapped.
+     */
+    public static void decode(LASPointDataRecord record, LASMappedReader reader, long fromRecord, long toRecord,
+            int skip, BoundingBox overallBoundingBox, FloatBuffer vertices, FloatBuffer vertexColors)
+            throws IOException {
+        double minX = overallBoundingBox.getMinX();
+        double minY = overallBoundingBox.getMinY();
+        double minZ = overallBoundingBox.getMinZ();
+
+        double maxDiff = Math.max(Math.max(overallBoundingBox.getMaxX() - minX, overallBoundingBox.getMaxY() - minY),
+                overallBoundingBox.getMaxZ() - minZ);
+
+        int stride = skip + 1;
+
+        LASPointReader.Projection projection = LASPointReader.Projection.POSITIONS_COLORS;
+        if (vertexColors == null) {
+            projection = LASPointReader.Projection.POSITIONS;
+        }
+
+        LASPointBatch batch = new LASPointBatch();
+        LASPointReader pointReader = new LASPointReader(reader, record, fromRecord, toRecord, skip, projection);
+        while (pointReader.next(batch)) {
+            double[] x = batch.getX();
+            double[] y = batch.getY();
+            double[] z = batch.getZ();
+            boolean writeColors = batch.isColorIncluded();
+
+            int pointIndex = (int) (batch.getRecordNumber(0) / stride) * 3;
+            for (int i = 0; i < batch.size(); i++) {
+                vertices.put(pointIndex, (float) ((((x[i] - minX) / maxDiff) - 0.5) * 2.0));
+                vertices.put(pointIndex + 1, (float) ((((y[i] - minY) / maxDiff) - 0.5) * 2.0));
+                vertices.put(pointIndex + 2, (float) (((z[i] - minZ) / maxDiff) * 2.0));
+
+                if (writeColors) {
+                    vertexColors.put(pointIndex, batch.getRed()[i]);
+                    vertexColors.put(pointIndex + 1, batch.getGreen()[i]);
+                    vertexColors.put(pointIndex + 2, batch.getBlue()[i]);
+                }
+
+                pointIndex += 3;
+            }
+        }
+    }
+}
@@ -0,0 +1,219 @@
+package nl.esciencecenter.neon.examples.viaAppia.las;
+
+/**
+ * A fixed size batch of decoded LAS points, filled by
+ * {@link LASPointReader#next(LASPointBatch)}. Every attribute is held in its
+ * own primitive array, of which only the first {@link #size()} elements are
+ * valid, and only for the fields included by the projection of the reader.
+ * A batch is meant to be reused for all batches of a file, so reading points
+ * allocates nothing after the batch has been created.
+ * 
+ * Coordinates are in the world space of the file, the scale and offset from
+ * the public header have already been applied. Intensity and colors are the
+ * unsigned 16 bit values stored in the records, use
+ * {@link #toUnitColor(int, float)} to turn colors into the [0, 1] range.
+ * 
+ * @author Maarten van Meersbergen <m.van.meersbergen@esciencecenter.nl>
+ */
+public class LASPointBatch {
+    /** The default number of points in a batch. */
+    public static final int DEFAULT_CAPACITY = 16 * 1024;
+
+    private final double[]  x;
+    private final double[]  y;
+    private final double[]  z;
+    private final int[]     intensity;
+    private final byte[]    classification;
+    private final int[]     red;
+    private final int[]     green;
+    private final int[]     blue;
+    private final double[]  gpsTime;
+
+    private int             size;
+    private long            firstRecord;
+    private int             recordStride;
+    private boolean         colorIncluded;
+    private boolean         intensityIncluded;
+    private boolean         classificationIncluded;
+    private boolean         gpsTimeIncluded;
+
+    /**
+     * Constructor for a batch of {@link #DEFAULT_CAPACITY} points.
+     */
+    public LASPointBatch() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    /**
+     * Constructor.
+     * 
+     * @param capacity
+     *            The maximum number of points in this batch.
+     */
+    public LASPointBatch(int capacity) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("Batch capacity must be positive: " + capacity);
+        }
+        x = new double[capacity];
+        y = new double[capacity];
+        z = new double[capacity];
+        intensity = new int[capacity];
+        classification = new byte[capacity];
+        red = new int[capacity];
+        green = new int[capacity];
+        blue = new int[capacity];
+        gpsTime = new double[capacity];
+    }
+
+    /**
+     * Prepares this batch for the next points of a reader.
+     */
+    void reset(long firstRecord, int recordStride, boolean colorIncluded, boolean intensityIncluded,
+            boolean classificationIncluded, boolean gpsTimeIncluded) {
+        this.size = 0;
+        this.firstRecord = firstRecord;
+        this.recordStride = recordStride;
+        this.colorIncluded = colorIncluded;
+        this.intensityIncluded = intensityIncluded;
+        this.classificationIncluded = classificationIncluded;
+        this.gpsTimeIncluded = gpsTimeIncluded;
+    }
+
+    void setSize(int size) {
+        this.size = size;
+    }
+
+    /**
+     * Helper method to find the factor that scales the color values of a LAS
+     * file to the [0, 1] range. The specification asks for 16 bit colors, but
+     * plenty of files store 8 bit ones. A file whose colors never exceed 255
+     * is therefore taken to hold 8 bit colors, any other file 16 bit ones. The
+     * scale must be chosen from all colors of a file, and then applied to
+     * every point, so that dark points of a 16 bit file are not taken for
+     * bright 8 bit ones.
+     * 
+     * @param maxColor
+     *            The largest unsigned color value in the file.
+     * @return The factor to multiply the color values of the file with.
+     */
+    public static float getColorScale(int maxColor) {
+        if (maxColor > 0xFF) {
+            return 1f / 0xFFFF;
+        }
+        return 1f / 0xFF;
+    }
+
+    /**
+     * Helper method to scale a color value from a LAS file to the [0, 1]
+     * range.
+     * 
+     * @param color
+     *            The unsigned color value from the file.
+     * @param colorScale
+     *            The scale of the file, see {@link #getColorScale(int)}.
+     * @return The color in the [0, 1] range.
+     */
+    public static float toUnitColor(int color, float colorScale) {
+        return color * colorScale;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public int getCapacity() {
+        return x.length;
+    }
+
+    /**
+     * Getter for the record number of point i in this batch.
+     * 
+     * @param i
+     *            The index of the point in this batch.
+     * @return The number of the record the point was read from.
+     */
+    public long getRecordNumber(int i) {
+        return firstRecord + ((long) i * recordStride);
+    }
+
+    public double[] getX() {
+        return x;
+    }
+
+    public double[] getY() {
+        return y;
+    }
+
+    public double[] getZ() {
+        return z;
+    }
+
+    /**
+     * Getter for the intensities, only filled if
+     * {@link #isIntensityIncluded()}.
+     * 
+     * @return the intensity.
+     */
+    public int[] getIntensity() {
+        return intensity;
+    }
+
+    /**
+     * Getter for the classifications, only filled if
+     * {@link #isClassificationIncluded()}.
+     * 
+     * @return the classification.
+     */
+    public byte[] getClassification() {
+        return classification;
+    }
+
+    /**
+     * Getter for the red color values, only filled if
+     * {@link #isColorIncluded()}.
+     * 
+     * @return the red.
+     */
+    public int[] getRed() {
+        return red;
+    }
+
+    public int[] getGreen() {
+        return green;
+    }
+
+    public int[] getBlue() {
+        return blue;
+    }
+
+    /**
+     * Getter for the GPS times, only filled if {@link #isGpsTimeIncluded()}.
+     * 
+     * @return the gpsTime.
+     */
+    public double[] getGpsTime() {
+        return gpsTime;
+    }
+
+    /**
+     * Getter for whether the colors were decoded, which requires a point data
+     * format with RGB colors and a projection that includes them.
+     * 
+     * @return the colorIncluded.
+     */
+    public boolean isColorIncluded() {
+        return colorIncluded;
+    }
+
+    public boolean isIntensityIncluded() {
+        return intensityIncluded;
+    }
+
+    public boolean isClassificationIncluded() {
+        return classificationIncluded;
+    }
+
+    public boolean isGpsTimeIncluded() {
+        return gpsTimeIncluded;
+    }
+}
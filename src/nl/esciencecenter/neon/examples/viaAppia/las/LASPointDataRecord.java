@@ -5,10 +5,10 @@ import java.nio.channels.FileChannel;
 import javax.media.opengl.GL3;
 
 import nl.esciencecenter.neon.datastructures.VertexBufferObject;
-import nl.esciencecenter.neon.examples.viaAppia.OctreeNode;
-import nl.esciencecenter.neon.examples.viaAppia.PPOctreeNode;
 
 public interface LASPointDataRecord {
+    /** Offset returned for fields that are not part of a point data format. */
+    public static final int NOT_INCLUDED = -1;
 
     public int getSizePerRecord();
 
@@ -17,7 +17,31 @@ public interface LASPointDataRecord {
     public VertexBufferObject readPoints(GL3 gl, FileChannel recordsBlock, long offset, int skip,
             BoundingBox overallBoundingBox);
 
-    public void addPointsToOctree(FileChannel recordsBlock, long offset, OctreeNode root, BoundingBox overallBoundingBox);
-
-    public void addPointsToOctree(FileChannel fc, long offset, PPOctreeNode root, BoundingBox overallBoundingBox);
+    /**
+     * Getter for the offset of the GPS time within a record, used by
+     * {@link LASPointReader}.
+     * 
+     * @return the offset in bytes, or {@link #NOT_INCLUDED} if this format has
+     *         no GPS time.
+     */
+    public int getGpsTimeOffset();
+
+    /**
+     * Getter for the offset of the red, green and blue values within a
+     * record, used by {@link LASPointReader}.
+     * 
+     * @return the offset in bytes, or {@link #NOT_INCLUDED} if this format has
+     *         no colors.
+     */
+    public int getColorOffset();
+
+    /**
+     * Getter for the offset of the classification within a record, used by
+     * {@link LASPointReader}. It moved from 15 to 16 in the LAS 1.4 formats.
+     * 
+     * @return the offset in bytes.
+     */
+    public int getClassificationOffset();
+
+    public LASPublicHeader getPublicHeader();
 }
@@ -1,8 +1,6 @@
 package nl.esciencecenter.neon.examples.viaAppia.las;
 
 import java.io.IOException;
-import java.nio.ByteBuffer;
-import java.nio.ByteOrder;
 import java.nio.FloatBuffer;
 import java.nio.channels.FileChannel;
 
@@ -99,12 +97,12 @@ public class LASPointDataRecord1 implements LASPointDataRecord {
      */
     private double GPSTime;
 
-    private final int numrecords;
+    private final long numrecords;
     private int numPoints;
 
     private final LASPublicHeader publicHeader;
 
-    public LASPointDataRecord1(int numrecords, LASPublicHeader publicheader) {
+    public LASPointDataRecord1(long numrecords, LASPublicHeader publicheader) {
         this.numrecords = numrecords;
         this.publicHeader = publicheader;
     }
@@ -112,72 +110,27 @@ public class LASPointDataRecord1 implements LASPointDataRecord {
     @Override
     public VertexBufferObject readPoints(GL3 gl, FileChannel recordsBlock, long offset, int skip,
             BoundingBox overallBoundingBox) {
-        ByteBuffer record = ByteBuffer.allocate(RECORD_SIZE);
-        record.order(ByteOrder.LITTLE_ENDIAN);
+        FloatBuffer verticesBuffer = null;
 
-        if (skip > 0) {
-            numPoints = (int) Math.ceil(numrecords / skip) + 1;
-        } else {
-            numPoints = numrecords;
-        }
-
-        FloatBuffer verticesBuffer = FloatBuffer.allocate(numPoints * 3);
-
-        double scaleFactorX = publicHeader.getXscalefactor();
-        double scaleFactorY = publicHeader.getYscalefactor();
-        double scaleFactorZ = publicHeader.getZscalefactor();
-
-        double offsetX = publicHeader.getXoffset();
-        double offsetY = publicHeader.getYoffset();
-        double offsetZ = publicHeader.getZoffset();
-
-        double minX = overallBoundingBox.getMinX();
-        double minY = overallBoundingBox.getMinY();
-        double minZ = overallBoundingBox.getMinZ();
-
-        double maxX = overallBoundingBox.getMaxX();
-        double maxY = overallBoundingBox.getMaxY();
-        double maxZ = overallBoundingBox.getMaxZ();
-
-        double diffX = maxX - minX;
-        double diffY = maxY - minY;
-        double diffZ = maxZ - minZ;
+        try {
+            if (getSizePerRecord() < RECORD_SIZE) {
+                throw new IOException("Point data records of " + getSizePerRecord() + " bytes are too short, "
+                        + "this format needs at least " + RECORD_SIZE);
+            }
 
-        double maxDiff = Math.max(Math.max(diffX, diffY), diffZ);
+            LASMappedReader reader = new LASMappedReader(recordsBlock, offset, numrecords, getSizePerRecord());
 
-        int count = 0;
+            numPoints = LASMappedReader.numSelectedPoints(reader.getNumRecords(), skip);
 
-        try {
-            for (long recordNumber = 0; recordNumber < numrecords; recordNumber++) {
-                if (count == skip) {
-                    record.clear();
-                    recordsBlock.read(record, offset + (recordNumber * RECORD_SIZE));
-                    record.flip();
-
-                    float rawX = record.getInt();
-                    float rawY = record.getInt();
-                    float rawZ = record.getInt();
-
-                    // PROCESS DATA
-                    double processedX = (((((rawX * scaleFactorX) + offsetX) - minX) / maxDiff) - 0.5) * 2.0;
-                    double processedY = (((((rawY * scaleFactorY) + offsetY) - minY) / maxDiff) - 0.5) * 2.0;
-                    double processedZ = ((((rawZ * scaleFactorZ) + offsetZ) - minZ) / maxDiff) * 2.0;
-
-                    // WRITE DATA XYZ
-                    verticesBuffer.put((float) processedX);
-                    verticesBuffer.put((float) processedY);
-                    verticesBuffer.put((float) processedZ);
-
-                    count = 0;
-                } else {
-                    count++;
-                }
-            }
+            verticesBuffer = FloatBuffer.allocate(numPoints * 3);
 
-            recordsBlock.close();
+            LASParallelDecoder.decode(this, reader, skip, overallBoundingBox, verticesBuffer, null);
         } catch (IOException e) {
             // TODO Auto-generated catch block
             e.printStackTrace();
+
+            numPoints = 0;
+            verticesBuffer = FloatBuffer.allocate(0);
         }
 
         GLSLAttribute vertices = new GLSLAttribute(verticesBuffer, "MCvertex", GLSLAttribute.SIZE_FLOAT, 3);
@@ -185,9 +138,35 @@ public class LASPointDataRecord1 implements LASPointDataRecord {
         return new VertexBufferObject(gl, vertices);
     }
 
+    @Override
+    public int getGpsTimeOffset() {
+        return 20;
+    }
+
+    @Override
+    public int getColorOffset() {
+        return NOT_INCLUDED;
+    }
+
+    @Override
+    public int getClassificationOffset() {
+        return 15;
+    }
+
+    @Override
+    public LASPublicHeader getPublicHeader() {
+        return publicHeader;
+    }
+
+    /**
+     * Getter for the size of the records in the file, including any extra
+     * bytes after the fields of this format.
+     * 
+     * @return the point data record length from the public header.
+     */
     @Override
     public int getSizePerRecord() {
-        return RECORD_SIZE;
+        return publicHeader.getPointDataRecordLength() & 0xFFFF;
     }
 
     @Override
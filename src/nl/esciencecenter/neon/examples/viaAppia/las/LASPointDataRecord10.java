@@ -0,0 +1,21 @@
+package nl.esciencecenter.neon.examples.viaAppia.las;
+
+public class LASPointDataRecord10 extends LASExtendedPointDataRecord {
+    public static int        RECORD_SIZE  = 67;
+
+    /*
+     * Point Data Record Format 10 (LAS 1.4): Format 8 followed by the 29 bytes
+     * of the wave packet fields of format 9. The waveforms themselves are not
+     * read.
+     */
+
+    /*
+     * Red, Green and Blue: The image channel values associated with this
+     * point, following the fields of format 6.
+     */
+    private static final int COLOR_OFFSET = 30;
+
+    public LASPointDataRecord10(long numrecords, LASPublicHeader publicHeader) {
+        super(numrecords, publicHeader, RECORD_SIZE, COLOR_OFFSET);
+    }
+}
@@ -0,0 +1,19 @@
+package nl.esciencecenter.neon.examples.viaAppia.las;
+
+public class LASPointDataRecord6 extends LASExtendedPointDataRecord {
+    public static int RECORD_SIZE = 30;
+
+    /*
+     * Point Data Record Format 6 (LAS 1.4): X, Y and Z as long integers,
+     * Intensity, two bytes of bit fields holding the Return Number, Number of
+     * Returns, Classification Flags, Scanner Channel, Scan Direction Flag and
+     * Edge of Flight Line, the Classification, User Data, the Scan Angle as a
+     * short in 0.006 degree increments, the Point Source ID and the GPS Time.
+     * The classification now has a full byte of its own, and the GPS Time is
+     * mandatory.
+     */
+
+    public LASPointDataRecord6(long numrecords, LASPublicHeader publicHeader) {
+        super(numrecords, publicHeader, RECORD_SIZE, NOT_INCLUDED);
+    }
+}
@@ -0,0 +1,20 @@
+package nl.esciencecenter.neon.examples.viaAppia.las;
+
+public class LASPointDataRecord7 extends LASExtendedPointDataRecord {
+    public static int        RECORD_SIZE  = 36;
+
+    /*
+     * Point Data Record Format 7 (LAS 1.4): Format 6 followed by the Red, Green
+     * and Blue image channel values.
+     */
+
+    /*
+     * Red, Green and Blue: The image channel values associated with this
+     * point, following the fields of format 6.
+     */
+    private static final int COLOR_OFFSET = 30;
+
+    public LASPointDataRecord7(long numrecords, LASPublicHeader publicHeader) {
+        super(numrecords, publicHeader, RECORD_SIZE, COLOR_OFFSET);
+    }
+}
@@ -0,0 +1,21 @@
+package nl.esciencecenter.neon.examples.viaAppia.las;
+
+public class LASPointDataRecord8 extends LASExtendedPointDataRecord {
+    public static int        RECORD_SIZE  = 38;
+
+    /*
+     * Point Data Record Format 8 (LAS 1.4): Format 7 followed by the near
+     * infrared (NIR) channel value.
+     */
+
+    /*
+     * Red, Green and Blue: The image channel values associated with this
+     * point, following the fields of format 6. The near infrared (NIR) channel
+     * value follows the colors.
+     */
+    private static final int COLOR_OFFSET = 30;
+
+    public LASPointDataRecord8(long numrecords, LASPublicHeader publicHeader) {
+        super(numrecords, publicHeader, RECORD_SIZE, COLOR_OFFSET);
+    }
+}
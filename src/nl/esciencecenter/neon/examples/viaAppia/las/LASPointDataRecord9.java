@@ -0,0 +1,17 @@
+package nl.esciencecenter.neon.examples.viaAppia.las;
+
+public class LASPointDataRecord9 extends LASExtendedPointDataRecord {
+    public static int RECORD_SIZE = 59;
+
+    /*
+     * Point Data Record Format 9 (LAS 1.4): Format 6 followed by the 29 bytes
+     * of the Wave Packet Descriptor Index, Byte Offset to Waveform Data,
+     * Waveform Packet Size, Return Point Waveform Location and the X(t), Y(t)
+     * and Z(t) parametric line parameters. The waveforms themselves are not
+     * read.
+     */
+
+    public LASPointDataRecord9(long numrecords, LASPublicHeader publicHeader) {
+        super(numrecords, publicHeader, RECORD_SIZE, NOT_INCLUDED);
+    }
+}
@@ -0,0 +1,349 @@
+package nl.esciencecenter.neon.examples.viaAppia.las;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Pull based reader of the points of a LAS file, decoding them into reusable
+ * {@link LASPointBatch}es. This is the one decode loop for all point data
+ * formats; octree builders, vertex buffer builders and statistics all consume
+ * its batches instead of each decoding the records themselves.
+ * 
+ * A reader covers the records in a range [fromRecord, toRecord) that are
+ * selected by the skip pattern of {@link LASMappedReader}, so several readers
+ * can decode disjoint ranges of the same mapped file in parallel. A reader can
+ * also cover a list of ranges, such as those a {@link LASSpatialIndex} gives
+ * for a query box, a single batch then never spans two ranges.
+ * 
+ * Callers that only need some of the fields choose a {@link Projection}. The
+ * records are then decoded one field at a time, in a loop per field that only
+ * reads the bytes of that field, so a position only pass never touches the
+ * colors, intensities or GPS times.
+ * 
+ * For LAZ files the reader decompresses one chunk at a time with a
+ * {@link LAZDecompressor}, when the first record of that chunk is needed.
+ * 
+ * Usage:
+ * 
+ * <pre>
+ * LASPointBatch batch = new LASPointBatch();
+ * try (LASPointReader reader = lasFile.openPointReader(0)) {
+ *     while (reader.next(batch)) {
+ *         for (int i = 0; i &lt; batch.size(); i++) {
+ *             ...
+ *         }
+ *     }
+ * }
+ * </pre>
+ * 
+ * @author Maarten van Meersbergen <m.van.meersbergen@esciencecenter.nl>
+ */
+public class LASPointReader implements Closeable {
+    /** Offset of the intensity in all point data formats. */
+    private static final int      INTENSITY_OFFSET = 12;
+
+    /**
+     * The fields decoded by a reader. The positions are always decoded, the
+     * other fields only if the point data format includes them.
+     */
+    public enum Projection {
+        /** All fields. */
+        ALL(true, true, true, true),
+        /** Only X, Y and Z, for instance to compute bounds or sort keys. */
+        POSITIONS(false, false, false, false),
+        /** Positions and RGB colors, all an octree needs. */
+        POSITIONS_COLORS(true, false, false, false),
+        /** Positions, intensity and classification. */
+        POSITIONS_INTENSITY_CLASSIFICATION(false, true, true, false);
+
+        private final boolean colors;
+        private final boolean intensity;
+        private final boolean classification;
+        private final boolean gpsTime;
+
+        private Projection(boolean colors, boolean intensity, boolean classification, boolean gpsTime) {
+            this.colors = colors;
+            this.intensity = intensity;
+            this.classification = classification;
+            this.gpsTime = gpsTime;
+        }
+    }
+
+    private final LAZDecompressor decompressor;
+    private final FileChannel     channel;
+    private final long[]          ranges;
+    private final long            endRecord;
+    private final int             stride;
+    private final int             gpsTimeOffset;
+    private final int             colorOffset;
+    private final int             classificationOffset;
+
+    private final boolean         colorIncluded;
+    private final boolean         intensityIncluded;
+    private final boolean         classificationIncluded;
+    private final boolean         gpsTimeIncluded;
+
+    private final double          scaleFactorX, scaleFactorY, scaleFactorZ;
+    private final double          offsetX, offsetY, offsetZ;
+
+    private LASMappedReader       reader;
+    private int                   recordSize;
+    private int                   nextRange;
+    private long                  toRecord;
+    private long                  nextRecord;
+    private ByteBuffer            window;
+    private long                  windowStart;
+    private long                  windowEnd;
+
+    /**
+     * Constructor for a reader over a range of records of an already mapped
+     * file, decoding all fields. The reader does not close the file.
+     * 
+     * @param reader
+     *            The mapped view on the point data of the file.
+     * @param record
+     *            The point data record format of the file.
+     * @param fromRecord
+     *            The first record of the range.
+     * @param toRecord
+     *            The (exclusive) last record of the range.
+     * @param skip
+     *            The number of records to skip between decoded records.
+     */
+    public LASPointReader(LASMappedReader reader, LASPointDataRecord record, long fromRecord, long toRecord,
+            int skip) {
+        this(reader, record, fromRecord, toRecord, skip, Projection.ALL, null);
+    }
+
+    /**
+     * Constructor for a reader over a range of records of an already mapped
+     * file, decoding only some of the fields. The reader does not close the
+     * file.
+     * 
+     * @param reader
+     *            The mapped view on the point data of the file.
+     * @param record
+     *            The point data record format of the file.
+     * @param fromRecord
+     *            The first record of the range.
+     * @param toRecord
+     *            The (exclusive) last record of the range.
+     * @param skip
+     *            The number of records to skip between decoded records.
+     * @param projection
+     *            The fields to decode.
+     */
+    public LASPointReader(LASMappedReader reader, LASPointDataRecord record, long fromRecord, long toRecord,
+            int skip, Projection projection) {
+        this(reader, record, fromRecord, toRecord, skip, projection, null);
+    }
+
+    /**
+     * Constructor for a reader that closes the given channel when it is
+     * closed itself.
+     */
+    LASPointReader(LASMappedReader reader, LASPointDataRecord record, long fromRecord, long toRecord, int skip,
+            Projection projection, FileChannel channel) {
+        this(reader, null, record, new long[] { fromRecord, toRecord }, skip, projection, channel);
+    }
+
+    /**
+     * Constructor for a reader over a range of records of a LAZ file, that
+     * closes the given channel when it is closed itself.
+     */
+    LASPointReader(LAZDecompressor decompressor, LASPointDataRecord record, long fromRecord, long toRecord,
+            int skip, Projection projection, FileChannel channel) {
+        this(decompressor, record, new long[] { fromRecord, toRecord }, skip, projection, channel);
+    }
+
+    /**
+     * Constructor for a reader over several ranges of records of a LAZ file,
+     * that closes the given channel when it is closed itself.
+     */
+    LASPointReader(LAZDecompressor decompressor, LASPointDataRecord record, long[] ranges, int skip,
+            Projection projection, FileChannel channel) {
+        this(LASMappedReader.wrap(ByteBuffer.allocate(0), 0, 0, decompressor.getRecordSize()), decompressor,
+                record, ranges, skip, projection, channel);
+    }
+
+    /**
+     * Constructor for a reader over several ranges of records, that closes
+     * the given channel when it is closed itself.
+     * 
+     * @param ranges
+     *            Sorted, disjoint ranges of records, as pairs of the first
+     *            and the (exclusive) last record of each range.
+     */
+    LASPointReader(LASMappedReader reader, LAZDecompressor decompressor, LASPointDataRecord record, long[] ranges,
+            int skip, Projection projection, FileChannel channel) {
+        this.reader = reader;
+        this.decompressor = decompressor;
+        this.channel = channel;
+        this.ranges = ranges;
+        if (decompressor != null) {
+            this.endRecord = decompressor.getNumRecords();
+        } else {
+            this.endRecord = reader.getEndRecord();
+        }
+        this.stride = skip + 1;
+        this.recordSize = reader.getRecordSize();
+        this.gpsTimeOffset = record.getGpsTimeOffset();
+        this.colorOffset = record.getColorOffset();
+        this.classificationOffset = record.getClassificationOffset();
+
+        this.colorIncluded = projection.colors && colorOffset != LASPointDataRecord.NOT_INCLUDED;
+        this.intensityIncluded = projection.intensity;
+        this.classificationIncluded = projection.classification;
+        this.gpsTimeIncluded = projection.gpsTime && gpsTimeOffset != LASPointDataRecord.NOT_INCLUDED;
+
+        LASPublicHeader header = record.getPublicHeader();
+        this.scaleFactorX = header.getXscalefactor();
+        this.scaleFactorY = header.getYscalefactor();
+        this.scaleFactorZ = header.getZscalefactor();
+        this.offsetX = header.getXoffset();
+        this.offsetY = header.getYoffset();
+        this.offsetZ = header.getZoffset();
+
+        this.nextRange = 0;
+        this.toRecord = 0;
+        this.nextRecord = 0;
+    }
+
+    /**
+     * Decodes the next points into the given batch, replacing its contents.
+     * 
+     * @param batch
+     *            The batch to fill.
+     * @return true if at least one point was decoded, false once all records
+     *         have been read.
+     * @throws IOException
+     *             if the point data could not be mapped.
+     */
+    public boolean next(LASPointBatch batch) throws IOException {
+        // Batches never span ranges, their records must be evenly spaced.
+        while (nextRecord >= toRecord && nextRange < ranges.length) {
+            nextRecord = LASMappedReader.firstSelectedRecord(ranges[nextRange], stride - 1);
+            toRecord = Math.min(ranges[nextRange + 1], endRecord);
+            nextRange += 2;
+        }
+
+        batch.reset(nextRecord, stride, colorIncluded, intensityIncluded, classificationIncluded, gpsTimeIncluded);
+
+        int capacity = batch.getCapacity();
+        int size = 0;
+        while (size < capacity && nextRecord < toRecord) {
+            if (nextRecord >= windowEnd) {
+                if (nextRecord >= reader.getEndRecord()) {
+                    // Only readers of compressed files run out of records
+                    // before toRecord, they hold a single chunk at a time.
+                    reader = decompressor.decompressChunk(decompressor.getChunkIndex(nextRecord));
+                    recordSize = reader.getRecordSize();
+                }
+                int windowIndex = reader.getWindowIndex(nextRecord);
+                window = reader.getWindow(windowIndex);
+                windowStart = reader.getWindowStart(windowIndex);
+                windowEnd = reader.getWindowEnd(windowIndex);
+            }
+
+            // Decode as many selected records of this window as fit in the
+            // batch, one field at a time.
+            long end = Math.min(windowEnd, toRecord);
+            int count = (int) Math.min(capacity - size, (end - nextRecord + stride - 1) / stride);
+            int base = (int) ((nextRecord - windowStart) * recordSize);
+            int step = stride * recordSize;
+
+            readPositions(batch, size, count, base, step);
+            if (colorIncluded) {
+                readColors(batch, size, count, base + colorOffset, step);
+            }
+            if (intensityIncluded) {
+                readIntensities(batch, size, count, base + INTENSITY_OFFSET, step);
+            }
+            if (classificationIncluded) {
+                readClassifications(batch, size, count, base + classificationOffset, step);
+            }
+            if (gpsTimeIncluded) {
+                readGpsTimes(batch, size, count, base + gpsTimeOffset, step);
+            }
+
+            size += count;
+            nextRecord += (long) count * stride;
+        }
+
+        batch.setSize(size);
+        return size > 0;
+    }
+
+    private void readPositions(LASPointBatch batch, int from, int count, int base, int step) {
+        double[] x = batch.getX();
+        double[] y = batch.getY();
+        double[] z = batch.getZ();
+
+        int position = base;
+        for (int i = from; i < from + count; i++) {
+            double rawX = window.getInt(position);
+            double rawY = window.getInt(position + 4);
+            double rawZ = window.getInt(position + 8);
+
+            x[i] = (rawX * scaleFactorX) + offsetX;
+            y[i] = (rawY * scaleFactorY) + offsetY;
+            z[i] = (rawZ * scaleFactorZ) + offsetZ;
+
+            position += step;
+        }
+    }
+
+    private void readColors(LASPointBatch batch, int from, int count, int base, int step) {
+        int[] red = batch.getRed();
+        int[] green = batch.getGreen();
+        int[] blue = batch.getBlue();
+
+        int position = base;
+        for (int i = from; i < from + count; i++) {
+            red[i] = window.getShort(position) & 0xFFFF;
+            green[i] = window.getShort(position + 2) & 0xFFFF;
+            blue[i] = window.getShort(position + 4) & 0xFFFF;
+
+            position += step;
+        }
+    }
+
+    private void readIntensities(LASPointBatch batch, int from, int count, int base, int step) {
+        int[] intensity = batch.getIntensity();
+
+        int position = base;
+        for (int i = from; i < from + count; i++) {
+            intensity[i] = window.getShort(position) & 0xFFFF;
+            position += step;
+        }
+    }
+
+    private void readClassifications(LASPointBatch batch, int from, int count, int base, int step) {
+        byte[] classification = batch.getClassification();
+
+        int position = base;
+        for (int i = from; i < from + count; i++) {
+            classification[i] = window.get(position);
+            position += step;
+        }
+    }
+
+    private void readGpsTimes(LASPointBatch batch, int from, int count, int base, int step) {
+        double[] gpsTime = batch.getGpsTime();
+
+        int position = base;
+        for (int i = from; i < from + count; i++) {
+            gpsTime[i] = window.getDouble(position);
+            position += step;
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (channel != null) {
+            channel.close();
+        }
+    }
+}
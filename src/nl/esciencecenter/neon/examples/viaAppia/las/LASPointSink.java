@@ -0,0 +1,32 @@
+package nl.esciencecenter.neon.examples.viaAppia.las;
+
+import java.io.IOException;
+
+/**
+ * Receives the points streamed out of a file by
+ * {@link LASFile#readPoints(LASPointSink, BoundingBox)}, one at a time, such
+ * as the root of an octree.
+ * 
+ * @author Maarten van Meersbergen <m.van.meersbergen@esciencecenter.nl>
+ */
+public interface LASPointSink {
+    /**
+     * Adds a point.
+     * 
+     * @param x
+     *            The normalized X coordinate.
+     * @param y
+     *            The normalized Y coordinate.
+     * @param z
+     *            The normalized Z coordinate.
+     * @param r
+     *            The red channel, in the [0, 1] range.
+     * @param g
+     *            The green channel, in the [0, 1] range.
+     * @param b
+     *            The blue channel, in the [0, 1] range.
+     * @throws IOException
+     *             if the point could not be stored.
+     */
+    public void addPoint(float x, float y, float z, float r, float g, float b) throws IOException;
+}
@@ -5,6 +5,10 @@ import java.nio.ByteOrder;
 
 public class LASPublicHeader {
     public static int HEADER_SIZE = 227;
+    /** The size of a LAS 1.4 header, the largest one that is read. */
+    public static final int MAX_HEADER_SIZE = 375;
+    /** The size of a point data record of every format, without extra bytes. */
+    private static final int[] MINIMUM_RECORD_LENGTHS = { 20, 28, 26, 34, 57, 63, 30, 36, 38, 59, 67 };
 
     // http://www.asprs.org/a/society/committees/standards/asprs_las_format_v12.pdf
     // Any field in the Public Header Block that is not required and is not used
@@ -161,6 +165,40 @@ public class LASPublicHeader {
     private final double MaxZ;
     private final double MinZ;
 
+    // http://www.asprs.org/wp-content/uploads/2010/12/LAS_1_4_r13.pdf
+    // The fields below were added by LAS 1.3 and 1.4, and are zero for files
+    // of older versions.
+
+    /*
+     * Start of Waveform Data Packet Record (1.3): The offset of the first byte
+     * of the waveform data, if it is stored in the file itself.
+     */
+    private final long StartofWaveformDataPacketRecord;
+
+    /*
+     * Start of first Extended Variable Length Record (1.4): The offset of the
+     * first EVLR, which follows the point data.
+     */
+    private final long StartoffirstExtendedVariableLengthRecord;
+
+    /*
+     * Number of Extended Variable Length Records (1.4)
+     */
+    private final int NumberofExtendedVariableLengthRecords;
+
+    /*
+     * Number of point records (1.4): The 64 bit version of the number of point
+     * records. Files with point data formats 6 to 10 may leave the legacy 32
+     * bit field at zero.
+     */
+    private final long ExtendedNumberofpointrecords;
+
+    /*
+     * Number of points by return (1.4): The 64 bit version of the number of
+     * points by return, for up to fifteen returns.
+     */
+    private final long[] ExtendedNumberofpointsbyreturn;
+
     /*
      * The projection information for the point data is required for all data.
      * The projection information will be placed in the Variable Length Records.
@@ -229,7 +267,32 @@ public class LASPublicHeader {
         MaxZ = headerBlock.getDouble();
         MinZ = headerBlock.getDouble();
 
-        if (readFileSignature.compareTo(FileSignature) == 0) {
+        // Version 1.3 adds 8 bytes, version 1.4 another 140.
+        long startOfWaveform = 0;
+        if (VersionMajor == 1 && VersionMinor >= 3 && headerBlock.remaining() >= 8) {
+            startOfWaveform = headerBlock.getLong();
+        }
+        StartofWaveformDataPacketRecord = startOfWaveform;
+
+        long startOfEVLR = 0;
+        int numberOfEVLR = 0;
+        long numberOfPointRecords = 0;
+        long[] numberOfPointsByReturn = new long[15];
+        if (VersionMajor == 1 && VersionMinor >= 4 && headerBlock.remaining() >= MAX_HEADER_SIZE - 235) {
+            startOfEVLR = headerBlock.getLong();
+            numberOfEVLR = headerBlock.getInt();
+            numberOfPointRecords = headerBlock.getLong();
+            for (int i = 0; i < numberOfPointsByReturn.length; i++) {
+                numberOfPointsByReturn[i] = headerBlock.getLong();
+            }
+        }
+        StartoffirstExtendedVariableLengthRecord = startOfEVLR;
+        NumberofExtendedVariableLengthRecords = numberOfEVLR;
+        ExtendedNumberofpointrecords = numberOfPointRecords;
+        ExtendedNumberofpointsbyreturn = numberOfPointsByReturn;
+
+        if (readFileSignature.compareTo(FileSignature) == 0
+                && (PointDataRecordLength & 0xFFFF) >= getMinimumPointDataRecordLength()) {
             acceptableHeader = true;
         }
     }
@@ -306,14 +369,45 @@ public class LASPublicHeader {
         return NumberofVariableLengthRecords;
     }
 
+    /**
+     * Getter for the point data format. LASzip marks compressed files by
+     * setting the high bits of the format, those are masked off here, use
+     * {@link #isCompressed()} to check for them.
+     * 
+     * @return the point data format ID.
+     */
     public byte getPointDataFormatID() {
-        return PointDataFormatID;
+        return (byte) (PointDataFormatID & 0x3F);
+    }
+
+    /**
+     * Getter for whether the point data of this file is LASzip compressed.
+     * 
+     * @return true for LAZ files.
+     */
+    public boolean isCompressed() {
+        return (PointDataFormatID & 0xC0) != 0;
     }
 
     public short getPointDataRecordLength() {
         return PointDataRecordLength;
     }
 
+    /**
+     * Getter for the size of a point data record of the format of this file,
+     * without any extra bytes. Headers with a shorter point data record length
+     * are not acceptable.
+     * 
+     * @return the minimum length in bytes, or 0 for unknown formats.
+     */
+    public int getMinimumPointDataRecordLength() {
+        int format = getPointDataFormatID();
+        if (format < MINIMUM_RECORD_LENGTHS.length) {
+            return MINIMUM_RECORD_LENGTHS[format];
+        }
+        return 0;
+    }
+
     public int getNumberofpointrecords() {
         return Numberofpointrecords;
     }
@@ -322,6 +416,40 @@ public class LASPublicHeader {
         return Numberofpointsbyreturn;
     }
 
+    public long getStartofWaveformDataPacketRecord() {
+        return StartofWaveformDataPacketRecord;
+    }
+
+    public long getStartoffirstExtendedVariableLengthRecord() {
+        return StartoffirstExtendedVariableLengthRecord;
+    }
+
+    public int getNumberofExtendedVariableLengthRecords() {
+        return NumberofExtendedVariableLengthRecords;
+    }
+
+    public long getExtendedNumberofpointrecords() {
+        return ExtendedNumberofpointrecords;
+    }
+
+    public long[] getExtendedNumberofpointsbyreturn() {
+        return ExtendedNumberofpointsbyreturn;
+    }
+
+    /**
+     * Getter for the number of point records in the file, for all versions
+     * of the format. This is the 64 bit count for LAS 1.4 files, and the
+     * legacy count, read as an unsigned 32 bit value, for older versions.
+     * 
+     * @return the number of point records.
+     */
+    public long getPointRecordCount() {
+        if (ExtendedNumberofpointrecords > 0) {
+            return ExtendedNumberofpointrecords;
+        }
+        return Numberofpointrecords & 0xFFFFFFFFL;
+    }
+
     public double getXscalefactor() {
         return Xscalefactor;
     }
@@ -391,7 +519,7 @@ public class LASPublicHeader {
         result += "number var. length records: " + NumberofVariableLengthRecords + "\n";
         result += "point data format:          " + PointDataFormatID + "\n";
         result += "point data record length:   " + PointDataRecordLength + "\n";
-        result += "number of point records:    " + Numberofpointrecords + "\n";
+        result += "number of point records:    " + getPointRecordCount() + "\n";
         result += "number of points by return: " + Numberofpointsbyreturn + "\n";
         result += "scale factor x y z:         " + Xscalefactor + " " + Yscalefactor + " " + Zscalefactor + "\n";
         result += "offset x y z:               " + Xoffset + " " + Yoffset + " " + Zoffset + "\n";
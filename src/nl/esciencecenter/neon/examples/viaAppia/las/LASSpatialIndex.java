@@ -0,0 +1,221 @@
+package nl.esciencecenter.neon.examples.viaAppia.las;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The spatial index LAStools' lasindex writes for a LAS file, either into a
+ * .lax file next to it, or into an extended variable length record of the
+ * file itself. The index is a quadtree over the XY extent of the file, and
+ * lists for every cell the intervals of point records that fall into it.
+ * 
+ * A loader that only needs the points in a query box can read just the
+ * intervals of the cells that intersect it, see
+ * {@link #getRanges(BoundingBox)}, instead of scanning the whole file. The
+ * cells are coarse, so the points in those ranges still need to be tested
+ * against the box.
+ * 
+ * @author Maarten van Meersbergen <m.van.meersbergen@esciencecenter.nl>
+ */
+public class LASSpatialIndex {
+    private final static Logger logger         = LoggerFactory.getLogger(LASSpatialIndex.class);
+
+    /** The user ID of the extended variable length record of the index. */
+    public static final String  USER_ID        = "LAStools";
+    /** The record ID of the extended variable length record of the index. */
+    public static final int     RECORD_ID      = 30;
+    /** The extension of an index file next to a LAS file. */
+    public static final String  FILE_EXTENSION = ".lax";
+
+    private final float         minX, maxX, minY, maxY;
+    private final int           levels;
+    private final long[]        levelOffsets;
+
+    private final int[]         cellIndices;
+    /** Per cell, the start and (inclusive) end records of its intervals. */
+    private final long[][]      cellIntervals;
+
+    /**
+     * Constructor.
+     * 
+     * @param data
+     *            A little-endian buffer holding the index, as written by
+     *            lasindex.
+     * @throws IOException
+     *             if the data is not a LAStools spatial index.
+     */
+    public LASSpatialIndex(ByteBuffer data) throws IOException {
+        expectSignature(data, "LASX");
+        data.getInt(); // index version
+
+        expectSignature(data, "LASS");
+        int type = data.getInt();
+        if (type != 0) {
+            throw new IOException("Unsupported spatial index type " + type);
+        }
+        expectSignature(data, "LASQ");
+        data.getInt(); // quadtree version
+        levels = data.getInt();
+        data.getInt(); // level index
+        data.getInt(); // implicit levels
+        minX = data.getFloat();
+        maxX = data.getFloat();
+        minY = data.getFloat();
+        maxY = data.getFloat();
+
+        levelOffsets = new long[levels + 2];
+        for (int l = 0; l <= levels; l++) {
+            levelOffsets[l + 1] = levelOffsets[l] + (1L << (2 * l));
+        }
+
+        expectSignature(data, "LASV");
+        data.getInt(); // interval version
+        int numCells = data.getInt();
+
+        cellIndices = new int[numCells];
+        cellIntervals = new long[numCells][];
+        for (int c = 0; c < numCells; c++) {
+            cellIndices[c] = data.getInt();
+            int numIntervals = data.getInt();
+            data.getInt(); // number of points
+
+            long[] intervals = new long[numIntervals * 2];
+            for (int i = 0; i < intervals.length; i++) {
+                intervals[i] = data.getInt() & 0xFFFFFFFFL;
+            }
+            cellIntervals[c] = intervals;
+        }
+    }
+
+    private static void expectSignature(ByteBuffer data, String signature) throws IOException {
+        for (int i = 0; i < signature.length(); i++) {
+            if (data.get() != signature.charAt(i)) {
+                throw new IOException("Spatial index lacks the " + signature + " signature");
+            }
+        }
+    }
+
+    /**
+     * Helper method to read the .lax file next to a LAS file, if there is one.
+     * 
+     * @param lasFile
+     *            The LAS file.
+     * @return The index, or null if there is no index file, or if it could
+     *         not be read, in which case all records need to be read.
+     */
+    public static LASSpatialIndex readIndexFile(File lasFile) {
+        String name = lasFile.getName();
+        int dot = name.lastIndexOf('.');
+        if (dot >= 0) {
+            name = name.substring(0, dot);
+        }
+        File indexFile = new File(lasFile.getParentFile(), name + FILE_EXTENSION);
+        if (!indexFile.isFile()) {
+            return null;
+        }
+
+        try (FileChannel fc = FileChannel.open(indexFile.toPath(), StandardOpenOption.READ)) {
+            ByteBuffer data = ByteBuffer.allocate((int) fc.size());
+            data.order(ByteOrder.LITTLE_ENDIAN);
+            while (data.hasRemaining() && fc.read(data) >= 0) {
+                // Keep reading until the whole file is in.
+            }
+            data.flip();
+            return new LASSpatialIndex(data);
+        } catch (IOException e) {
+            logger.warn("Ignoring unreadable spatial index " + indexFile + ": " + e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Getter for the ranges of point records in cells that intersect the XY
+     * extent of the query box. The Z extent is ignored.
+     * 
+     * @param query
+     *            The query box, in the coordinates of the file.
+     * @return Sorted, disjoint ranges as {fromRecord, toRecord} pairs, with
+     *         toRecord exclusive.
+     */
+    public List<long[]> getRanges(BoundingBox query) {
+        List<long[]> ranges = new ArrayList<long[]>();
+        for (int c = 0; c < cellIndices.length; c++) {
+            if (intersects(cellIndices[c], query)) {
+                long[] intervals = cellIntervals[c];
+                for (int i = 0; i < intervals.length; i += 2) {
+                    ranges.add(new long[] { intervals[i], intervals[i + 1] + 1 });
+                }
+            }
+        }
+
+        Collections.sort(ranges, new Comparator<long[]>() {
+            @Override
+            public int compare(long[] a, long[] b) {
+                return Long.compare(a[0], b[0]);
+            }
+        });
+
+        // Merge overlapping and adjacent ranges.
+        List<long[]> result = new ArrayList<long[]>();
+        long[] current = null;
+        for (long[] range : ranges) {
+            if (current != null && range[0] <= current[1]) {
+                current[1] = Math.max(current[1], range[1]);
+            } else {
+                current = range;
+                result.add(current);
+            }
+        }
+        return result;
+    }
+
+    private boolean intersects(int cellIndex, BoundingBox query) {
+        int level = 0;
+        while (level < levels && cellIndex >= levelOffsets[level + 1]) {
+            level++;
+        }
+        long levelIndex = cellIndex - levelOffsets[level];
+
+        // Every level picks a quadrant of the cell above it, two bits per
+        // level, with the coarsest level in the highest bits.
+        float cellMinX = minX, cellMaxX = maxX, cellMinY = minY, cellMaxY = maxY;
+        for (int l = level; l > 0; l--) {
+            long quadrant = (levelIndex >> (2 * (l - 1))) & 3;
+            float midX = (cellMinX + cellMaxX) / 2;
+            float midY = (cellMinY + cellMaxY) / 2;
+
+            if ((quadrant & 1) != 0) {
+                cellMinX = midX;
+            } else {
+                cellMaxX = midX;
+            }
+            if ((quadrant & 2) != 0) {
+                cellMinY = midY;
+            } else {
+                cellMaxY = midY;
+            }
+        }
+
+        return cellMinX <= query.getMaxX() && cellMaxX >= query.getMinX() && cellMinY <= query.getMaxY()
+                && cellMaxY >= query.getMinY();
+    }
+
+    public int getNumCells() {
+        return cellIndices.length;
+    }
+
+    public int getLevels() {
+        return levels;
+    }
+}
@@ -1,8 +1,37 @@
 package nl.esciencecenter.neon.examples.viaAppia.las;
 
+import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.SortedMap;
+import java.util.TreeMap;
 
 public class LASVariableLengthRecord {
+    /** The size of the header of a variable length record. */
+    public static final int    HEADER_SIZE             = 54;
+    /** The size of the header of an extended variable length record. */
+    public static final int    EXTENDED_HEADER_SIZE    = 60;
+    /**
+     * Records with more data than this, such as waveform data, are not read
+     * into memory, see {@link #getData()}.
+     */
+    public static final int    MAX_DATA_SIZE           = 16 * 1024 * 1024;
+
+    /** The user ID of the records defined by the LAS specification. */
+    public static final String PROJECTION_USER_ID      = "LASF_Projection";
+    /** The record ID of the GeoTIFF GeoKeyDirectoryTag record. */
+    public static final int    GEO_KEY_DIRECTORY_ID    = 34735;
+    /** The record ID of the OGC coordinate system WKT record. */
+    public static final int    OGC_WKT_ID              = 2112;
+    /** The GeoTIFF key of the EPSG code of a projected coordinate system. */
+    public static final int    PROJECTED_CS_TYPE_KEY   = 3072;
+    /** The GeoTIFF key of the EPSG code of a geographic coordinate system. */
+    public static final int    GEOGRAPHIC_TYPE_KEY     = 2048;
+
     private final short Reserved;
     /*
      * User ID: The User ID field is ASCII character data that identifies the
@@ -21,31 +50,187 @@ public class LASVariableLengthRecord {
      * the record after the end of the standard part of the header. Thus the
      * entire record length is 54 bytes (the header size in version 1.2) plus
      * the number of bytes in the variable length portion of the record.
+     * Extended variable length records (LAS 1.4) store this as an unsigned 64
+     * bit value, after a 60 byte header.
      */
-    private final short RecordLengthAfterHeader;
+    private final long RecordLengthAfterHeader;
     /*
      * Description: Optional, null terminated text description of the data. Any
      * remaining characters not used must be null.
      */
     private final String Description;
 
+    private final boolean extended;
+    private long          dataPosition;
+    private ByteBuffer    data;
+
     public LASVariableLengthRecord(ByteBuffer variableLenghtHeaderBlock) {
+        this(variableLenghtHeaderBlock, false);
+    }
+
+    /**
+     * Constructor for the header of a (possibly extended) variable length
+     * record. The data after the header is read separately, see
+     * {@link #readAll(FileChannel, LASPublicHeader)}.
+     * 
+     * @param variableLenghtHeaderBlock
+     *            A little-endian buffer positioned at the start of the header.
+     * @param extended
+     *            Whether this is an extended variable length record.
+     */
+    public LASVariableLengthRecord(ByteBuffer variableLenghtHeaderBlock, boolean extended) {
+        this.extended = extended;
+
         Reserved = variableLenghtHeaderBlock.getShort();
         UserID = readStringfromByteBuffer(variableLenghtHeaderBlock, 16);
         RecordID = variableLenghtHeaderBlock.getShort();
-        RecordLengthAfterHeader = variableLenghtHeaderBlock.getShort();
+        if (extended) {
+            RecordLengthAfterHeader = variableLenghtHeaderBlock.getLong();
+        } else {
+            RecordLengthAfterHeader = variableLenghtHeaderBlock.getShort() & 0xFFFF;
+        }
         Description = readStringfromByteBuffer(variableLenghtHeaderBlock, 32);
 
     }
 
     private String readStringfromByteBuffer(ByteBuffer buffer, int length) {
         String result = "";
+        boolean terminated = false;
         for (int i = 0; i < length; i++) {
-            result += (char) buffer.get();
+            char c = (char) buffer.get();
+            if (c == 0) {
+                terminated = true;
+            }
+            if (!terminated) {
+                result += c;
+            }
         }
         return result;
     }
 
+    /**
+     * Reads all variable length records of a file, followed by all extended
+     * variable length records of a LAS 1.4 file, including their data.
+     * 
+     * @param channel
+     *            The (open) channel of the LAS file.
+     * @param publicHeader
+     *            The public header of the file.
+     * @return The records, in file order.
+     * @throws IOException
+     *             if the records could not be read.
+     */
+    public static List<LASVariableLengthRecord> readAll(FileChannel channel, LASPublicHeader publicHeader)
+            throws IOException {
+        List<LASVariableLengthRecord> result = new ArrayList<LASVariableLengthRecord>();
+
+        long position = publicHeader.getHeaderSize() & 0xFFFF;
+        long end = publicHeader.getOffsettopointdata() & 0xFFFFFFFFL;
+        for (int i = 0; i < publicHeader.getNumberofVariableLengthRecords(); i++) {
+            if (position + HEADER_SIZE > end) {
+                throw new IOException("Variable length record " + i + " runs into the point data");
+            }
+            LASVariableLengthRecord record = read(channel, position, false);
+            result.add(record);
+            position = record.dataPosition + record.RecordLengthAfterHeader;
+        }
+
+        position = publicHeader.getStartoffirstExtendedVariableLengthRecord();
+        for (int i = 0; i < publicHeader.getNumberofExtendedVariableLengthRecords(); i++) {
+            if (position <= 0 || position + EXTENDED_HEADER_SIZE > channel.size()) {
+                throw new IOException("Extended variable length record " + i + " lies outside the file");
+            }
+            LASVariableLengthRecord record = read(channel, position, true);
+            result.add(record);
+            position = record.dataPosition + record.RecordLengthAfterHeader;
+        }
+
+        return result;
+    }
+
+    private static LASVariableLengthRecord read(FileChannel channel, long position, boolean extended)
+            throws IOException {
+        int headerSize = extended ? EXTENDED_HEADER_SIZE : HEADER_SIZE;
+        LASVariableLengthRecord record = new LASVariableLengthRecord(readFully(channel, position, headerSize),
+                extended);
+
+        record.dataPosition = position + headerSize;
+        if (record.RecordLengthAfterHeader <= MAX_DATA_SIZE) {
+            record.data = readFully(channel, record.dataPosition, (int) record.RecordLengthAfterHeader)
+                    .asReadOnlyBuffer().order(ByteOrder.LITTLE_ENDIAN);
+        }
+        return record;
+    }
+
+    private static ByteBuffer readFully(FileChannel channel, long position, int size) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(size);
+        buffer.order(ByteOrder.LITTLE_ENDIAN);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) {
+                throw new IOException("Unexpected end of file at " + (position + buffer.position()));
+            }
+        }
+        buffer.flip();
+        return buffer;
+    }
+
+    /**
+     * Convenience method to check the user and record ID of this record.
+     * 
+     * @param userID
+     *            The user ID.
+     * @param recordID
+     *            The record ID.
+     * @return true if this record has the given IDs.
+     */
+    public boolean is(String userID, int recordID) {
+        return UserID.equals(userID) && (RecordID & 0xFFFF) == recordID;
+    }
+
+    /**
+     * Getter for the GeoTIFF keys of a GeoKeyDirectoryTag record. Only keys
+     * whose value is stored in the directory itself are included, keys that
+     * refer to the double or ASCII parameter records are not.
+     * 
+     * @return The values by key ID, empty if this is not a GeoKeyDirectoryTag
+     *         record.
+     */
+    public SortedMap<Integer, Integer> getGeoKeys() {
+        SortedMap<Integer, Integer> result = new TreeMap<Integer, Integer>();
+        if (!is(PROJECTION_USER_ID, GEO_KEY_DIRECTORY_ID) || data == null || data.capacity() < 8) {
+            return result;
+        }
+
+        ByteBuffer keys = getData();
+        keys.position(6);
+        int numberOfKeys = keys.getShort() & 0xFFFF;
+        for (int i = 0; i < numberOfKeys && keys.remaining() >= 8; i++) {
+            int keyID = keys.getShort() & 0xFFFF;
+            int location = keys.getShort() & 0xFFFF;
+            keys.getShort(); // count
+            int value = keys.getShort() & 0xFFFF;
+
+            if (location == 0) {
+                result.put(keyID, value);
+            }
+        }
+        return Collections.unmodifiableSortedMap(result);
+    }
+
+    /**
+     * Getter for the data of this record as a null terminated ASCII string,
+     * such as the WKT of an OGC coordinate system record.
+     * 
+     * @return The string, or null if the data was not read.
+     */
+    public String getDataAsString() {
+        if (data == null) {
+            return null;
+        }
+        ByteBuffer buffer = getData();
+        return readStringfromByteBuffer(buffer, buffer.remaining()).trim();
+    }
+
     public short getReserved() {
         return Reserved;
     }
@@ -58,7 +243,7 @@ public class LASVariableLengthRecord {
         return RecordID;
     }
 
-    public short getRecordLengthAfterHeader() {
+    public long getRecordLengthAfterHeader() {
         return RecordLengthAfterHeader;
     }
 
@@ -66,4 +251,36 @@ public class LASVariableLengthRecord {
         return Description;
     }
 
+    public boolean isExtended() {
+        return extended;
+    }
+
+    /**
+     * Getter for the position of the data of this record in the file.
+     * 
+     * @return the dataPosition.
+     */
+    public long getDataPosition() {
+        return dataPosition;
+    }
+
+    /**
+     * Getter for the data after the header of this record.
+     * 
+     * @return A new little-endian, read only view on the data, or null if the
+     *         record was larger than {@link #MAX_DATA_SIZE} or was not read
+     *         with {@link #readAll(FileChannel, LASPublicHeader)}.
+     */
+    public ByteBuffer getData() {
+        if (data == null) {
+            return null;
+        }
+        return data.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    @Override
+    public String toString() {
+        return (extended ? "EVLR " : "VLR ") + UserID + " " + (RecordID & 0xFFFF) + " (" + RecordLengthAfterHeader
+                + " bytes): " + Description;
+    }
 }
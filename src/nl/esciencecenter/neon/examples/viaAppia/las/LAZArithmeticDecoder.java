@@ -0,0 +1,308 @@
+package nl.esciencecenter.neon.examples.viaAppia.las;
+
+import java.nio.ByteBuffer;
+
+/**
+ * The adaptive arithmetic decoder of LASzip, which in turn is based on the
+ * coder of Amir Said's FastAC. All state is 32 bit unsigned in the original,
+ * which is kept in longs here and masked where it could overflow.
+ * 
+ * A decoder reads from the compressed bytes of a single chunk, and is only
+ * used by a single thread.
+ * 
+ * @author Maarten van Meersbergen <m.van.meersbergen@esciencecenter.nl>
+ */
+class LAZArithmeticDecoder {
+    private static final long AC_MIN_LENGTH   = 0x01000000L;
+    private static final long AC_MAX_LENGTH   = 0xFFFFFFFFL;
+    private static final long MASK_32         = 0xFFFFFFFFL;
+
+    static final int          BM_LENGTH_SHIFT = 13;
+    static final int          BM_MAX_COUNT    = 1 << BM_LENGTH_SHIFT;
+    static final int          DM_LENGTH_SHIFT = 15;
+    static final int          DM_MAX_COUNT    = 1 << DM_LENGTH_SHIFT;
+
+    /** Adaptive model for a single bit. */
+    static class BitModel {
+        private int bit0Count;
+        private int bitCount;
+        private int bit0Prob;
+        private int updateCycle;
+        private int bitsUntilUpdate;
+
+        public BitModel() {
+            init();
+        }
+
+        public void init() {
+            bit0Count = 1;
+            bitCount = 2;
+            bit0Prob = 1 << (BM_LENGTH_SHIFT - 1);
+            updateCycle = bitsUntilUpdate = 4;
+        }
+
+        void update() {
+            if ((bitCount += updateCycle) > BM_MAX_COUNT) {
+                bitCount = (bitCount + 1) >>> 1;
+                bit0Count = (bit0Count + 1) >>> 1;
+                if (bit0Count == bitCount) {
+                    ++bitCount;
+                }
+            }
+
+            long scale = 0x80000000L / bitCount;
+            bit0Prob = (int) ((bit0Count * scale) >>> (31 - BM_LENGTH_SHIFT));
+
+            updateCycle = (5 * updateCycle) >>> 2;
+            if (updateCycle > 64) {
+                updateCycle = 64;
+            }
+            bitsUntilUpdate = updateCycle;
+        }
+    }
+
+    /** Adaptive model for a symbol out of a fixed size alphabet. */
+    static class SymbolModel {
+        private final int    symbols;
+        private final int    lastSymbol;
+        private final int[]  distribution;
+        private final int[]  symbolCount;
+        private final int[]  decoderTable;
+        private final int    tableSize;
+        private final int    tableShift;
+
+        private int          totalCount;
+        private int          updateCycle;
+        private int          symbolsUntilUpdate;
+
+        public SymbolModel(int symbols) {
+            this.symbols = symbols;
+            this.lastSymbol = symbols - 1;
+
+            if (symbols > 16) {
+                int tableBits = 3;
+                while (symbols > (1 << (tableBits + 2))) {
+                    ++tableBits;
+                }
+                tableSize = 1 << tableBits;
+                tableShift = DM_LENGTH_SHIFT - tableBits;
+                decoderTable = new int[tableSize + 2];
+            } else {
+                tableSize = 0;
+                tableShift = 0;
+                decoderTable = null;
+            }
+
+            distribution = new int[symbols];
+            symbolCount = new int[symbols];
+
+            init();
+        }
+
+        public void init() {
+            totalCount = 0;
+            updateCycle = symbols;
+            for (int k = 0; k < symbols; k++) {
+                symbolCount[k] = 1;
+            }
+
+            update();
+            symbolsUntilUpdate = updateCycle = (symbols + 6) >>> 1;
+        }
+
+        void update() {
+            if ((totalCount += updateCycle) > DM_MAX_COUNT) {
+                totalCount = 0;
+                for (int n = 0; n < symbols; n++) {
+                    totalCount += (symbolCount[n] = (symbolCount[n] + 1) >>> 1);
+                }
+            }
+
+            long sum = 0;
+            long scale = 0x80000000L / totalCount;
+
+            if (tableSize == 0) {
+                for (int k = 0; k < symbols; k++) {
+                    distribution[k] = (int) ((scale * sum) >>> (31 - DM_LENGTH_SHIFT));
+                    sum += symbolCount[k];
+                }
+            } else {
+                int s = 0;
+                for (int k = 0; k < symbols; k++) {
+                    distribution[k] = (int) ((scale * sum) >>> (31 - DM_LENGTH_SHIFT));
+                    sum += symbolCount[k];
+                    int w = distribution[k] >>> tableShift;
+                    while (s < w) {
+                        decoderTable[++s] = k - 1;
+                    }
+                }
+                decoderTable[0] = 0;
+                while (s <= tableSize) {
+                    decoderTable[++s] = symbols - 1;
+                }
+            }
+
+            updateCycle = (5 * updateCycle) >>> 2;
+            int maxCycle = (symbols + 6) << 3;
+            if (updateCycle > maxCycle) {
+                updateCycle = maxCycle;
+            }
+            symbolsUntilUpdate = updateCycle;
+        }
+    }
+
+    private ByteBuffer input;
+    private long       value;
+    private long       length;
+
+    /**
+     * Starts decoding at the current position of the given buffer.
+     * 
+     * @param input
+     *            The compressed bytes.
+     */
+    public void init(ByteBuffer input) {
+        this.input = input;
+        length = AC_MAX_LENGTH;
+        value = ((long) nextByte() << 24) | (nextByte() << 16) | (nextByte() << 8) | nextByte();
+    }
+
+    private int nextByte() {
+        // Reading past the end of a chunk can only happen for corrupt data,
+        // decoding then simply produces garbage instead of failing halfway.
+        return input.hasRemaining() ? input.get() & 0xFF : 0;
+    }
+
+    private void renormalize() {
+        do {
+            value = ((value << 8) | nextByte()) & MASK_32;
+            length = (length << 8) & MASK_32;
+        } while (length < AC_MIN_LENGTH);
+    }
+
+    public int decodeBit(BitModel m) {
+        long x = m.bit0Prob * (length >>> BM_LENGTH_SHIFT);
+        int symbol;
+        if (value < x) {
+            symbol = 0;
+            length = x;
+            ++m.bit0Count;
+        } else {
+            symbol = 1;
+            value -= x;
+            length -= x;
+        }
+
+        if (length < AC_MIN_LENGTH) {
+            renormalize();
+        }
+        if (--m.bitsUntilUpdate == 0) {
+            m.update();
+        }
+        return symbol;
+    }
+
+    public int decodeSymbol(SymbolModel m) {
+        long x, y = length;
+        int symbol;
+
+        if (m.decoderTable != null) {
+            length >>>= DM_LENGTH_SHIFT;
+            long dv = value / length;
+            int t = (int) (dv >>> m.tableShift);
+
+            symbol = m.decoderTable[t];
+            int n = m.decoderTable[t + 1] + 1;
+
+            // Finish the search with a bisection.
+            while (n > symbol + 1) {
+                int k = (symbol + n) >>> 1;
+                if (m.distribution[k] > dv) {
+                    n = k;
+                } else {
+                    symbol = k;
+                }
+            }
+
+            x = m.distribution[symbol] * length;
+            if (symbol != m.lastSymbol) {
+                y = m.distribution[symbol + 1] * length;
+            }
+        } else {
+            x = symbol = 0;
+            length >>>= DM_LENGTH_SHIFT;
+            int n = m.symbols;
+            int k = n >>> 1;
+
+            do {
+                long z = length * m.distribution[k];
+                if (z > value) {
+                    n = k;
+                    y = z;
+                } else {
+                    symbol = k;
+                    x = z;
+                }
+            } while ((k = (symbol + n) >>> 1) != symbol);
+        }
+
+        value -= x;
+        length = y - x;
+
+        if (length < AC_MIN_LENGTH) {
+            renormalize();
+        }
+
+        ++m.symbolCount[symbol];
+        if (--m.symbolsUntilUpdate == 0) {
+            m.update();
+        }
+        return symbol;
+    }
+
+    public int readBit() {
+        length >>>= 1;
+        int symbol = (int) (value / length);
+        value -= length * symbol;
+
+        if (length < AC_MIN_LENGTH) {
+            renormalize();
+        }
+        return symbol;
+    }
+
+    public int readBits(int bits) {
+        if (bits > 19) {
+            int low = readShort();
+            bits = bits - 16;
+            int high = readBits(bits) << 16;
+            return high | low;
+        }
+
+        length >>>= bits;
+        int symbol = (int) (value / length);
+        value -= length * symbol;
+
+        if (length < AC_MIN_LENGTH) {
+            renormalize();
+        }
+        return symbol;
+    }
+
+    public int readShort() {
+        length >>>= 16;
+        int symbol = (int) (value / length);
+        value -= length * symbol;
+
+        if (length < AC_MIN_LENGTH) {
+            renormalize();
+        }
+        return symbol;
+    }
+
+    public int readInt() {
+        int low = readShort();
+        int high = readShort();
+        return (high << 16) | low;
+    }
+}
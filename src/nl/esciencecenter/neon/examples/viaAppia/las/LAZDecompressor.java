@@ -0,0 +1,290 @@
+package nl.esciencecenter.neon.examples.viaAppia.las;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Decompressor for the point data of a LAZ file, the LASzip compressed form of
+ * a LAS file. LASzip compresses the points in chunks, 50000 points each by
+ * default, and writes a table with the position of every chunk after them.
+ * Every chunk starts with an uncompressed point and resets all models, so the
+ * chunks can be decompressed independently, and in parallel.
+ * 
+ * A decompressed chunk is handed out as a {@link LASMappedReader} over the
+ * plain LAS records of that chunk, so the rest of the point decoding does not
+ * need to know the file was compressed at all.
+ * 
+ * Only the pointwise chunked compressor with the version 2 items of point data
+ * formats 0 to 3 is supported. LAS 1.4 files with point data formats 6 to 10
+ * use the layered compressor, which is not.
+ * 
+ * @author Maarten van Meersbergen <m.van.meersbergen@esciencecenter.nl>
+ */
+public class LAZDecompressor {
+    /** The user ID of the VLR holding the LASzip settings. */
+    public static final String LASZIP_USER_ID               = "laszip encoded";
+    /** The record ID of the VLR holding the LASzip settings. */
+    public static final int    LASZIP_RECORD_ID             = 22204;
+
+    private static final int   COMPRESSOR_POINTWISE         = 1;
+    private static final int   COMPRESSOR_POINTWISE_CHUNKED = 2;
+    /** The chunk size LASzip writes for chunks of variable length. */
+    private static final int   VARIABLE_CHUNK_SIZE          = -1;
+
+    private final FileChannel  channel;
+    private final long         numRecords;
+    private final int          recordSize;
+
+    private final int[]        itemTypes;
+    private final int[]        itemSizes;
+    private final int[]        itemVersions;
+
+    /** The file position of every chunk, plus the end of the last one. */
+    private long[]             chunkStarts;
+    /** The first record of every chunk, plus the end of the last one. */
+    private long[]             chunkRecords;
+
+    /**
+     * Constructor. Reads the LASzip VLR and the chunk table of the file.
+     * 
+     * @param channel
+     *            The (open) channel of the LAZ file.
+     * @param publicHeader
+     *            The public header of the file.
+     * @throws IOException
+     *             if the file could not be read, or is compressed in a way
+     *             that is not supported.
+     */
+    public LAZDecompressor(FileChannel channel, LASPublicHeader publicHeader) throws IOException {
+        this(channel, publicHeader, LASVariableLengthRecord.readAll(channel, publicHeader));
+    }
+
+    /**
+     * Constructor for a file whose variable length records have already been
+     * read. Only reads the chunk table of the file.
+     * 
+     * @param channel
+     *            The (open) channel of the LAZ file.
+     * @param publicHeader
+     *            The public header of the file.
+     * @param variableLengthRecords
+     *            The variable length records of the file.
+     * @throws IOException
+     *             if the file could not be read, or is compressed in a way
+     *             that is not supported.
+     */
+    public LAZDecompressor(FileChannel channel, LASPublicHeader publicHeader,
+            List<LASVariableLengthRecord> variableLengthRecords) throws IOException {
+        this.channel = channel;
+        this.numRecords = publicHeader.getPointRecordCount();
+        this.recordSize = publicHeader.getPointDataRecordLength() & 0xFFFF;
+
+        ByteBuffer vlr = null;
+        for (LASVariableLengthRecord record : variableLengthRecords) {
+            if (record.is(LASZIP_USER_ID, LASZIP_RECORD_ID)) {
+                vlr = record.getData();
+            }
+        }
+        if (vlr == null) {
+            throw new IOException("Compressed file has no LASzip VLR");
+        }
+
+        int compressor = vlr.getShort() & 0xFFFF;
+        vlr.getShort(); // coder, always arithmetic
+        vlr.get(); // version major
+        vlr.get(); // version minor
+        vlr.getShort(); // version revision
+        vlr.getInt(); // options
+        int chunkSize = vlr.getInt();
+        vlr.getLong(); // number of special EVLRs
+        vlr.getLong(); // offset to special EVLRs
+
+        int numItems = vlr.getShort() & 0xFFFF;
+        itemTypes = new int[numItems];
+        itemSizes = new int[numItems];
+        itemVersions = new int[numItems];
+
+        int itemsSize = 0;
+        for (int i = 0; i < numItems; i++) {
+            itemTypes[i] = vlr.getShort() & 0xFFFF;
+            itemSizes[i] = vlr.getShort() & 0xFFFF;
+            itemVersions[i] = vlr.getShort() & 0xFFFF;
+            itemsSize += itemSizes[i];
+        }
+        if (itemsSize != recordSize) {
+            throw new IOException("LAZ items hold " + itemsSize + " bytes, but records are " + recordSize);
+        }
+
+        // Fail early on items we cannot decompress.
+        LAZArithmeticDecoder decoder = new LAZArithmeticDecoder();
+        for (int i = 0; i < numItems; i++) {
+            LAZItemDecompressor.create(itemTypes[i], itemSizes[i], itemVersions[i], decoder);
+        }
+
+        long pointDataStart = publicHeader.getOffsettopointdata() & 0xFFFFFFFFL;
+        if (compressor == COMPRESSOR_POINTWISE_CHUNKED) {
+            readChunkTable(pointDataStart, chunkSize);
+        } else if (compressor == COMPRESSOR_POINTWISE) {
+            // A single stream without chunk table.
+            chunkStarts = new long[] { pointDataStart, channel.size() };
+            chunkRecords = new long[] { 0, numRecords };
+        } else {
+            throw new IOException("Unsupported LAZ compressor " + compressor);
+        }
+    }
+
+    private void readChunkTable(long pointDataStart, int chunkSize) throws IOException {
+        long tablePosition = readFully(pointDataStart, 8).getLong();
+        if (tablePosition == -1) {
+            // The compressor could not seek back to write the position, so it
+            // appended it to the end of the file.
+            tablePosition = readFully(channel.size() - 8, 8).getLong();
+        }
+        if (tablePosition <= pointDataStart || tablePosition >= channel.size()) {
+            throw new IOException("LAZ file has no valid chunk table");
+        }
+
+        ByteBuffer table = readFully(tablePosition, 8);
+        table.getInt(); // version
+        int numChunks = table.getInt();
+
+        // Every chunk takes at most a couple of bytes per value in the table.
+        long tableSize = Math.min(channel.size() - tablePosition - 8, numChunks * 20L + 64);
+        table = readFully(tablePosition + 8, (int) tableSize);
+
+        chunkStarts = new long[numChunks + 1];
+        chunkRecords = new long[numChunks + 1];
+        chunkStarts[0] = pointDataStart + 8;
+
+        LAZArithmeticDecoder decoder = new LAZArithmeticDecoder();
+        decoder.init(table);
+        LAZIntegerDecompressor ic = new LAZIntegerDecompressor(decoder, 32, 2);
+
+        int lastCount = 0;
+        int lastSize = 0;
+        for (int i = 0; i < numChunks; i++) {
+            int count;
+            if (chunkSize == VARIABLE_CHUNK_SIZE) {
+                count = lastCount = ic.decompress(lastCount, 0);
+            } else {
+                count = (int) Math.min(chunkSize, Math.max(0L, numRecords - chunkRecords[i]));
+            }
+            lastSize = ic.decompress(lastSize, 1);
+
+            chunkRecords[i + 1] = chunkRecords[i] + count;
+            chunkStarts[i + 1] = chunkStarts[i] + (lastSize & 0xFFFFFFFFL);
+        }
+    }
+
+    private ByteBuffer readFully(long position, int size) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(size);
+        buffer.order(ByteOrder.LITTLE_ENDIAN);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) {
+                throw new IOException("Unexpected end of file at " + (position + buffer.position()));
+            }
+        }
+        buffer.flip();
+        return buffer;
+    }
+
+    /**
+     * Decompresses a single chunk into plain LAS records. This method may be
+     * called from several threads at once.
+     * 
+     * @param chunk
+     *            The index of the chunk.
+     * @return A reader over the records of this chunk only.
+     * @throws IOException
+     *             if the chunk could not be read.
+     */
+    public LASMappedReader decompressChunk(int chunk) throws IOException {
+        long firstRecord = chunkRecords[chunk];
+        int count = (int) (chunkRecords[chunk + 1] - firstRecord);
+
+        ByteBuffer records = ByteBuffer.allocate(count * recordSize);
+        records.order(ByteOrder.LITTLE_ENDIAN);
+
+        if (count > 0) {
+            long size = Math.min(chunkStarts[chunk + 1], channel.size()) - chunkStarts[chunk];
+            ByteBuffer compressed = readFully(chunkStarts[chunk], (int) size);
+            byte[] points = records.array();
+
+            // The first point of a chunk is stored raw.
+            compressed.get(points, 0, recordSize);
+
+            LAZArithmeticDecoder decoder = new LAZArithmeticDecoder();
+            LAZItemDecompressor[] items = new LAZItemDecompressor[itemTypes.length];
+            int[] itemOffsets = new int[itemTypes.length];
+
+            int itemOffset = 0;
+            for (int i = 0; i < items.length; i++) {
+                items[i] = LAZItemDecompressor.create(itemTypes[i], itemSizes[i], itemVersions[i], decoder);
+                items[i].init(points, itemOffset);
+                itemOffsets[i] = itemOffset;
+                itemOffset += itemSizes[i];
+            }
+
+            decoder.init(compressed);
+
+            int pointOffset = recordSize;
+            for (int p = 1; p < count; p++) {
+                for (int i = 0; i < items.length; i++) {
+                    items[i].read(points, pointOffset + itemOffsets[i]);
+                }
+                pointOffset += recordSize;
+            }
+        }
+
+        return LASMappedReader.wrap(records, firstRecord, count, recordSize);
+    }
+
+    /**
+     * Getter for the index of the chunk holding the given record.
+     * 
+     * @param record
+     *            The record number.
+     * @return The index of the chunk.
+     */
+    public int getChunkIndex(long record) {
+        int index = Arrays.binarySearch(chunkRecords, record);
+        if (index < 0) {
+            return -index - 2;
+        }
+        // Skip empty chunks.
+        while (index < getNumChunks() - 1 && chunkRecords[index + 1] == record) {
+            index++;
+        }
+        return Math.min(index, getNumChunks() - 1);
+    }
+
+    public int getNumChunks() {
+        return chunkStarts.length - 1;
+    }
+
+    public long getChunkStart(int chunk) {
+        return chunkRecords[chunk];
+    }
+
+    public long getChunkEnd(int chunk) {
+        return chunkRecords[chunk + 1];
+    }
+
+    /**
+     * Getter for the number of records in the file, which is the number of
+     * records in all chunks.
+     * 
+     * @return the numRecords.
+     */
+    public long getNumRecords() {
+        return chunkRecords[chunkRecords.length - 1];
+    }
+
+    public int getRecordSize() {
+        return recordSize;
+    }
+}
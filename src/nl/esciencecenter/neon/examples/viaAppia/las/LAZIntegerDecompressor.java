@@ -0,0 +1,121 @@
+package nl.esciencecenter.neon.examples.viaAppia.las;
+
+/**
+ * The integer decompressor of LASzip. Integers are coded as a correction on a
+ * prediction: the number of bits of the correction, k, with an adaptive
+ * symbol model per context, followed by the correction itself.
+ * 
+ * @author Maarten van Meersbergen <m.van.meersbergen@esciencecenter.nl>
+ */
+class LAZIntegerDecompressor {
+    private final LAZArithmeticDecoder                  decoder;
+    private final int                                   corrBits;
+    private final int                                   corrRange;
+    private final int                                   corrMin;
+    private final int                                   bitsHigh;
+
+    private final LAZArithmeticDecoder.SymbolModel[]    bitsModels;
+    private final LAZArithmeticDecoder.BitModel         corrector0;
+    private final LAZArithmeticDecoder.SymbolModel[]    correctors;
+
+    private int                                         k;
+
+    public LAZIntegerDecompressor(LAZArithmeticDecoder decoder, int bits) {
+        this(decoder, bits, 1);
+    }
+
+    public LAZIntegerDecompressor(LAZArithmeticDecoder decoder, int bits, int contexts) {
+        this.decoder = decoder;
+        this.bitsHigh = 8;
+
+        if (bits > 0 && bits < 32) {
+            corrBits = bits;
+            corrRange = 1 << bits;
+            corrMin = -(corrRange / 2);
+        } else {
+            corrBits = 32;
+            corrRange = 0;
+            corrMin = Integer.MIN_VALUE;
+        }
+
+        bitsModels = new LAZArithmeticDecoder.SymbolModel[contexts];
+        for (int i = 0; i < contexts; i++) {
+            bitsModels[i] = new LAZArithmeticDecoder.SymbolModel(corrBits + 1);
+        }
+
+        corrector0 = new LAZArithmeticDecoder.BitModel();
+        correctors = new LAZArithmeticDecoder.SymbolModel[corrBits + 1];
+        for (int i = 1; i <= corrBits; i++) {
+            correctors[i] = new LAZArithmeticDecoder.SymbolModel(1 << Math.min(i, bitsHigh));
+        }
+    }
+
+    /**
+     * Resets all models, at the start of a chunk.
+     */
+    public void init() {
+        for (LAZArithmeticDecoder.SymbolModel model : bitsModels) {
+            model.init();
+        }
+        corrector0.init();
+        for (int i = 1; i <= corrBits; i++) {
+            correctors[i].init();
+        }
+    }
+
+    public int decompress(int prediction) {
+        return decompress(prediction, 0);
+    }
+
+    public int decompress(int prediction, int context) {
+        int real = prediction + readCorrector(bitsModels[context]);
+        if (real < 0) {
+            real += corrRange;
+        } else if (corrRange != 0 && (real & 0xFFFFFFFFL) >= corrRange) {
+            real -= corrRange;
+        }
+        return real;
+    }
+
+    /**
+     * Getter for the number of bits of the last correction, which some items
+     * use to pick the context of the next one.
+     * 
+     * @return the k.
+     */
+    public int getK() {
+        return k;
+    }
+
+    private int readCorrector(LAZArithmeticDecoder.SymbolModel bitsModel) {
+        int c;
+        k = decoder.decodeSymbol(bitsModel);
+
+        if (k != 0) {
+            if (k < 32) {
+                if (k <= bitsHigh) {
+                    c = decoder.decodeSymbol(correctors[k]);
+                } else {
+                    // The high bits are modelled, the low ones stored raw.
+                    int k1 = k - bitsHigh;
+                    c = decoder.decodeSymbol(correctors[k]);
+                    int c1 = decoder.readBits(k1);
+                    c = (c << k1) | c1;
+                }
+
+                // Translate c back into its correct interval.
+                if (c >= (1 << (k - 1))) {
+                    c += 1;
+                } else {
+                    c -= (1 << k) - 1;
+                }
+            } else {
+                c = corrMin;
+            }
+        } else {
+            c = decoder.decodeBit(corrector0);
+        }
+
+        return c;
+    }
+}
@@ -0,0 +1,615 @@
+package nl.esciencecenter.neon.examples.viaAppia.las;
+
+import java.io.IOException;
+
+/**
+ * Decompressor for one item of a LAZ point record, one of the fields the
+ * LASzip compressor splits a record into. Every item predicts its value from
+ * the previous point of the chunk, so a decompressor keeps the last item it
+ * produced.
+ * 
+ * Only the version 2 items used for point data formats 0 to 3 are supported,
+ * which is what LASzip writes for LAS 1.0 to 1.3 files.
+ * 
+ * @author Maarten van Meersbergen <m.van.meersbergen@esciencecenter.nl>
+ */
+abstract class LAZItemDecompressor {
+    public static final int TYPE_BYTE      = 0;
+    public static final int TYPE_POINT10   = 6;
+    public static final int TYPE_GPSTIME11 = 7;
+    public static final int TYPE_RGB12     = 8;
+
+    /**
+     * Resets this decompressor for a new chunk, of which the given item is the
+     * first, uncompressed, one.
+     * 
+     * @param item
+     *            The bytes of the first point of the chunk.
+     * @param offset
+     *            The offset of this item in those bytes.
+     */
+    public abstract void init(byte[] item, int offset);
+
+    /**
+     * Decompresses the next item.
+     * 
+     * @param item
+     *            The bytes to write the point to.
+     * @param offset
+     *            The offset of this item in those bytes.
+     */
+    public abstract void read(byte[] item, int offset);
+
+    /**
+     * Factory method for the decompressor of an item in the LASzip VLR.
+     * 
+     * @param type
+     *            The type of the item.
+     * @param size
+     *            The size of the item, in bytes.
+     * @param version
+     *            The compression version of the item.
+     * @param decoder
+     *            The arithmetic decoder of the chunk.
+     * @return The decompressor.
+     * @throws IOException
+     *             if the item is not supported.
+     */
+    public static LAZItemDecompressor create(int type, int size, int version, LAZArithmeticDecoder decoder)
+            throws IOException {
+        if (version != 2) {
+            throw new IOException("Unsupported LAZ item version " + version + " for item type " + type);
+        }
+
+        switch (type) {
+        case TYPE_POINT10:
+            return new Point10(decoder);
+        case TYPE_GPSTIME11:
+            return new GpsTime11(decoder);
+        case TYPE_RGB12:
+            return new Rgb12(decoder);
+        case TYPE_BYTE:
+            return new Bytes(decoder, size);
+        default:
+            throw new IOException("Unsupported LAZ item type " + type);
+        }
+    }
+
+    static int getShort(byte[] b, int offset) {
+        return (b[offset] & 0xFF) | ((b[offset + 1] & 0xFF) << 8);
+    }
+
+    static void putShort(byte[] b, int offset, int value) {
+        b[offset] = (byte) value;
+        b[offset + 1] = (byte) (value >>> 8);
+    }
+
+    static int getInt(byte[] b, int offset) {
+        return getShort(b, offset) | (getShort(b, offset + 2) << 16);
+    }
+
+    static void putInt(byte[] b, int offset, int value) {
+        putShort(b, offset, value);
+        putShort(b, offset + 2, value >>> 16);
+    }
+
+    static long getLong(byte[] b, int offset) {
+        return (getInt(b, offset) & 0xFFFFFFFFL) | ((long) getInt(b, offset + 4) << 32);
+    }
+
+    static void putLong(byte[] b, int offset, long value) {
+        putInt(b, offset, (int) value);
+        putInt(b, offset + 4, (int) (value >>> 32));
+    }
+
+    static int fold(int n) {
+        if (n < 0) {
+            return n + 256;
+        } else if (n > 255) {
+            return n - 256;
+        }
+        return n;
+    }
+
+    static int clamp(int n) {
+        if (n <= 0) {
+            return 0;
+        } else if (n >= 255) {
+            return 255;
+        }
+        return n;
+    }
+
+    /**
+     * Running median of the last five values, used to predict the X and Y
+     * differences of a point.
+     */
+    static class StreamingMedian5 {
+        private final int[] values = new int[5];
+        private boolean     high;
+
+        public void init() {
+            for (int i = 0; i < 5; i++) {
+                values[i] = 0;
+            }
+            high = true;
+        }
+
+        public void add(int v) {
+            if (high) {
+                if (v < values[2]) {
+                    values[4] = values[3];
+                    values[3] = values[2];
+                    if (v < values[0]) {
+                        values[2] = values[1];
+                        values[1] = values[0];
+                        values[0] = v;
+                    } else if (v < values[1]) {
+                        values[2] = values[1];
+                        values[1] = v;
+                    } else {
+                        values[2] = v;
+                    }
+                } else {
+                    if (v < values[3]) {
+                        values[4] = values[3];
+                        values[3] = v;
+                    } else {
+                        values[4] = v;
+                    }
+                    high = false;
+                }
+            } else {
+                if (values[2] < v) {
+                    values[0] = values[1];
+                    values[1] = values[2];
+                    if (values[4] < v) {
+                        values[2] = values[3];
+                        values[3] = values[4];
+                        values[4] = v;
+                    } else if (values[3] < v) {
+                        values[2] = values[3];
+                        values[3] = v;
+                    } else {
+                        values[2] = v;
+                    }
+                } else {
+                    if (values[1] < v) {
+                        values[0] = values[1];
+                        values[1] = v;
+                    } else {
+                        values[0] = v;
+                    }
+                    high = true;
+                }
+            }
+        }
+
+        public int get() {
+            return values[2];
+        }
+    }
+
+    /**
+     * The core point fields: X, Y, Z, intensity, return and flag bits,
+     * classification, scan angle, user data and point source ID.
+     */
+    static class Point10 extends LAZItemDecompressor {
+        private static final int                    SIZE                = 20;
+
+        /** The median context for a return number r of n returns. */
+        private static final int[][]                NUMBER_RETURN_MAP   = {
+                { 15, 14, 13, 12, 11, 10, 9, 8 },
+                { 14, 0, 1, 3, 6, 10, 10, 9 },
+                { 13, 1, 2, 4, 7, 11, 11, 10 },
+                { 12, 3, 4, 5, 8, 12, 12, 11 },
+                { 11, 6, 7, 8, 9, 13, 13, 12 },
+                { 10, 10, 11, 12, 13, 14, 14, 13 },
+                { 9, 10, 11, 12, 13, 14, 15, 14 },
+                { 8, 9, 10, 11, 12, 13, 14, 15 } };
+
+        /** The height context for a return number r of n returns. */
+        private static final int[][]                NUMBER_RETURN_LEVEL = {
+                { 0, 1, 2, 3, 4, 5, 6, 7 },
+                { 1, 0, 1, 2, 3, 4, 5, 6 },
+                { 2, 1, 0, 1, 2, 3, 4, 5 },
+                { 3, 2, 1, 0, 1, 2, 3, 4 },
+                { 4, 3, 2, 1, 0, 1, 2, 3 },
+                { 5, 4, 3, 2, 1, 0, 1, 2 },
+                { 6, 5, 4, 3, 2, 1, 0, 1 },
+                { 7, 6, 5, 4, 3, 2, 1, 0 } };
+
+        private final LAZArithmeticDecoder          decoder;
+        private final byte[]                        lastItem            = new byte[SIZE];
+
+        private final StreamingMedian5[]            lastXDiffMedian     = new StreamingMedian5[16];
+        private final StreamingMedian5[]            lastYDiffMedian     = new StreamingMedian5[16];
+        private final int[]                         lastIntensity       = new int[16];
+        private final int[]                         lastHeight          = new int[8];
+
+        private final LAZArithmeticDecoder.SymbolModel   changedValues;
+        private final LAZArithmeticDecoder.SymbolModel[] scanAngleRank;
+        private final LAZArithmeticDecoder.SymbolModel[] bitByte        = new LAZArithmeticDecoder.SymbolModel[256];
+        private final LAZArithmeticDecoder.SymbolModel[] classification = new LAZArithmeticDecoder.SymbolModel[256];
+        private final LAZArithmeticDecoder.SymbolModel[] userData       = new LAZArithmeticDecoder.SymbolModel[256];
+
+        private final LAZIntegerDecompressor        icIntensity;
+        private final LAZIntegerDecompressor        icPointSourceID;
+        private final LAZIntegerDecompressor        icDx;
+        private final LAZIntegerDecompressor        icDy;
+        private final LAZIntegerDecompressor        icZ;
+
+        public Point10(LAZArithmeticDecoder decoder) {
+            this.decoder = decoder;
+
+            for (int i = 0; i < 16; i++) {
+                lastXDiffMedian[i] = new StreamingMedian5();
+                lastYDiffMedian[i] = new StreamingMedian5();
+            }
+
+            changedValues = new LAZArithmeticDecoder.SymbolModel(64);
+            scanAngleRank = new LAZArithmeticDecoder.SymbolModel[] { new LAZArithmeticDecoder.SymbolModel(256),
+                    new LAZArithmeticDecoder.SymbolModel(256) };
+
+            icIntensity = new LAZIntegerDecompressor(decoder, 16, 4);
+            icPointSourceID = new LAZIntegerDecompressor(decoder, 16);
+            icDx = new LAZIntegerDecompressor(decoder, 32, 2);
+            icDy = new LAZIntegerDecompressor(decoder, 32, 22);
+            icZ = new LAZIntegerDecompressor(decoder, 32, 20);
+        }
+
+        @Override
+        public void init(byte[] item, int offset) {
+            for (int i = 0; i < 16; i++) {
+                lastXDiffMedian[i].init();
+                lastYDiffMedian[i].init();
+                lastIntensity[i] = 0;
+                lastHeight[i / 2] = 0;
+            }
+
+            changedValues.init();
+            scanAngleRank[0].init();
+            scanAngleRank[1].init();
+            for (int i = 0; i < 256; i++) {
+                if (bitByte[i] != null) {
+                    bitByte[i].init();
+                }
+                if (classification[i] != null) {
+                    classification[i].init();
+                }
+                if (userData[i] != null) {
+                    userData[i].init();
+                }
+            }
+
+            icIntensity.init();
+            icPointSourceID.init();
+            icDx.init();
+            icDy.init();
+            icZ.init();
+
+            System.arraycopy(item, offset, lastItem, 0, SIZE);
+            putShort(lastItem, 12, 0);
+        }
+
+        private LAZArithmeticDecoder.SymbolModel getModel(LAZArithmeticDecoder.SymbolModel[] models, int index) {
+            if (models[index] == null) {
+                models[index] = new LAZArithmeticDecoder.SymbolModel(256);
+            }
+            return models[index];
+        }
+
+        @Override
+        public void read(byte[] item, int offset) {
+            int changed = decoder.decodeSymbol(changedValues);
+
+            int r, n, m, l;
+            if (changed != 0) {
+                if ((changed & 32) != 0) {
+                    int bits = lastItem[14] & 0xFF;
+                    lastItem[14] = (byte) decoder.decodeSymbol(getModel(bitByte, bits));
+                }
+
+                r = lastItem[14] & 0x7;
+                n = (lastItem[14] >> 3) & 0x7;
+                m = NUMBER_RETURN_MAP[n][r];
+                l = NUMBER_RETURN_LEVEL[n][r];
+
+                if ((changed & 16) != 0) {
+                    int intensity = icIntensity.decompress(lastIntensity[m], m < 3 ? m : 3) & 0xFFFF;
+                    putShort(lastItem, 12, intensity);
+                    lastIntensity[m] = intensity;
+                } else {
+                    putShort(lastItem, 12, lastIntensity[m]);
+                }
+
+                if ((changed & 8) != 0) {
+                    int last = lastItem[15] & 0xFF;
+                    lastItem[15] = (byte) decoder.decodeSymbol(getModel(classification, last));
+                }
+
+                if ((changed & 4) != 0) {
+                    int direction = (lastItem[14] >> 6) & 0x1;
+                    int value = decoder.decodeSymbol(scanAngleRank[direction]);
+                    lastItem[16] = (byte) fold(value + (lastItem[16] & 0xFF));
+                }
+
+                if ((changed & 2) != 0) {
+                    int last = lastItem[17] & 0xFF;
+                    lastItem[17] = (byte) decoder.decodeSymbol(getModel(userData, last));
+                }
+
+                if ((changed & 1) != 0) {
+                    putShort(lastItem, 18, icPointSourceID.decompress(getShort(lastItem, 18)));
+                }
+            } else {
+                r = lastItem[14] & 0x7;
+                n = (lastItem[14] >> 3) & 0x7;
+                m = NUMBER_RETURN_MAP[n][r];
+                l = NUMBER_RETURN_LEVEL[n][r];
+            }
+
+            int single = n == 1 ? 1 : 0;
+
+            int median = lastXDiffMedian[m].get();
+            int diff = icDx.decompress(median, single);
+            putInt(lastItem, 0, getInt(lastItem, 0) + diff);
+            lastXDiffMedian[m].add(diff);
+
+            median = lastYDiffMedian[m].get();
+            int kBits = icDx.getK();
+            diff = icDy.decompress(median, single + (kBits < 20 ? kBits & ~1 : 20));
+            putInt(lastItem, 4, getInt(lastItem, 4) + diff);
+            lastYDiffMedian[m].add(diff);
+
+            kBits = (icDx.getK() + icDy.getK()) / 2;
+            int z = icZ.decompress(lastHeight[l], single + (kBits < 18 ? kBits & ~1 : 18));
+            putInt(lastItem, 8, z);
+            lastHeight[l] = z;
+
+            System.arraycopy(lastItem, 0, item, offset, SIZE);
+        }
+    }
+
+    /**
+     * The GPS time, coded as multiples of the last difference in up to four
+     * interleaved sequences.
+     */
+    static class GpsTime11 extends LAZItemDecompressor {
+        private static final int                 MULTI           = 500;
+        private static final int                 MULTI_MINUS     = -10;
+        private static final int                 MULTI_UNCHANGED = MULTI - MULTI_MINUS + 1;
+        private static final int                 MULTI_CODE_FULL = MULTI - MULTI_MINUS + 2;
+        private static final int                 MULTI_TOTAL     = MULTI - MULTI_MINUS + 6;
+
+        private final LAZArithmeticDecoder       decoder;
+        private final LAZArithmeticDecoder.SymbolModel gpsTimeMulti;
+        private final LAZArithmeticDecoder.SymbolModel gpsTime0Diff;
+        private final LAZIntegerDecompressor     icGpsTime;
+
+        private final long[]                     lastGpsTime      = new long[4];
+        private final int[]                      lastGpsTimeDiff  = new int[4];
+        private final int[]                      multiExtremeCounter = new int[4];
+        private int                              last;
+        private int                              next;
+
+        public GpsTime11(LAZArithmeticDecoder decoder) {
+            this.decoder = decoder;
+            gpsTimeMulti = new LAZArithmeticDecoder.SymbolModel(MULTI_TOTAL);
+            gpsTime0Diff = new LAZArithmeticDecoder.SymbolModel(6);
+            icGpsTime = new LAZIntegerDecompressor(decoder, 32, 9);
+        }
+
+        @Override
+        public void init(byte[] item, int offset) {
+            last = 0;
+            next = 0;
+            for (int i = 0; i < 4; i++) {
+                lastGpsTime[i] = 0;
+                lastGpsTimeDiff[i] = 0;
+                multiExtremeCounter[i] = 0;
+            }
+
+            gpsTimeMulti.init();
+            gpsTime0Diff.init();
+            icGpsTime.init();
+
+            lastGpsTime[0] = getLong(item, offset);
+        }
+
+        @Override
+        public void read(byte[] item, int offset) {
+            decode();
+            putLong(item, offset, lastGpsTime[last]);
+        }
+
+        private void decode() {
+            if (lastGpsTimeDiff[last] == 0) {
+                int multi = decoder.decodeSymbol(gpsTime0Diff);
+                if (multi == 1) {
+                    // The difference fits in 32 bits.
+                    lastGpsTimeDiff[last] = icGpsTime.decompress(0, 0);
+                    lastGpsTime[last] += lastGpsTimeDiff[last];
+                    multiExtremeCounter[last] = 0;
+                } else if (multi == 2) {
+                    // The difference is huge, the time is stored in full.
+                    readFull();
+                } else if (multi > 2) {
+                    // Switch to another sequence.
+                    last = (last + multi - 2) & 3;
+                    decode();
+                }
+            } else {
+                int multi = decoder.decodeSymbol(gpsTimeMulti);
+                if (multi == 1) {
+                    lastGpsTime[last] += icGpsTime.decompress(lastGpsTimeDiff[last], 1);
+                    multiExtremeCounter[last] = 0;
+                } else if (multi < MULTI_UNCHANGED) {
+                    int gpsTimeDiff;
+                    if (multi == 0) {
+                        gpsTimeDiff = icGpsTime.decompress(0, 7);
+                        countExtreme(gpsTimeDiff);
+                    } else if (multi < MULTI) {
+                        gpsTimeDiff = icGpsTime.decompress(multi * lastGpsTimeDiff[last], multi < 10 ? 2 : 3);
+                    } else if (multi == MULTI) {
+                        gpsTimeDiff = icGpsTime.decompress(MULTI * lastGpsTimeDiff[last], 4);
+                        countExtreme(gpsTimeDiff);
+                    } else {
+                        multi = MULTI - multi;
+                        if (multi > MULTI_MINUS) {
+                            gpsTimeDiff = icGpsTime.decompress(multi * lastGpsTimeDiff[last], 5);
+                        } else {
+                            gpsTimeDiff = icGpsTime.decompress(MULTI_MINUS * lastGpsTimeDiff[last], 6);
+                            countExtreme(gpsTimeDiff);
+                        }
+                    }
+                    lastGpsTime[last] += gpsTimeDiff;
+                } else if (multi == MULTI_CODE_FULL) {
+                    readFull();
+                } else if (multi > MULTI_CODE_FULL) {
+                    last = (last + multi - MULTI_CODE_FULL) & 3;
+                    decode();
+                }
+            }
+        }
+
+        private void countExtreme(int gpsTimeDiff) {
+            multiExtremeCounter[last]++;
+            if (multiExtremeCounter[last] > 3) {
+                lastGpsTimeDiff[last] = gpsTimeDiff;
+                multiExtremeCounter[last] = 0;
+            }
+        }
+
+        private void readFull() {
+            next = (next + 1) & 3;
+            long high = icGpsTime.decompress((int) (lastGpsTime[last] >>> 32), 8);
+            lastGpsTime[next] = (high << 32) | (decoder.readInt() & 0xFFFFFFFFL);
+            last = next;
+            lastGpsTimeDiff[last] = 0;
+            multiExtremeCounter[last] = 0;
+        }
+    }
+
+    /**
+     * The red, green and blue colors, coded per byte as a difference with
+     * the previous color, predicted from the other channels.
+     */
+    static class Rgb12 extends LAZItemDecompressor {
+        private static final int                         SIZE     = 6;
+
+        private final LAZArithmeticDecoder               decoder;
+        private final LAZArithmeticDecoder.SymbolModel   byteUsed;
+        private final LAZArithmeticDecoder.SymbolModel[] rgbDiff  = new LAZArithmeticDecoder.SymbolModel[6];
+        private final int[]                              lastItem = new int[3];
+
+        public Rgb12(LAZArithmeticDecoder decoder) {
+            this.decoder = decoder;
+            byteUsed = new LAZArithmeticDecoder.SymbolModel(128);
+            for (int i = 0; i < rgbDiff.length; i++) {
+                rgbDiff[i] = new LAZArithmeticDecoder.SymbolModel(256);
+            }
+        }
+
+        @Override
+        public void init(byte[] item, int offset) {
+            byteUsed.init();
+            for (LAZArithmeticDecoder.SymbolModel model : rgbDiff) {
+                model.init();
+            }
+            for (int i = 0; i < 3; i++) {
+                lastItem[i] = getShort(item, offset + i * 2);
+            }
+        }
+
+        @Override
+        public void read(byte[] item, int offset) {
+            int sym = decoder.decodeSymbol(byteUsed);
+            int red, green, blue;
+
+            if ((sym & (1 << 0)) != 0) {
+                red = fold(decoder.decodeSymbol(rgbDiff[0]) + (lastItem[0] & 0xFF));
+            } else {
+                red = lastItem[0] & 0xFF;
+            }
+            if ((sym & (1 << 1)) != 0) {
+                red |= fold(decoder.decodeSymbol(rgbDiff[1]) + (lastItem[0] >> 8)) << 8;
+            } else {
+                red |= lastItem[0] & 0xFF00;
+            }
+
+            if ((sym & (1 << 6)) != 0) {
+                int diff = (red & 0xFF) - (lastItem[0] & 0xFF);
+                if ((sym & (1 << 2)) != 0) {
+                    green = fold(decoder.decodeSymbol(rgbDiff[2]) + clamp(diff + (lastItem[1] & 0xFF)));
+                } else {
+                    green = lastItem[1] & 0xFF;
+                }
+                if ((sym & (1 << 4)) != 0) {
+                    diff = (diff + ((green & 0xFF) - (lastItem[1] & 0xFF))) / 2;
+                    blue = fold(decoder.decodeSymbol(rgbDiff[4]) + clamp(diff + (lastItem[2] & 0xFF)));
+                } else {
+                    blue = lastItem[2] & 0xFF;
+                }
+
+                diff = (red >> 8) - (lastItem[0] >> 8);
+                if ((sym & (1 << 3)) != 0) {
+                    green |= fold(decoder.decodeSymbol(rgbDiff[3]) + clamp(diff + (lastItem[1] >> 8))) << 8;
+                } else {
+                    green |= lastItem[1] & 0xFF00;
+                }
+                if ((sym & (1 << 5)) != 0) {
+                    diff = (diff + ((green >> 8) - (lastItem[1] >> 8))) / 2;
+                    blue |= fold(decoder.decodeSymbol(rgbDiff[5]) + clamp(diff + (lastItem[2] >> 8))) << 8;
+                } else {
+                    blue |= lastItem[2] & 0xFF00;
+                }
+            } else {
+                green = red;
+                blue = red;
+            }
+
+            lastItem[0] = red;
+            lastItem[1] = green;
+            lastItem[2] = blue;
+
+            putShort(item, offset, red);
+            putShort(item, offset + 2, green);
+            putShort(item, offset + 4, blue);
+        }
+    }
+
+    /**
+     * Extra bytes after the standard fields, coded as a difference per byte.
+     */
+    static class Bytes extends LAZItemDecompressor {
+        private final LAZArithmeticDecoder               decoder;
+        private final LAZArithmeticDecoder.SymbolModel[] byteModels;
+        private final byte[]                             lastItem;
+
+        public Bytes(LAZArithmeticDecoder decoder, int size) {
+            this.decoder = decoder;
+            byteModels = new LAZArithmeticDecoder.SymbolModel[size];
+            for (int i = 0; i < size; i++) {
+                byteModels[i] = new LAZArithmeticDecoder.SymbolModel(256);
+            }
+            lastItem = new byte[size];
+        }
+
+        @Override
+        public void init(byte[] item, int offset) {
+            for (LAZArithmeticDecoder.SymbolModel model : byteModels) {
+                model.init();
+            }
+            System.arraycopy(item, offset, lastItem, 0, lastItem.length);
+        }
+
+        @Override
+        public void read(byte[] item, int offset) {
+            for (int i = 0; i < lastItem.length; i++) {
+                lastItem[i] = (byte) fold((lastItem[i] & 0xFF) + decoder.decodeSymbol(byteModels[i]));
+            }
+            System.arraycopy(lastItem, 0, item, offset, lastItem.length);
+        }
+    }
+}